@@ -0,0 +1,125 @@
+package net.kenevans.android.mapimage;
+
+/**
+ * Least-squares solver for the six-parameter affine calibration
+ * <pre>
+ *     lon = a * x + b * y + e
+ *     lat = c * x + d * y + f
+ * </pre>
+ * using the normal equations on primitive doubles. The longitude and
+ * latitude fits are two independent 3x3 systems sharing the same normal
+ * matrix. The points are accumulated about the first point added, which
+ * keeps the sums well conditioned for large pixel values and small
+ * differences in longitude and latitude. No objects are allocated, so an
+ * instance can be reused.
+ */
+public class AffineSolver {
+    /**
+     * Relative size of the determinant below which the point set is
+     * considered ill-conditioned (nearly collinear).
+     */
+    private static final double MIN_RELATIVE_DET = 1e-10;
+
+    private int n;
+    private double x0, y0, lon0, lat0;
+    private double sx, sy, sxx, sxy, syy;
+    private double sLon, sxLon, syLon;
+    private double sLat, sxLat, syLat;
+
+    /**
+     * Clears the accumulated points.
+     */
+    public void reset() {
+        n = 0;
+        x0 = y0 = lon0 = lat0 = 0;
+        sx = sy = sxx = sxy = syy = 0;
+        sLon = sxLon = syLon = 0;
+        sLat = sxLat = syLat = 0;
+    }
+
+    /**
+     * Adds a calibration point.
+     *
+     * @param x   The x pixel coordinate.
+     * @param y   The y pixel coordinate.
+     * @param lon The longitude.
+     * @param lat The latitude.
+     */
+    public void add(double x, double y, double lon, double lat) {
+        if (n == 0) {
+            x0 = x;
+            y0 = y;
+            lon0 = lon;
+            lat0 = lat;
+        }
+        n++;
+        double dx = x - x0, dy = y - y0;
+        double dLon = lon - lon0, dLat = lat - lat0;
+        sx += dx;
+        sy += dy;
+        sxx += dx * dx;
+        sxy += dx * dy;
+        syy += dy * dy;
+        sLon += dLon;
+        sxLon += dx * dLon;
+        syLon += dy * dLon;
+        sLat += dLat;
+        sxLat += dx * dLat;
+        syLat += dy * dLat;
+    }
+
+    /**
+     * @return The number of points added since the last reset.
+     */
+    public int getCount() {
+        return n;
+    }
+
+    /**
+     * Solves for the coefficients.
+     *
+     * @param coeffs Array of length at least 6 to receive {a, b, c, d, e, f}.
+     * @return Whether the solution succeeded. Returns false if there are
+     * fewer than three points or if the points are ill-conditioned, in which
+     * case coeffs is not changed.
+     */
+    public boolean solve(double[] coeffs) {
+        if (n < 3) return false;
+        // Normal matrix
+        // | sxx sxy sx |
+        // | sxy syy sy |
+        // | sx  sy  n  |
+        double m00 = syy * n - sy * sy;
+        double m01 = sx * sy - sxy * n;
+        double m02 = sxy * sy - syy * sx;
+        double m11 = sxx * n - sx * sx;
+        double m12 = sxy * sx - sxx * sy;
+        double m22 = sxx * syy - sxy * sxy;
+        double det = sxx * m00 + sxy * m01 + sx * m02;
+        // Compare against the product of the diagonal terms of the
+        // centered covariance to get a scale-independent test
+        double scale = (sxx * n - sx * sx) * (syy * n - sy * sy);
+        if (!(scale > 0) || Math.abs(det * n) <= MIN_RELATIVE_DET * scale) {
+            return false;
+        }
+        // Inverse of the symmetric normal matrix is adjugate / det
+        double a = (m00 * sxLon + m01 * syLon + m02 * sLon) / det;
+        double b = (m01 * sxLon + m11 * syLon + m12 * sLon) / det;
+        double e = (m02 * sxLon + m12 * syLon + m22 * sLon) / det;
+        double c = (m00 * sxLat + m01 * syLat + m02 * sLat) / det;
+        double d = (m01 * sxLat + m11 * syLat + m12 * sLat) / det;
+        double f = (m02 * sxLat + m12 * syLat + m22 * sLat) / det;
+        if (Double.isNaN(a + b + c + d + e + f)
+                || Double.isInfinite(a + b + c + d + e + f)) {
+            return false;
+        }
+        // Undo the shift of origin
+        coeffs[0] = a;
+        coeffs[1] = b;
+        coeffs[2] = c;
+        coeffs[3] = d;
+        coeffs[4] = lon0 + e - a * x0 - b * y0;
+        coeffs[5] = lat0 + f - c * x0 - d * y0;
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+package net.kenevans.android.mapimage;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Binary cache of compiled calibrations stored in the application cache
+ * directory. Each entry holds the fitted transform, the calibration points,
+ * and the image dimensions for one calibration file and is keyed by the
+ * document Uri and its last modified time. An entry whose modified time
+ * does not match is deleted and rebuilt by the caller.
+ */
+public class CalibrationCache implements IConstants {
+    private static final String CACHE_DIR = "calib_cache";
+    private static final String CACHE_EXT = ".bin";
+    private static final int MAGIC = 0x4d494343; // MICC
+    /**
+     * Increment when the format of the entries changes.
+     */
+    private static final int VERSION = 4;
+    /**
+     * Maximum number of entries to keep. The least recently written are
+     * removed first.
+     */
+    private static final int MAX_ENTRIES = 2000;
+
+    /**
+     * Reads the cached calibration for the given Uri into the given
+     * MapCalibration.
+     *
+     * @param context      The context.
+     * @param uri          The calibration file Uri.
+     * @param modifiedTime The current last modified time of the calibration
+     *                     file.
+     * @param calib        The MapCalibration to fill.
+     * @return Whether a valid entry was found.
+     */
+    public static boolean read(Context context, Uri uri, long modifiedTime,
+                               MapCalibration calib) {
+        File file = getFile(context, uri);
+        if (!file.exists()) return false;
+        String uriStr = uri.toString();
+        boolean valid = false;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() == MAGIC && in.readInt() == VERSION
+                    && uriStr.equals(in.readUTF())
+                    && in.readLong() == modifiedTime) {
+                calib.readCompiled(in);
+                valid = true;
+            }
+        } catch (Exception ex) {
+            Log.d(TAG, "CalibrationCache.read: Failed to read "
+                    + file.getName() + ": " + ex);
+        }
+        if (!valid) {
+            // Stale or corrupt
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        return valid;
+    }
+
+    /**
+     * Writes the given MapCalibration to the cache.
+     *
+     * @param context      The context.
+     * @param uri          The calibration file Uri.
+     * @param modifiedTime The last modified time of the calibration file.
+     * @param calib        The MapCalibration.
+     */
+    public static synchronized void write(Context context, Uri uri,
+                                          long modifiedTime,
+                                          MapCalibration calib) {
+        File file = getFile(context, uri);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(uri.toString());
+            out.writeLong(modifiedTime);
+            calib.writeCompiled(out);
+        } catch (Exception ex) {
+            Log.d(TAG, "CalibrationCache.write: Failed to write "
+                    + file.getName() + ": " + ex);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        trim(file.getParentFile());
+    }
+
+    /**
+     * Removes the entry for the given Uri.
+     *
+     * @param context The context.
+     * @param uri     The calibration file Uri.
+     */
+    public static void remove(Context context, Uri uri) {
+        //noinspection ResultOfMethodCallIgnored
+        getFile(context, uri).delete();
+    }
+
+    /**
+     * Removes all entries.
+     *
+     * @param context The context.
+     */
+    public static void clear(Context context) {
+        File[] files = getDir(context).listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static File getDir(Context context) {
+        File dir = new File(context.getCacheDir(), CACHE_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.d(TAG, "CalibrationCache: Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Gets the cache file for the given Uri. The name is a hash of the Uri.
+     * The full Uri is stored in the file to detect collisions.
+     *
+     * @param context The context.
+     * @param uri     The Uri.
+     * @return The File.
+     */
+    private static File getFile(Context context, Uri uri) {
+        String uriStr = uri.toString();
+        String name = String.format(Locale.US, "%08x%08x", uriStr.hashCode(),
+                uriStr.length()) + CACHE_EXT;
+        return new File(getDir(context), name);
+    }
+
+    /**
+     * Removes the oldest entries if there are more than MAX_ENTRIES.
+     *
+     * @param dir The cache directory.
+     */
+    private static void trim(File dir) {
+        File[] files = dir == null ? null : dir.listFiles();
+        if (files == null || files.length <= MAX_ENTRIES) return;
+        Arrays.sort(files, (f1, f2) -> Long.compare(f1.lastModified(),
+                f2.lastModified()));
+        for (int i = 0; i < files.length - MAX_ENTRIES; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Exception thrown for an invalid cache entry.
+     */
+    public static class InvalidEntryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidEntryException(String msg) {
+            super(msg);
+        }
+    }
+}
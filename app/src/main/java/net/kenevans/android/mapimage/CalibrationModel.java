@@ -0,0 +1,76 @@
+package net.kenevans.android.mapimage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A fitted calibration between pixel coordinates (x, y) and longitude and
+ * latitude. The forward direction is from pixels to longitude and latitude.
+ */
+public interface CalibrationModel {
+    /**
+     * Six-parameter affine model.
+     */
+    int MODEL_AFFINE = 0;
+    /**
+     * Second-order polynomial model.
+     */
+    int MODEL_POLY2 = 1;
+    /**
+     * Third-order polynomial model.
+     */
+    int MODEL_POLY3 = 2;
+    /**
+     * Thin-plate spline model.
+     */
+    int MODEL_TPS = 3;
+
+    /**
+     * @return One of the MODEL_ constants.
+     */
+    int getType();
+
+    /**
+     * Calculates the longitude and latitude for the given pixel
+     * coordinates.
+     *
+     * @param x      The x pixel coordinate.
+     * @param y      The y pixel coordinate.
+     * @param lonLat Array of length at least 2 to receive {lon, lat}.
+     * @return Whether the values were set.
+     */
+    boolean forward(double x, double y, double[] lonLat);
+
+    /**
+     * Calculates the pixel coordinates for the given longitude and
+     * latitude.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @param xy  Array of length at least 2 to receive {x, y}.
+     * @return Whether the values were set.
+     */
+    boolean inverse(double lon, double lat, double[] xy);
+
+    /**
+     * Calculates the pixel coordinates for arrays of longitude and
+     * latitude.
+     *
+     * @param lons The longitudes.
+     * @param lats The latitudes.
+     * @param n    The number of points to convert.
+     * @param xy   Array of length at least 2 * n to receive x0, y0, x1,
+     *             y1, ... Points that cannot be converted are set to NaN.
+     * @return The number of points converted.
+     */
+    int inverse(double[] lons, double[] lats, int n, float[] xy);
+
+    /**
+     * Writes the model for the CalibrationCache. The type is written by the
+     * caller.
+     *
+     * @param out The output.
+     * @throws IOException On a write error.
+     */
+    void write(DataOutputStream out) throws IOException;
+}
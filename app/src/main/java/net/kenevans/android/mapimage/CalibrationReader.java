@@ -0,0 +1,555 @@
+package net.kenevans.android.mapimage;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Streaming scanner for calibration files. Each data line has the form
+ * <pre>
+ *     x y longitude latitude
+ * </pre>
+ * separated by white space, where x and y are integer pixel coordinates.
+ * Blank lines and lines starting with # are skipped. Any additional tokens
+ * on a line are ignored.
+ * <p>
+ * The calibration model may be specified by a comment line of the form
+ * <pre>
+ *     #model: poly2
+ * </pre>
+ * where the model is one of affine, poly2, poly3, or tps. An = may be used
+ * instead of the colon. The default is affine.
+ * <p>
+ * The points may be fitted in a projected plane rather than in longitude
+ * and latitude by a comment line of the form
+ * <pre>
+ *     #projection: utm 10n
+ *     #projection: webmercator
+ *     #projection: lcc 33 45 39 -96
+ * </pre>
+ * The UTM zone and hemisphere and the LCC standard parallels, latitude of
+ * origin, and central meridian are optional and are chosen from the points
+ * if omitted. The default is none.
+ * <p>
+ * The input is read into a reusable char buffer and the numbers are parsed
+ * in place, so no objects are created per line. Only a number with more
+ * significant digits than a double holds, or a large exponent, is
+ * converted with Double.parseDouble. Errors are reported with a
+ * CalibrationFormatException giving the line and column.
+ */
+public class CalibrationReader {
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * Powers of ten that are exactly representable as doubles.
+     */
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    /**
+     * Largest mantissa for which mantissa * 10^n is correctly rounded.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final Reader in;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private int line = 1;
+    /**
+     * Position in buf of the start of the current line. May be negative
+     * after the buffer is refilled.
+     */
+    private int lineStart;
+
+    private int x, y;
+    private double lon, lat;
+    private int modelType = CalibrationModel.MODEL_AFFINE;
+    private int projectionType = Projection.PROJECTION_NONE;
+    private final double[] projectionParams = new double[4];
+    private int nProjectionParams;
+    /**
+     * Holds a word in a comment line.
+     */
+    private final char[] word = new char[16];
+    private int wordLength;
+    /**
+     * Holds the digits of the number being parsed, for the rare numbers
+     * that cannot be converted exactly from the mantissa.
+     */
+    private final StringBuilder digits = new StringBuilder(32);
+
+    public CalibrationReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Advances to the next data line.
+     *
+     * @return Whether there was a data line. False at end of input.
+     * @throws IOException                On a read error.
+     * @throws CalibrationFormatException If the line is invalid.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            skipBlanks();
+            int c = peek();
+            if (c < 0) return false;
+            if (c == '\n' || c == '\r') {
+                skipLine();
+                continue;
+            }
+            if (c == '#') {
+                pos++;
+                parseComment();
+                skipLine();
+                continue;
+            }
+            x = parseInt();
+            skipSeparator();
+            y = parseInt();
+            skipSeparator();
+            lon = parseDouble();
+            skipSeparator();
+            lat = parseDouble();
+            skipLine();
+            return true;
+        }
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    /**
+     * @return The model type from the header. One of the
+     * CalibrationModel.MODEL_ constants.
+     */
+    public int getModelType() {
+        return modelType;
+    }
+
+    /**
+     * @return The projection type from the header. One of the
+     * Projection.PROJECTION_ constants.
+     */
+    public int getProjectionType() {
+        return projectionType;
+    }
+
+    /**
+     * @return The projection parameters from the header. See
+     * Projection.create.
+     */
+    public double[] getProjectionParams() {
+        return projectionParams;
+    }
+
+    /**
+     * @return The number of projection parameters given in the header.
+     */
+    public int getProjectionParamCount() {
+        return nProjectionParams;
+    }
+
+    /**
+     * Gets the name used in the header for the given model type.
+     *
+     * @param modelType One of the CalibrationModel.MODEL_ constants.
+     * @return The name.
+     */
+    public static String getModelName(int modelType) {
+        switch (modelType) {
+            case CalibrationModel.MODEL_POLY2:
+                return "poly2";
+            case CalibrationModel.MODEL_POLY3:
+                return "poly3";
+            case CalibrationModel.MODEL_TPS:
+                return "tps";
+            default:
+                return "affine";
+        }
+    }
+
+    /**
+     * @return The current line number, starting at 1.
+     */
+    public int getLine() {
+        return line;
+    }
+
+    private int peek() throws IOException {
+        if (pos >= limit && !fill()) return -1;
+        return buf[pos];
+    }
+
+    /**
+     * Reads more input into the buffer, discarding what has been consumed.
+     *
+     * @return Whether more input is available.
+     * @throws IOException On a read error.
+     */
+    private boolean fill() throws IOException {
+        if (eof) return false;
+        lineStart -= limit;
+        pos = 0;
+        limit = 0;
+        int n;
+        do {
+            n = in.read(buf, 0, buf.length);
+        } while (n == 0);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    private static boolean isBlank(int c) {
+        return c == ' ' || c == '\t' || c == '\f' || c == '\u000b'
+                || c == '\uFEFF';
+    }
+
+    private void skipBlanks() throws IOException {
+        int c;
+        while ((c = peek()) >= 0 && isBlank(c)) {
+            pos++;
+        }
+    }
+
+    /**
+     * Skips the white space between tokens. There must be at least one
+     * blank and the line must not end.
+     *
+     * @throws IOException On a read error.
+     */
+    private void skipSeparator() throws IOException {
+        int c = peek();
+        if (c < 0 || c == '\n' || c == '\r') {
+            throw error("Expected 4 values");
+        }
+        if (!isBlank(c)) {
+            throw error("Invalid character '" + (char) c + "'");
+        }
+        skipBlanks();
+        c = peek();
+        if (c < 0 || c == '\n' || c == '\r') {
+            throw error("Expected 4 values");
+        }
+    }
+
+    /**
+     * Skips to the start of the next line.
+     *
+     * @throws IOException On a read error.
+     */
+    private void skipLine() throws IOException {
+        int c;
+        while ((c = peek()) >= 0) {
+            pos++;
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (peek() == '\n') pos++;
+                break;
+            }
+        }
+        line++;
+        lineStart = pos;
+    }
+
+    /**
+     * Checks a comment line for a model or projection header. The # has
+     * been consumed.
+     *
+     * @throws IOException On a read error.
+     */
+    private void parseComment() throws IOException {
+        skipBlanks();
+        readWord();
+        boolean isModel = wordEquals("model");
+        if (!isModel && !wordEquals("projection")) return;
+        skipBlanks();
+        int c = peek();
+        if (c != ':' && c != '=') return;
+        pos++;
+        skipBlanks();
+        if (isModel) {
+            parseModel();
+        } else {
+            parseProjection();
+        }
+    }
+
+    private void parseModel() throws IOException {
+        int column = pos - lineStart + 1;
+        readWord();
+        if (wordEquals("affine")) {
+            modelType = CalibrationModel.MODEL_AFFINE;
+        } else if (wordEquals("poly2")) {
+            modelType = CalibrationModel.MODEL_POLY2;
+        } else if (wordEquals("poly3")) {
+            modelType = CalibrationModel.MODEL_POLY3;
+        } else if (wordEquals("tps")) {
+            modelType = CalibrationModel.MODEL_TPS;
+        } else {
+            throw error("Unknown model '" + new String(word, 0, wordLength)
+                    + "'", column);
+        }
+    }
+
+    private void parseProjection() throws IOException {
+        int column = pos - lineStart + 1;
+        readWord();
+        nProjectionParams = 0;
+        if (wordEquals("none") || wordEquals("geographic")) {
+            projectionType = Projection.PROJECTION_NONE;
+        } else if (wordEquals("webmercator")) {
+            projectionType = Projection.PROJECTION_WEB_MERCATOR;
+        } else if (wordEquals("utm")) {
+            projectionType = Projection.PROJECTION_UTM;
+            parseUtmZone();
+        } else if (wordEquals("lcc")) {
+            projectionType = Projection.PROJECTION_LCC;
+            skipBlanks();
+            int c;
+            while (nProjectionParams < projectionParams.length
+                    && ((c = peek()) == '-' || c == '+' || c == '.'
+                    || (c >= '0' && c <= '9'))) {
+                projectionParams[nProjectionParams++] = parseDouble();
+                skipBlanks();
+            }
+            if (nProjectionParams != 0 && nProjectionParams != 4) {
+                throw error("Expected 4 LCC parameters", column);
+            }
+        } else {
+            throw error("Unknown projection '"
+                    + new String(word, 0, wordLength) + "'", column);
+        }
+    }
+
+    /**
+     * Parses an optional UTM zone of the form 10n, 10 n, or 10. The
+     * hemisphere is chosen from the points if it is not given.
+     *
+     * @throws IOException On a read error.
+     */
+    private void parseUtmZone() throws IOException {
+        skipBlanks();
+        int column = pos - lineStart + 1;
+        readWord();
+        if (wordLength == 0) return;
+        int zone = 0;
+        int i = 0;
+        for (; i < wordLength && word[i] >= '0' && word[i] <= '9'; i++) {
+            zone = 10 * zone + (word[i] - '0');
+        }
+        if (i == 0 || zone < 1 || zone > 60) {
+            throw error("Invalid UTM zone", column);
+        }
+        projectionParams[nProjectionParams++] = zone;
+        if (i == wordLength) {
+            skipBlanks();
+            readWord();
+            i = 0;
+        }
+        if (i == wordLength) return;
+        if (i == wordLength - 1 && (word[i] == 'n' || word[i] == 's')) {
+            projectionParams[nProjectionParams++] = word[i] == 's' ? 1 : 0;
+        } else {
+            throw error("Invalid UTM hemisphere", column);
+        }
+    }
+
+    /**
+     * Reads letters and digits into word, lower-casing them. Characters
+     * beyond the length of word are skipped.
+     *
+     * @throws IOException On a read error.
+     */
+    private void readWord() throws IOException {
+        wordLength = 0;
+        int c;
+        while ((c = peek()) >= 0 && Character.isLetterOrDigit(c)) {
+            if (wordLength < word.length) {
+                word[wordLength++] = Character.toLowerCase((char) c);
+            }
+            pos++;
+        }
+    }
+
+    private boolean wordEquals(String str) {
+        if (wordLength != str.length()) return false;
+        for (int i = 0; i < wordLength; i++) {
+            if (word[i] != str.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private int parseInt() throws IOException {
+        int c = peek();
+        boolean negative = false;
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            pos++;
+            c = peek();
+        }
+        if (c < '0' || c > '9') {
+            throw error("Expected an integer");
+        }
+        long val = 0;
+        while (c >= '0' && c <= '9') {
+            val = 10 * val + (c - '0');
+            if (val > Integer.MAX_VALUE + 1L) {
+                throw error("Integer is too large");
+            }
+            pos++;
+            c = peek();
+        }
+        if (negative) val = -val;
+        if (val > Integer.MAX_VALUE) {
+            throw error("Integer is too large");
+        }
+        checkTokenEnd(c);
+        return (int) val;
+    }
+
+    private double parseDouble() throws IOException {
+        int errColumn = pos - lineStart + 1;
+        int c = peek();
+        boolean negative = false;
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            pos++;
+            c = peek();
+        }
+        long mantissa = 0;
+        int nDigits = 0;
+        int nFractionDigits = 0;
+        int exp10 = 0;
+        boolean inexact = false;
+        digits.setLength(0);
+        while (c >= '0' && c <= '9') {
+            digits.append((char) c);
+            if (mantissa < MAX_EXACT_MANTISSA) {
+                mantissa = 10 * mantissa + (c - '0');
+            } else {
+                // Further digits only scale the value
+                exp10++;
+                inexact |= c != '0';
+            }
+            nDigits++;
+            pos++;
+            c = peek();
+        }
+        if (c == '.') {
+            pos++;
+            c = peek();
+            while (c >= '0' && c <= '9') {
+                digits.append((char) c);
+                nFractionDigits++;
+                if (mantissa < MAX_EXACT_MANTISSA) {
+                    mantissa = 10 * mantissa + (c - '0');
+                    exp10--;
+                } else {
+                    inexact |= c != '0';
+                }
+                nDigits++;
+                pos++;
+                c = peek();
+            }
+        }
+        if (nDigits == 0) {
+            throw error("Expected a number", errColumn);
+        }
+        int exp = 0;
+        if (c == 'e' || c == 'E') {
+            pos++;
+            c = peek();
+            boolean expNegative = false;
+            if (c == '-' || c == '+') {
+                expNegative = c == '-';
+                pos++;
+                c = peek();
+            }
+            if (c < '0' || c > '9') {
+                throw error("Invalid exponent");
+            }
+            while (c >= '0' && c <= '9') {
+                if (exp < 10000) exp = 10 * exp + (c - '0');
+                pos++;
+                c = peek();
+            }
+            if (expNegative) exp = -exp;
+            exp10 += exp;
+        }
+        checkTokenEnd(c);
+        double val;
+        if (!inexact && mantissa <= MAX_EXACT_MANTISSA
+                && exp10 >= -22 && exp10 <= 22) {
+            // Exactly rounded since both operands are exact
+            val = exp10 < 0 ? mantissa / POW10[-exp10]
+                    : mantissa * POW10[exp10];
+        } else {
+            // Rare case: too many significant digits or a large exponent
+            val = Double.parseDouble(digits.append('e')
+                    .append(exp - nFractionDigits).toString());
+        }
+        return negative ? -val : val;
+    }
+
+    private void checkTokenEnd(int c) throws CalibrationFormatException {
+        if (c >= 0 && !isBlank(c) && c != '\n' && c != '\r') {
+            throw error("Invalid character '" + (char) c + "'");
+        }
+    }
+
+    private CalibrationFormatException error(String msg) {
+        return error(msg, pos - lineStart + 1);
+    }
+
+    private CalibrationFormatException error(String msg, int column) {
+        return new CalibrationFormatException(msg, line, column);
+    }
+
+    /**
+     * Exception for an invalid calibration file. It is a
+     * NumberFormatException for compatibility with the previous parser.
+     */
+    public static class CalibrationFormatException extends
+            NumberFormatException {
+        private static final long serialVersionUID = 1L;
+        private final int line;
+        private final int column;
+
+        public CalibrationFormatException(String msg, int line, int column) {
+            super(String.format(Locale.US, "Line %d, column %d: %s", line,
+                    column, msg));
+            this.line = line;
+            this.column = column;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package net.kenevans.android.mapimage;
+
+/**
+ * Solves small dense linear systems stored in primitive arrays using
+ * Gaussian elimination with partial pivoting.
+ */
+public class DenseSolver {
+    /**
+     * Relative size of a pivot below which the matrix is considered
+     * singular.
+     */
+    private static final double MIN_RELATIVE_PIVOT = 1e-13;
+
+    /**
+     * Solves A X = B in place.
+     *
+     * @param a    The n x n matrix in row-major order. It is overwritten.
+     * @param n    The size of the matrix.
+     * @param b    The n x nRhs right-hand sides in row-major order. It is
+     *             overwritten with the solution.
+     * @param nRhs The number of right-hand sides.
+     * @return Whether the solution succeeded. Returns false if the matrix
+     * is singular.
+     */
+    public static boolean solve(double[] a, int n, double[] b, int nRhs) {
+        double maxAbs = 0;
+        for (int i = 0; i < n * n; i++) {
+            maxAbs = Math.max(maxAbs, Math.abs(a[i]));
+        }
+        if (!(maxAbs > 0)) return false;
+        double minPivot = MIN_RELATIVE_PIVOT * maxAbs;
+        for (int k = 0; k < n; k++) {
+            // Find the pivot
+            int p = k;
+            double pMax = Math.abs(a[k * n + k]);
+            for (int i = k + 1; i < n; i++) {
+                double v = Math.abs(a[i * n + k]);
+                if (v > pMax) {
+                    pMax = v;
+                    p = i;
+                }
+            }
+            if (!(pMax > minPivot)) return false;
+            if (p != k) {
+                swapRows(a, n, p, k);
+                swapRows(b, nRhs, p, k);
+            }
+            // Eliminate below the pivot
+            double pivot = a[k * n + k];
+            for (int i = k + 1; i < n; i++) {
+                double factor = a[i * n + k] / pivot;
+                if (factor == 0) continue;
+                a[i * n + k] = 0;
+                for (int j = k + 1; j < n; j++) {
+                    a[i * n + j] -= factor * a[k * n + j];
+                }
+                for (int j = 0; j < nRhs; j++) {
+                    b[i * nRhs + j] -= factor * b[k * nRhs + j];
+                }
+            }
+        }
+        // Back substitution
+        for (int k = n - 1; k >= 0; k--) {
+            double pivot = a[k * n + k];
+            for (int j = 0; j < nRhs; j++) {
+                double sum = b[k * nRhs + j];
+                for (int i = k + 1; i < n; i++) {
+                    sum -= a[k * n + i] * b[i * nRhs + j];
+                }
+                b[k * nRhs + j] = sum / pivot;
+            }
+        }
+        for (int i = 0; i < n * nRhs; i++) {
+            if (Double.isNaN(b[i]) || Double.isInfinite(b[i])) return false;
+        }
+        return true;
+    }
+
+    private static void swapRows(double[] m, int nCols, int r1, int r2) {
+        int o1 = r1 * nCols, o2 = r2 * nCols;
+        for (int j = 0; j < nCols; j++) {
+            double tmp = m[o1 + j];
+            m[o1 + j] = m[o2 + j];
+            m[o2 + j] = tmp;
+        }
+    }
+}
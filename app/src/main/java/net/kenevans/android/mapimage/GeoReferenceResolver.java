@@ -0,0 +1,501 @@
+package net.kenevans.android.mapimage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the image files in the image directory and its subdirectories and
+ * pairs each with its georeference file using a single query of each
+ * directory. The georeference is a calibration file or an ESRI world file
+ * with the same base name as the image. A calibration file takes
+ * precedence.
+ * <p>
+ * GeoTIFF and PNG metadata are not used, since TIFF images cannot be
+ * displayed and PNG has no standard georeference chunk.
+ */
+public class GeoReferenceResolver implements IConstants {
+    public static final int GEOREF_NONE = 0;
+    public static final int GEOREF_CALIB = 1;
+    public static final int GEOREF_WORLD_FILE = 2;
+
+    /**
+     * Maximum depth of subdirectories to scan, with 0 for only the top
+     * level.
+     */
+    private static final int MAX_SCAN_DEPTH = 8;
+    /**
+     * Number of directories listed at once. Listing is limited by the
+     * provider, so more threads than this do not help.
+     */
+    private static final int N_SCAN_THREADS = 4;
+
+    private static final String[] IMAGE_EXTS = {"jpg", "jpeg", "png", "gif",
+            "webp"};
+    private static final String[] IMAGE_MIME_TYPES = {"image/jpeg",
+            "image/png", "image/gif", "image/webp"};
+
+    /**
+     * Image extensions followed by the world file extensions that apply to
+     * them. The wld extension applies to all.
+     */
+    private static final String[][] WORLD_FILE_EXTS = {
+            {"jpg", "jgw", "jpgw"},
+            {"jpeg", "jgw", "jpgw", "jpegw"},
+            {"png", "pgw", "pngw"},
+            {"gif", "gfw", "gifw"},
+    };
+
+    /**
+     * Pool for listing subdirectories.
+     */
+    private static final ExecutorService sScanPool =
+            Executors.newFixedThreadPool(N_SCAN_THREADS);
+
+    private GeoReferenceResolver() {
+    }
+
+    /**
+     * Lists the image files in the tree set in the preferences and resolves
+     * their georeference files.
+     *
+     * @param context The context.
+     * @return The list or null if there is no tree Uri set.
+     */
+    public static List<MapFile> resolve(Context context) {
+        Uri treeUri = ImageFileListActivity.getTreeUri(context);
+        if (treeUri == null) {
+            Utils.errMsg(context, "There is no tree Uri set");
+            return null;
+        }
+        return resolve(context, treeUri);
+    }
+
+    /**
+     * Lists the image files in the given tree and its subdirectories down
+     * to MAX_SCAN_DEPTH and resolves their georeference files. Each
+     * directory is listed with a single query that also fetches the MIME
+     * type, size, and last modified time, so no further queries are needed
+     * for the files. The subdirectories are listed in parallel on a
+     * bounded pool. A georeference file must be in the same directory as
+     * its image.
+     *
+     * @param context The context.
+     * @param treeUri The tree Uri.
+     * @return The list.
+     * @throws RuntimeException If a directory could not be listed or the
+     *                          thread was interrupted.
+     */
+    public static List<MapFile> resolve(Context context, Uri treeUri) {
+        final ContentResolver contentResolver = context.getContentResolver();
+        List<MapFile> images = new ArrayList<>();
+        CompletionService<DirListing> completionService =
+                new ExecutorCompletionService<>(sScanPool);
+        // For cancelling the listings that are left on failure
+        List<Future<DirListing>> futures = new ArrayList<>();
+        int nPending = 0;
+        futures.add(submitListing(completionService, contentResolver,
+                treeUri, DocumentsContract.getTreeDocumentId(treeUri), "",
+                0));
+        nPending++;
+        try {
+            while (nPending > 0) {
+                DirListing listing = completionService.take().get();
+                nPending--;
+                images.addAll(listing.images);
+                if (listing.depth >= MAX_SCAN_DEPTH) continue;
+                for (int k = 0; k < listing.subdirIds.size(); k++) {
+                    String name = listing.subdirNames.get(k);
+                    futures.add(submitListing(completionService,
+                            contentResolver, treeUri,
+                            listing.subdirIds.get(k),
+                            listing.folder.isEmpty() ? name :
+                                    listing.folder + "/" + name,
+                            listing.depth + 1));
+                    nPending++;
+                }
+            }
+        } catch (InterruptedException ex) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while listing", ex);
+        } catch (ExecutionException ex) {
+            cancelAll(futures);
+            // Report it as a listing failure
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return images;
+    }
+
+    private static Future<DirListing> submitListing(
+            CompletionService<DirListing> completionService,
+            final ContentResolver contentResolver, final Uri treeUri,
+            final String documentId, final String folder, final int depth) {
+        return completionService.submit(() -> listDirectory(contentResolver,
+                treeUri, documentId, folder, depth));
+    }
+
+    private static void cancelAll(List<Future<DirListing>> futures) {
+        for (Future<DirListing> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Lists the image files and subdirectories in one directory and
+     * resolves the georeference files of the images.
+     *
+     * @param contentResolver The ContentResolver.
+     * @param treeUri         The tree Uri.
+     * @param documentId      The document ID of the directory.
+     * @param folder          The path of the directory relative to the
+     *                        tree.
+     * @param depth           The depth of the directory, 0 for the tree.
+     * @return The DirListing.
+     */
+    private static DirListing listDirectory(ContentResolver contentResolver,
+                                            Uri treeUri, String documentId,
+                                            String folder, int depth) {
+        DirListing dirListing = new DirListing(folder, depth);
+        List<MapFile> images = dirListing.images;
+        Uri childrenUri =
+                DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+                        documentId);
+        // Georeference files keyed by lower-case base name
+        Map<String, Candidate> calibs = new HashMap<>();
+        Map<String, Candidate> worldFiles = new HashMap<>();
+        try (Cursor cursor = contentResolver.query(childrenUri,
+                new String[]{
+                        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+                        DocumentsContract.Document.COLUMN_MIME_TYPE,
+                        DocumentsContract.Document.COLUMN_SIZE,
+                },
+                null,
+                null,
+                null)) {
+            if (cursor == null) return dirListing;
+            String childId, displayName, baseName, ext, mimeType;
+            long modifiedTime, size;
+            int dot;
+            while (cursor.moveToNext()) {
+                childId = cursor.getString(0);
+                displayName = cursor.getString(1);
+                if (childId == null || displayName == null) continue;
+                mimeType = cursor.getString(3);
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
+                    dirListing.subdirIds.add(childId);
+                    dirListing.subdirNames.add(displayName);
+                    continue;
+                }
+                dot = displayName.lastIndexOf('.');
+                if (dot <= 0) continue;
+                ext = displayName.substring(dot + 1).toLowerCase(Locale.US);
+                baseName =
+                        displayName.substring(0, dot).toLowerCase(Locale.US);
+                modifiedTime = cursor.isNull(2) ? 0 : cursor.getLong(2);
+                size = cursor.isNull(4) ? -1 : cursor.getLong(4);
+                if (isImageExt(ext) || isImageMimeType(mimeType)) {
+                    Uri documentUri =
+                            DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                                    childId);
+                    if (documentUri == null) continue;
+                    images.add(new MapFile(documentUri, displayName, folder,
+                            mimeType, size, modifiedTime));
+                } else if (CALIB_EXT.equals(ext)) {
+                    calibs.put(baseName, new Candidate(childId, ext,
+                            modifiedTime));
+                } else if (isWorldFileExt(ext)) {
+                    Candidate old = worldFiles.get(baseName);
+                    // Keep all so the one matching the image is used
+                    Candidate candidate = new Candidate(childId, ext,
+                            modifiedTime);
+                    candidate.next = old;
+                    worldFiles.put(baseName, candidate);
+                }
+            }
+        }
+        // Pair them
+        String baseName, imageExt;
+        int dot;
+        for (MapFile image : images) {
+            dot = image.displayName.lastIndexOf('.');
+            baseName = image.displayName.substring(0, dot)
+                    .toLowerCase(Locale.US);
+            imageExt = image.displayName.substring(dot + 1)
+                    .toLowerCase(Locale.US);
+            Candidate candidate = calibs.get(baseName);
+            if (candidate != null) {
+                image.setGeoReference(GEOREF_CALIB,
+                        DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                                candidate.documentId), candidate.modifiedTime);
+                continue;
+            }
+            for (candidate = worldFiles.get(baseName); candidate != null;
+                 candidate = candidate.next) {
+                if (worldFileMatches(candidate.ext, imageExt)) {
+                    image.setGeoReference(GEOREF_WORLD_FILE,
+                            DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                                    candidate.documentId),
+                            candidate.modifiedTime);
+                    break;
+                }
+            }
+        }
+        return dirListing;
+    }
+
+    /**
+     * Finds the georeference file for a single image. If the last listing
+     * stored in the MapIndex has a .calib file for the image, it is used
+     * and only its modified time is checked. Otherwise the directory of
+     * the image is listed with a single query and the files are paired as
+     * in resolve, so a .calib file added since the listing takes
+     * precedence over a world file. Use resolve for more than one image.
+     *
+     * @param context The context.
+     * @param uri     The image Uri.
+     * @return The MapFile, with type GEOREF_NONE if there is no
+     * georeference file and a negative modified time if the image does not
+     * exist.
+     */
+    public static MapFile find(Context context, Uri uri) {
+        MapIndex.load(context);
+        MapIndex.ListingRecord record = MapIndex.getListingRecord(uri);
+        String displayName = record != null ? record.displayName :
+                UriUtils.getFileNameFromUri(uri);
+        MapFile mapFile = new MapFile(uri, displayName,
+                record != null ? record.folder : "",
+                record != null ? record.mimeType : null,
+                record != null ? record.size : -1,
+                UriUtils.getLastModified(context, uri));
+        if (mapFile.modifiedTime < 0) return mapFile;
+        if (record != null && record.georefType == GEOREF_CALIB) {
+            long modifiedTime = UriUtils.getLastModified(context,
+                    record.georefUri);
+            if (modifiedTime >= 0) {
+                mapFile.setGeoReference(GEOREF_CALIB, record.georefUri,
+                        modifiedTime);
+                return mapFile;
+            }
+        }
+        MapFile listed = findInDirectory(context, uri);
+        if (listed != null) {
+            if (listed.hasGeoReference()) {
+                mapFile.setGeoReference(listed.getGeorefType(),
+                        listed.getGeorefUri(),
+                        listed.getGeorefModifiedTime());
+            }
+        } else if (record != null && record.georefUri != null) {
+            // Could not list the directory, so use the listing
+            long modifiedTime = UriUtils.getLastModified(context,
+                    record.georefUri);
+            if (modifiedTime >= 0) {
+                mapFile.setGeoReference(record.georefType, record.georefUri,
+                        modifiedTime);
+            }
+        }
+        Log.d(TAG, "GeoReferenceResolver.find: " + mapFile.displayName
+                + " georefType=" + mapFile.georefType);
+        return mapFile;
+    }
+
+    /**
+     * Lists the directory that contains the given image and returns the
+     * image from the listing with its georeference file resolved. The
+     * parent directory is found from the document path, so it works with
+     * any document IDs.
+     *
+     * @param context The context.
+     * @param uri     The image Uri, which must be a tree document Uri.
+     * @return The MapFile or null if the directory could not be listed or
+     * does not contain the image.
+     */
+    private static MapFile findInDirectory(Context context, Uri uri) {
+        ContentResolver contentResolver = context.getContentResolver();
+        try {
+            if (!DocumentsContract.isTreeUri(uri)) return null;
+            DocumentsContract.Path path =
+                    DocumentsContract.findDocumentPath(contentResolver, uri);
+            List<String> ids = path == null ? null : path.getPath();
+            if (ids == null || ids.size() < 2) return null;
+            String documentId = ids.get(ids.size() - 1);
+            DirListing listing = listDirectory(contentResolver, uri,
+                    ids.get(ids.size() - 2), "", 0);
+            for (MapFile image : listing.images) {
+                if (documentId.equals(
+                        DocumentsContract.getDocumentId(image.uri))) {
+                    return image;
+                }
+            }
+        } catch (Exception ex) {
+            Log.d(TAG, "GeoReferenceResolver.findInDirectory: Failed to "
+                    + "list the directory of " + uri + ": " + ex);
+        }
+        return null;
+    }
+
+    private static boolean isImageExt(String ext) {
+        for (String imageExt : IMAGE_EXTS) {
+            if (imageExt.equals(ext)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isImageMimeType(String mimeType) {
+        if (mimeType == null) return false;
+        for (String imageMimeType : IMAGE_MIME_TYPES) {
+            if (imageMimeType.equals(mimeType)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param ext A lower-case extension.
+     * @return Whether it is a world file extension.
+     */
+    private static boolean isWorldFileExt(String ext) {
+        if ("wld".equals(ext)) return true;
+        for (String[] worldExts : WORLD_FILE_EXTS) {
+            for (int j = 1; j < worldExts.length; j++) {
+                if (worldExts[j].equals(ext)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean worldFileMatches(String worldExt, String imageExt) {
+        if ("wld".equals(worldExt)) return true;
+        for (String[] worldExts : WORLD_FILE_EXTS) {
+            if (!worldExts[0].equals(imageExt)) continue;
+            for (int j = 1; j < worldExts.length; j++) {
+                if (worldExts[j].equals(worldExt)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The result of listing one directory.
+     */
+    private static class DirListing {
+        final String folder;
+        final int depth;
+        final List<MapFile> images = new ArrayList<>();
+        final List<String> subdirIds = new ArrayList<>();
+        final List<String> subdirNames = new ArrayList<>();
+
+        DirListing(String folder, int depth) {
+            this.folder = folder;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * A possible georeference file found in the listing.
+     */
+    private static class Candidate {
+        final String documentId;
+        final String ext;
+        final long modifiedTime;
+        Candidate next;
+
+        Candidate(String documentId, String ext, long modifiedTime) {
+            this.documentId = documentId;
+            this.ext = ext;
+            this.modifiedTime = modifiedTime;
+        }
+    }
+
+    /**
+     * An image file and its georeference file, if any.
+     */
+    public static class MapFile {
+        final public Uri uri;
+        final public String displayName;
+        /**
+         * The path of the directory containing the image relative to the
+         * tree, with / as separator, or "" for the top level.
+         */
+        final public String folder;
+        /**
+         * The MIME type reported by the provider or null if unknown.
+         */
+        final public String mimeType;
+        /**
+         * The size in bytes or -1 if unknown.
+         */
+        final public long size;
+        /**
+         * The last modified time of the image, 0 if unknown, or -1 if the
+         * image does not exist.
+         */
+        final public long modifiedTime;
+        private int georefType = GEOREF_NONE;
+        private Uri georefUri;
+        private long georefModifiedTime = -1;
+
+        MapFile(Uri uri, String displayName, String folder, String mimeType,
+                long size, long modifiedTime) {
+            this.uri = uri;
+            this.displayName = displayName;
+            this.folder = folder;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
+
+        void setGeoReference(int type, Uri uri, long modifiedTime) {
+            this.georefType = type;
+            this.georefUri = uri;
+            this.georefModifiedTime = modifiedTime;
+        }
+
+        /**
+         * @return One of the GEOREF_ constants.
+         */
+        public int getGeorefType() {
+            return georefType;
+        }
+
+        /**
+         * @return The Uri of the georeference file or null if there is
+         * none.
+         */
+        public Uri getGeorefUri() {
+            return georefUri;
+        }
+
+        /**
+         * @return The last modified time of the georeference file, 0 if
+         * unknown.
+         */
+        public long getGeorefModifiedTime() {
+            return georefModifiedTime;
+        }
+
+        public boolean hasGeoReference() {
+            return georefType != GEOREF_NONE;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package net.kenevans.android.mapimage;
+
+import net.kenevans.android.mapimage.MapCalibration.MapTransform;
+
+/**
+ * Converts between pixel coordinates and longitude and latitude in both
+ * directions for a single calibration, one point at a time or in batches.
+ * Pixel coordinates in batches are interleaved as x0, y0, x1, y1, ... and
+ * longitudes and latitudes are in separate arrays.
+ * <p>
+ * The conversions do not allocate. Reusable buffers for batch input and
+ * output may be obtained from the get...Buffer methods. They grow as
+ * needed and are shared by all users of this object, so they are only
+ * valid until the next call for the same buffer. Not thread safe.
+ */
+public class GeoTransform {
+    private final CalibrationModel model;
+    /**
+     * The model if it is a plain affine transform, else null.
+     */
+    private final MapTransform affine;
+    private final double[] scratch = new double[2];
+    private double[] lonBuffer = new double[0];
+    private double[] latBuffer = new double[0];
+    private float[] floatPixelBuffer = new float[0];
+    private double[] doublePixelBuffer = new double[0];
+
+    /**
+     * @param model The calibration model.
+     */
+    public GeoTransform(CalibrationModel model) {
+        this.model = model;
+        this.affine = model instanceof MapTransform ? (MapTransform) model :
+                null;
+    }
+
+    public CalibrationModel getModel() {
+        return model;
+    }
+
+    /**
+     * Converts pixel coordinates to longitude and latitude.
+     *
+     * @param x      The x pixel coordinate.
+     * @param y      The y pixel coordinate.
+     * @param lonLat Array of length at least 2 to receive {lon, lat}.
+     * @return Whether the values were set.
+     */
+    public boolean toGeo(double x, double y, double[] lonLat) {
+        return model.forward(x, y, lonLat);
+    }
+
+    /**
+     * Converts longitude and latitude to pixel coordinates.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @param xy  Array of length at least 2 to receive {x, y}.
+     * @return Whether the values were set.
+     */
+    public boolean toPixel(double lon, double lat, double[] xy) {
+        return model.inverse(lon, lat, xy);
+    }
+
+    /**
+     * Converts longitude and latitude to pixel coordinates rounded to the
+     * nearest pixel.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @param xy  Array of length at least 2 to receive {x, y}.
+     * @return Whether the values were set.
+     */
+    public boolean toPixel(double lon, double lat, int[] xy) {
+        if (affine != null) return affine.inverse(lon, lat, xy);
+        if (!model.inverse(lon, lat, scratch)) return false;
+        xy[0] = (int) (scratch[0] + .5);
+        xy[1] = (int) (scratch[1] + .5);
+        return true;
+    }
+
+    /**
+     * Converts longitude and latitude to pixel coordinates.
+     *
+     * @param lon    The longitude.
+     * @param lat    The latitude.
+     * @param xy     Array to receive x at offset and y at offset + 1.
+     * @param offset The offset.
+     * @return Whether the values were set.
+     */
+    public boolean toPixel(double lon, double lat, float[] xy, int offset) {
+        if (!model.inverse(lon, lat, scratch)) return false;
+        xy[offset] = (float) scratch[0];
+        xy[offset + 1] = (float) scratch[1];
+        return true;
+    }
+
+    /**
+     * Converts arrays of longitude and latitude to pixel coordinates. Points
+     * that cannot be converted are set to NaN.
+     *
+     * @param lons The longitudes.
+     * @param lats The latitudes.
+     * @param n    The number of points.
+     * @param xy   Array of length at least 2 * n to receive x0, y0, x1,
+     *             y1, ...
+     * @return The number of points converted.
+     */
+    public int toPixel(double[] lons, double[] lats, int n, float[] xy) {
+        return model.inverse(lons, lats, n, xy);
+    }
+
+    /**
+     * Converts arrays of longitude and latitude to pixel coordinates. Points
+     * that cannot be converted are set to NaN.
+     *
+     * @param lons The longitudes.
+     * @param lats The latitudes.
+     * @param n    The number of points.
+     * @param xy   Array of length at least 2 * n to receive x0, y0, x1,
+     *             y1, ...
+     * @return The number of points converted.
+     */
+    public int toPixel(double[] lons, double[] lats, int n, double[] xy) {
+        int nConverted = 0;
+        for (int i = 0, j = 0; i < n; i++, j += 2) {
+            if (model.inverse(lons[i], lats[i], scratch)) {
+                xy[j] = scratch[0];
+                xy[j + 1] = scratch[1];
+                nConverted++;
+            } else {
+                xy[j] = xy[j + 1] = Double.NaN;
+            }
+        }
+        return nConverted;
+    }
+
+    /**
+     * Converts pixel coordinates to arrays of longitude and latitude. Points
+     * that cannot be converted are set to NaN.
+     *
+     * @param xy   The pixel coordinates x0, y0, x1, y1, ...
+     * @param n    The number of points.
+     * @param lons Array to receive the longitudes.
+     * @param lats Array to receive the latitudes.
+     * @return The number of points converted.
+     */
+    public int toGeo(float[] xy, int n, double[] lons, double[] lats) {
+        int nConverted = 0;
+        for (int i = 0, j = 0; i < n; i++, j += 2) {
+            if (model.forward(xy[j], xy[j + 1], scratch)) {
+                lons[i] = scratch[0];
+                lats[i] = scratch[1];
+                nConverted++;
+            } else {
+                lons[i] = lats[i] = Double.NaN;
+            }
+        }
+        return nConverted;
+    }
+
+    /**
+     * Converts pixel coordinates to arrays of longitude and latitude. Points
+     * that cannot be converted are set to NaN.
+     *
+     * @param xy   The pixel coordinates x0, y0, x1, y1, ...
+     * @param n    The number of points.
+     * @param lons Array to receive the longitudes.
+     * @param lats Array to receive the latitudes.
+     * @return The number of points converted.
+     */
+    public int toGeo(double[] xy, int n, double[] lons, double[] lats) {
+        int nConverted = 0;
+        for (int i = 0, j = 0; i < n; i++, j += 2) {
+            if (model.forward(xy[j], xy[j + 1], scratch)) {
+                lons[i] = scratch[0];
+                lats[i] = scratch[1];
+                nConverted++;
+            } else {
+                lons[i] = lats[i] = Double.NaN;
+            }
+        }
+        return nConverted;
+    }
+
+    /**
+     * @param n The number of points.
+     * @return A reusable longitude buffer of length at least n.
+     */
+    public double[] getLonBuffer(int n) {
+        if (lonBuffer.length < n) lonBuffer = new double[grow(n)];
+        return lonBuffer;
+    }
+
+    /**
+     * @param n The number of points.
+     * @return A reusable latitude buffer of length at least n.
+     */
+    public double[] getLatBuffer(int n) {
+        if (latBuffer.length < n) latBuffer = new double[grow(n)];
+        return latBuffer;
+    }
+
+    /**
+     * @param n The number of points.
+     * @return A reusable pixel buffer of length at least 2 * n.
+     */
+    public float[] getFloatPixelBuffer(int n) {
+        if (floatPixelBuffer.length < 2 * n) {
+            floatPixelBuffer = new float[2 * grow(n)];
+        }
+        return floatPixelBuffer;
+    }
+
+    /**
+     * @param n The number of points.
+     * @return A reusable pixel buffer of length at least 2 * n.
+     */
+    public double[] getDoublePixelBuffer(int n) {
+        if (doublePixelBuffer.length < 2 * n) {
+            doublePixelBuffer = new double[2 * grow(n)];
+        }
+        return doublePixelBuffer;
+    }
+
+    /**
+     * Gets a buffer size with room to grow so that buffers for a growing
+     * track are not reallocated on every call.
+     *
+     * @param n The required number of points.
+     * @return The size to allocate.
+     */
+    private static int grow(int n) {
+        return Math.max(16, n + (n >> 1));
+    }
+}
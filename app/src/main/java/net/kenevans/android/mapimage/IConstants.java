@@ -82,6 +82,33 @@ interface IConstants {
      */
     int MIN_DPI = 20;
 
+    /**
+     * Maximum number of images listed when some could not be indexed.
+     */
+    int MAX_FAILURES_SHOWN = 10;
+
+    /**
+     * Distance in m the location must be outside the current image before
+     * switching to another in auto switch mode.
+     */
+    double AUTO_SWITCH_MARGIN = 25;
+
+    /**
+     * Minimum time in ms between automatic switches.
+     */
+    long AUTO_SWITCH_MIN_INTERVAL = 5000;
+
+    /**
+     * Choices for the distance in m from the edge of the current image at
+     * which the next image is preloaded. 0 is off.
+     */
+    int[] PRELOAD_DISTANCES = {0, 100, 250, 500, 1000};
+
+    /**
+     * Index into PRELOAD_DISTANCES of the default.
+     */
+    int PRELOAD_DISTANCE_DEFAULT = 2;
+
     /**
      * Directory on the SD card where strips are saved
      */
@@ -93,8 +120,10 @@ interface IConstants {
     String PREF_USE_LOCATION = "useLocation";
     String PREF_USE_BACKGROUND_LOCATION = "useBackgroundLocation";
     String PREF_TRACKING = "tracking";
+    String PREF_AUTO_SWITCH = "autoSwitch";
     String PREF_IMAGE_URI = "imageUri";
     String PREF_UPDATE_INTERVAL = "updateInterval";
+    String PREF_PRELOAD_DISTANCE = "preloadDistance";
     String PREF_SCALE = "scale";
     String PREF_CENTER_X = "centerX";
     String PREF_CENTER_Y = "centerY";
@@ -22,29 +22,66 @@
 package net.kenevans.android.mapimage;
 
 import android.app.Activity;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.DocumentsContract;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
-import android.widget.ArrayAdapter;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.TextView;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import androidx.appcompat.app.AppCompatActivity;
 
 public class ImageFileListActivity extends AppCompatActivity implements IConstants {
     /**
-     * Holds the list of files.
+     * Holds the list of files sorted by path.
      */
     private List<UriData> mUriList = new ArrayList<>();
+    /**
+     * The files that match the search text.
+     */
+    private List<UriData> mShownList = mUriList;
+    /**
+     * Index of the words in the paths in mUriList.
+     */
+    private MapNameIndex mNameIndex;
     private ListView mListView;
+    private EditText mSearchText;
+    private final UriDataAdapter mAdapter = new UriDataAdapter();
+    /**
+     * Loads the list and filters it in the background.
+     */
+    private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Future<?> mFilterFuture;
+    /**
+     * The MapIndexer update started by reset or null.
+     */
+    private MapIndexer.Task mIndexTask;
+    /**
+     * Incremented for each filter so results for stale queries are not
+     * shown.
+     */
+    private int mFilterGeneration;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -60,6 +97,24 @@ public class ImageFileListActivity extends AppCompatActivity implements IConstan
 
         setContentView(R.layout.list_view);
         mListView = findViewById(R.id.mainListView);
+        mListView.setAdapter(mAdapter);
+        mSearchText = findViewById(R.id.search_text);
+        mSearchText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start,
+                                          int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before,
+                                      int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                filter();
+            }
+        });
 
         // Set result CANCELED in case the user backs out
         setResult(Activity.RESULT_CANCELED);
@@ -68,88 +123,100 @@ public class ImageFileListActivity extends AppCompatActivity implements IConstan
         reset();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mIndexTask != null) {
+            mIndexTask.cancel();
+            mIndexTask = null;
+        }
+        mExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
     /**
-     * Get the list of available image files.
+     * Gets the tree Uri for the image directory from the preferences.
      *
      * @param context The context.
-     * @return The list.
+     * @return The tree Uri or null if it is not set.
      */
-    public static List<UriData> getUriList(Context context) {
-        ContentResolver contentResolver = context.getContentResolver();
+    public static Uri getTreeUri(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(
                 "MapImageActivity", MODE_PRIVATE);
         String treeUriStr = prefs.getString(PREF_TREE_URI, null);
-        if (treeUriStr == null) {
-            Utils.errMsg(context, "There is no tree Uri set");
-            return null;
+        return treeUriStr == null ? null : Uri.parse(treeUriStr);
+    }
+
+    /**
+     * Get the list of available image files.
+     *
+     * @param context The context.
+     * @return The list.
+     */
+    public static List<UriData> getUriList(Context context) {
+        List<GeoReferenceResolver.MapFile> mapFiles =
+                GeoReferenceResolver.resolve(context);
+        if (mapFiles == null) return null;
+        List<UriData> uriList = new ArrayList<>(mapFiles.size());
+        for (GeoReferenceResolver.MapFile mapFile : mapFiles) {
+            uriList.add(new UriData(mapFile.uri, mapFile.displayName,
+                    mapFile.folder, mapFile.mimeType, mapFile.size,
+                    mapFile.modifiedTime, mapFile.getGeorefUri()));
         }
-        Uri treeUri = Uri.parse(treeUriStr);
-        Uri childrenUri =
-                DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
-                        DocumentsContract.getTreeDocumentId(treeUri));
-        List<UriData> uriList = new ArrayList<>();
-        String lastSeg;
-        try (Cursor cursor = contentResolver.query(childrenUri,
-                new String[]{
-                        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
-                },
-                null,
-                null,
-                null)) {
-            String documentId;
-            Uri documentUri;
-            String displayName;
-            while (cursor.moveToNext()) {
-                documentId = cursor.getString(0);
-                documentUri =
-                        DocumentsContract.buildDocumentUriUsingTree(treeUri,
-                                documentId);
-                if (documentUri == null) continue;
-                displayName = cursor.getString(1);
-                String lastPathSegment = documentUri.getLastPathSegment();
-                if (lastPathSegment == null) continue;
-                lastSeg = lastPathSegment.toLowerCase();
-
-                if (lastSeg.endsWith("jpg") ||
-                        lastSeg.endsWith("jpeg") ||
-                        lastSeg.endsWith("png") ||
-                        lastSeg.endsWith("gif")
-                ) uriList.add(new UriData(documentUri, displayName));
-            }
+        return uriList;
+    }
+
+    /**
+     * Get the list of image files from the last listing stored in the
+     * MapIndex, without querying the image directory.
+     *
+     * @param context The context.
+     * @return The list or null if there is no listing for the current
+     * image directory.
+     */
+    public static List<UriData> getIndexedUriList(Context context) {
+        MapIndex.load(context);
+        if (!MapIndex.isComplete(getTreeUri(context))) return null;
+        Map<String, MapIndex.ListingRecord> listing = MapIndex.getListing();
+        List<UriData> uriList = new ArrayList<>(listing.size());
+        for (MapIndex.ListingRecord record : listing.values()) {
+            uriList.add(new UriData(record.uri, record.displayName,
+                    record.folder, record.mimeType, record.size,
+                    record.modifiedTime, record.georefUri));
         }
-        // Do nothing
         return uriList;
     }
 
     /**
-     * Resets the file list.
+     * Resets the file list. The stored listing is shown if there is one,
+     * and the list is refreshed when the MapIndexer finds changes.
      */
     private void reset() {
         Log.d(TAG, this.getClass().getSimpleName() + ": reset: "
                 + "mListView=" + mListView);
-        // Get the available image files
-        try {
-            mUriList = getUriList(this);
-            // Sort them by display name
-            mUriList.sort((data1, data2) -> data1.displayName.compareTo(data2.displayName));
-        } catch (Exception ex) {
-            Utils.excMsg(this, "Failed to get list of available files", ex);
+        if (getTreeUri(this) == null) {
+            Utils.errMsg(this, "There is no tree Uri set");
+        } else {
+            // Get the available image files
+            loadList(true);
+            if (mIndexTask != null) mIndexTask.cancel();
+            mIndexTask = MapIndexer.start(this, result -> {
+                // The Activity may have been destroyed by a rotation
+                if (result.getChangeCount() == 0 || isDestroyed()) return;
+                Log.d(TAG, ImageFileListActivity.this.getClass()
+                        .getSimpleName() + ": MapIndex updated: nChanges="
+                        + result.getChangeCount());
+                loadList(false);
+            });
         }
 
-        // Set the ListAdapter
-        ArrayAdapter<UriData> fileList = new ArrayAdapter<>(this,
-                R.layout.row, mUriList);
-        mListView.setAdapter(fileList);
-
         mListView.setOnItemClickListener((parent, view, pos, id) -> {
-            if (pos < 0 || pos >= mUriList.size()) {
+            if (pos < 0 || pos >= mShownList.size()) {
                 return;
             }
             // Create the result Intent and include the fileName
             Intent intent = new Intent();
             intent.putExtra(EXTRA_IMAGE_URI,
-                    mUriList.get(pos).uri.toString());
+                    mShownList.get(pos).uri.toString());
             // Set result and finish this Activity
             setResult(Activity.RESULT_OK, intent);
             finish();
@@ -157,21 +224,189 @@ public class ImageFileListActivity extends AppCompatActivity implements IConstan
     }
 
     /**
-     * Convenience class for managing Uri information.
+     * Gets the list, sorts it by path, and builds the MapNameIndex in the
+     * background, then shows it.
+     *
+     * @param queryIfNotIndexed Whether to list the image directory if
+     *                          there is no stored listing.
+     */
+    private void loadList(final boolean queryIfNotIndexed) {
+        if (mExecutor.isShutdown()) return;
+        final Context context = getApplicationContext();
+        mExecutor.execute(() -> {
+            final List<UriData> uriList;
+            final MapNameIndex nameIndex;
+            try {
+                List<UriData> list = getIndexedUriList(context);
+                if (list == null && queryIfNotIndexed) {
+                    list = getUriList(context);
+                }
+                if (list == null) return;
+                // Sort them by path so each folder is together
+                list.sort((data1, data2) -> {
+                    int val = data1.getPath().compareToIgnoreCase(
+                            data2.getPath());
+                    return val != 0 ? val :
+                            data1.getPath().compareTo(data2.getPath());
+                });
+                List<String> paths = new ArrayList<>(list.size());
+                for (UriData data : list) {
+                    paths.add(data.getPath());
+                }
+                nameIndex = new MapNameIndex(paths);
+                uriList = list;
+            } catch (Exception ex) {
+                mHandler.post(() -> {
+                    if (isDestroyed()) return;
+                    Utils.excMsg(ImageFileListActivity.this,
+                            "Failed to get list of available files", ex);
+                });
+                return;
+            }
+            mHandler.post(() -> {
+                if (isDestroyed()) return;
+                mUriList = uriList;
+                mNameIndex = nameIndex;
+                filter();
+            });
+        });
+    }
+
+    /**
+     * Shows the files that match the search text. The matching is done in
+     * the background, and a filter that has not finished is cancelled.
+     */
+    private void filter() {
+        final String query = mSearchText.getText().toString();
+        final List<UriData> uriList = mUriList;
+        final MapNameIndex nameIndex = mNameIndex;
+        final int generation = ++mFilterGeneration;
+        if (mFilterFuture != null) mFilterFuture.cancel(true);
+        if (nameIndex == null || mExecutor.isShutdown()) return;
+        mFilterFuture = mExecutor.submit(() -> {
+            int[] matches = nameIndex.find(query);
+            final List<UriData> shownList;
+            if (matches == null) {
+                shownList = uriList;
+            } else {
+                shownList = new ArrayList<>(matches.length);
+                for (int match : matches) {
+                    shownList.add(uriList.get(match));
+                }
+            }
+            if (Thread.currentThread().isInterrupted()) return;
+            mHandler.post(() -> {
+                if (generation != mFilterGeneration || isDestroyed()) {
+                    return;
+                }
+                mShownList = shownList;
+                mAdapter.notifyDataSetChanged();
+            });
+        });
+    }
+
+    /**
+     * Adapter that binds a row with a thumbnail and the path when it is
+     * shown, reusing the views of rows that have scrolled off.
+     */
+    private class UriDataAdapter extends BaseAdapter {
+        @Override
+        public int getCount() {
+            return mShownList.size();
+        }
+
+        @Override
+        public UriData getItem(int position) {
+            return mShownList.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView,
+                            ViewGroup parent) {
+            ViewHolder holder;
+            if (convertView == null) {
+                convertView = LayoutInflater.from(ImageFileListActivity.this)
+                        .inflate(R.layout.thumbnail_row, parent, false);
+                holder = new ViewHolder();
+                holder.thumbnail = convertView.findViewById(R.id.thumbnail);
+                holder.text = convertView.findViewById(R.id.thumbnail_row_text);
+                convertView.setTag(holder);
+            } else {
+                holder = (ViewHolder) convertView.getTag();
+            }
+            UriData data = getItem(position);
+            holder.text.setText(data.getPath());
+            ThumbnailCache.bind(holder.thumbnail, data.uri, data.modifiedTime);
+            return convertView;
+        }
+    }
+
+    /**
+     * The views in a row.
+     */
+    private static class ViewHolder {
+        ImageView thumbnail;
+        TextView text;
+    }
+
+    /**
+     * Convenience class for managing Uri information. It holds what the
+     * listing returns, so no further queries are needed for the file.
      */
     public static class UriData {
         final public Uri uri;
         final public String displayName;
+        /**
+         * The directory path relative to the image directory, or "" for
+         * the top level.
+         */
+        final public String folder;
+        /**
+         * The MIME type or null if unknown.
+         */
+        final public String mimeType;
+        /**
+         * The size in bytes or -1 if unknown.
+         */
+        final public long size;
+        final public long modifiedTime;
+        /**
+         * The calibration or world file Uri or null if there is none.
+         */
+        final public Uri georefUri;
 
-        UriData(Uri uri, String displayName) {
+        UriData(Uri uri, String displayName, String folder, String mimeType,
+                long size, long modifiedTime, Uri georefUri) {
             this.uri = uri;
             this.displayName = displayName;
+            this.folder = folder;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.georefUri = georefUri;
+        }
+
+        public boolean hasGeoReference() {
+            return georefUri != null;
+        }
+
+        /**
+         * @return The display name preceded by the folder, if any.
+         */
+        public String getPath() {
+            return folder.isEmpty() ? displayName :
+                    folder + "/" + displayName;
         }
 
         @androidx.annotation.NonNull
         @Override
         public String toString() {
-            return displayName;
+            return getPath();
         }
     }
 }
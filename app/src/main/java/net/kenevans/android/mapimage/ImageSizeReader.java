@@ -0,0 +1,296 @@
+package net.kenevans.android.mapimage;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Gets the width and height of an image from its header without decoding
+ * it. PNG, JPEG, GIF, and WebP are parsed directly using positional reads
+ * of a few bytes at a time into a small fixed buffer, so only the header
+ * blocks are read. For JPEG the segments before the frame header are
+ * skipped rather than read. Other images, or files that cannot be read by
+ * position, fall back to BitmapFactory with inJustDecodeBounds.
+ * <p>
+ * The results are memoized by document ID and last modified time.
+ */
+public class ImageSizeReader implements IConstants {
+    /**
+     * Enough for the largest header block read.
+     */
+    private static final int BUFFER_SIZE = 32;
+    /**
+     * Maximum number of JPEG segments to skip looking for the frame header.
+     */
+    private static final int MAX_JPEG_SEGMENTS = 256;
+    private static final int MEMO_SIZE = 1024;
+
+    /**
+     * The memoized sizes as {modifiedTime, width, height} keyed by document
+     * ID.
+     */
+    private static final LruCache<String, long[]> sMemo =
+            new LruCache<>(MEMO_SIZE);
+
+    private ImageSizeReader() {
+    }
+
+    /**
+     * Gets the width and height of an image.
+     *
+     * @param context      The context.
+     * @param uri          The image Uri.
+     * @param modifiedTime The last modified time of the image. The result
+     *                     is only memoized if it is positive.
+     * @param size         Array of length at least 2 to receive {width,
+     *                     height}.
+     * @return If the size was found.
+     */
+    public static boolean read(Context context, Uri uri, long modifiedTime,
+                               int[] size) {
+        String key = getKey(uri);
+        if (modifiedTime > 0) {
+            long[] memo = sMemo.get(key);
+            if (memo != null && memo[0] == modifiedTime) {
+                size[0] = (int) memo[1];
+                size[1] = (int) memo[2];
+                return true;
+            }
+        }
+        boolean found = false;
+        try (ParcelFileDescriptor pfd =
+                     context.getContentResolver().openFileDescriptor(uri,
+                             "r")) {
+            if (pfd != null) {
+                try (FileInputStream in =
+                             new FileInputStream(pfd.getFileDescriptor())) {
+                    found = readHeader(in.getChannel(), size);
+                }
+            }
+        } catch (Exception ex) {
+            // Not seekable or not readable, try BitmapFactory
+            Log.d(TAG, "ImageSizeReader: Cannot read header of "
+                    + uri.getLastPathSegment() + ": " + ex);
+        }
+        if (!found) {
+            found = decodeBounds(context, uri, size);
+        }
+        if (found && modifiedTime > 0) {
+            sMemo.put(key, new long[]{modifiedTime, size[0], size[1]});
+        }
+        return found;
+    }
+
+    /**
+     * Removes all memoized sizes.
+     */
+    public static void clear() {
+        sMemo.evictAll();
+    }
+
+    private static String getKey(Uri uri) {
+        try {
+            return DocumentsContract.getDocumentId(uri);
+        } catch (Exception ex) {
+            return uri.toString();
+        }
+    }
+
+    /**
+     * Gets the size using BitmapFactory, which reads from a stream.
+     *
+     * @param context The context.
+     * @param uri     The image Uri.
+     * @param size    Array to receive {width, height}.
+     * @return If the size was found.
+     */
+    private static boolean decodeBounds(Context context, Uri uri,
+                                        int[] size) {
+        try (InputStream inputStream =
+                     context.getContentResolver().openInputStream(uri)) {
+            // Get the bitmap dimensions without loading the Bitmap
+            BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+            bmOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(inputStream, null, bmOptions);
+            size[0] = bmOptions.outWidth;
+            size[1] = bmOptions.outHeight;
+        } catch (Exception ex) {
+            Log.d(TAG, "ImageSizeReader: Error getting Bitmap dimensions " +
+                    "for " + uri.getLastPathSegment() + ": " + ex);
+            return false;
+        }
+        return size[0] > 0 && size[1] > 0;
+    }
+
+    /**
+     * Parses the header of a PNG, JPEG, GIF, or WebP image.
+     *
+     * @param channel The channel to read from by position.
+     * @param size    Array to receive {width, height}.
+     * @return If the size was found.
+     * @throws IOException On a read error.
+     */
+    static boolean readHeader(FileChannel channel, int[] size)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        int n = readAt(channel, buf, 0, 30);
+        if (n < 10) return false;
+        byte[] b = buf.array();
+        boolean found;
+        if (n >= 24 && u8(b, 0) == 0x89 && b[1] == 'P' && b[2] == 'N'
+                && b[3] == 'G' && b[12] == 'I' && b[13] == 'H'
+                && b[14] == 'D' && b[15] == 'R') {
+            size[0] = (int) u32be(b, 16);
+            size[1] = (int) u32be(b, 20);
+            found = true;
+        } else if (b[0] == 'G' && b[1] == 'I' && b[2] == 'F'
+                && b[3] == '8') {
+            size[0] = u16le(b, 6);
+            size[1] = u16le(b, 8);
+            found = true;
+        } else if (n >= 30 && b[0] == 'R' && b[1] == 'I' && b[2] == 'F'
+                && b[3] == 'F' && b[8] == 'W' && b[9] == 'E' && b[10] == 'B'
+                && b[11] == 'P') {
+            found = readWebP(b, size);
+        } else if (u8(b, 0) == 0xFF && u8(b, 1) == 0xD8) {
+            found = readJpeg(channel, buf, size);
+        } else {
+            found = false;
+        }
+        return found && size[0] > 0 && size[1] > 0;
+    }
+
+    /**
+     * Parses the first chunk of a WebP image.
+     *
+     * @param b    The first 30 bytes.
+     * @param size Array to receive {width, height}.
+     * @return If the size was found.
+     */
+    private static boolean readWebP(byte[] b, int[] size) {
+        if (b[12] != 'V' || b[13] != 'P' || b[14] != '8') return false;
+        switch (b[15]) {
+            case ' ':
+                // Lossy: frame tag, then start code 9d 01 2a
+                if (u8(b, 23) != 0x9D || u8(b, 24) != 0x01
+                        || u8(b, 25) != 0x2A) {
+                    return false;
+                }
+                size[0] = u16le(b, 26) & 0x3FFF;
+                size[1] = u16le(b, 28) & 0x3FFF;
+                return true;
+            case 'L':
+                // Lossless: signature, then 14 bits each of width - 1 and
+                // height - 1
+                if (u8(b, 20) != 0x2F) return false;
+                long bits = u32le(b, 21);
+                size[0] = (int) (bits & 0x3FFF) + 1;
+                size[1] = (int) ((bits >> 14) & 0x3FFF) + 1;
+                return true;
+            case 'X':
+                // Extended: 24 bits each of canvas width - 1 and height - 1
+                size[0] = u24le(b, 24) + 1;
+                size[1] = u24le(b, 27) + 1;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Finds the SOFn segment of a JPEG image, skipping the segments before
+     * it.
+     *
+     * @param channel The channel.
+     * @param buf     The buffer.
+     * @param size    Array to receive {width, height}.
+     * @return If the size was found.
+     * @throws IOException On a read error.
+     */
+    private static boolean readJpeg(FileChannel channel, ByteBuffer buf,
+                                    int[] size) throws IOException {
+        byte[] b = buf.array();
+        long pos = 2;
+        for (int i = 0; i < MAX_JPEG_SEGMENTS; i++) {
+            if (readAt(channel, buf, pos, 9) < 4) return false;
+            if (u8(b, 0) != 0xFF) return false;
+            int marker = u8(b, 1);
+            if (marker == 0xFF) {
+                // Fill byte
+                pos++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // No length
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // End of image or start of scan before a frame header
+                return false;
+            }
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4
+                    && marker != 0xC8 && marker != 0xCC) {
+                if (readAt(channel, buf, pos, 9) < 9) return false;
+                size[1] = u16be(b, 5);
+                size[0] = u16be(b, 7);
+                return true;
+            }
+            pos += 2 + u16be(b, 2);
+        }
+        return false;
+    }
+
+    /**
+     * Reads up to len bytes at the given position into the start of the
+     * buffer.
+     *
+     * @return The number of bytes read.
+     */
+    private static int readAt(FileChannel channel, ByteBuffer buf, long pos,
+                              int len) throws IOException {
+        buf.clear();
+        buf.limit(len);
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    private static int u8(byte[] b, int off) {
+        return b[off] & 0xFF;
+    }
+
+    private static int u16be(byte[] b, int off) {
+        return (u8(b, off) << 8) | u8(b, off + 1);
+    }
+
+    private static int u16le(byte[] b, int off) {
+        return u8(b, off) | (u8(b, off + 1) << 8);
+    }
+
+    private static int u24le(byte[] b, int off) {
+        return u8(b, off) | (u8(b, off + 1) << 8) | (u8(b, off + 2) << 16);
+    }
+
+    private static long u32be(byte[] b, int off) {
+        return ((long) u16be(b, off) << 16) | u16be(b, off + 2);
+    }
+
+    private static long u32le(byte[] b, int off) {
+        return u16le(b, off) | ((long) u16le(b, off + 2) << 16);
+    }
+}
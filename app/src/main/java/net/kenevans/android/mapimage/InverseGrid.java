@@ -0,0 +1,144 @@
+package net.kenevans.android.mapimage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A coarse grid over longitude and latitude holding the pixel coordinates
+ * of the exact inverse of a non-linear model at the nodes. Lookups use
+ * bilinear interpolation, so they cost about the same as an affine inverse.
+ * Nodes where the inverse could not be found are stored as NaN, and
+ * lookups in cells touching them fail so the caller can use the exact
+ * inverse instead.
+ */
+public class InverseGrid {
+    /**
+     * The number of cells in each direction.
+     */
+    public static final int N_CELLS = 32;
+
+    private final double lon0, lat0;
+    private final double lonScale, latScale;
+    private final int nLon, nLat;
+    private final float[] gx, gy;
+
+    private InverseGrid(double lon0, double lat0, double lonScale,
+                        double latScale, int nLon, int nLat, float[] gx,
+                        float[] gy) {
+        this.lon0 = lon0;
+        this.lat0 = lat0;
+        this.lonScale = lonScale;
+        this.latScale = latScale;
+        this.nLon = nLon;
+        this.nLat = nLat;
+        this.gx = gx;
+        this.gy = gy;
+    }
+
+    /**
+     * Builds a grid covering the given range of longitude and latitude.
+     *
+     * @param model  The model to invert.
+     * @param minLon The minimum longitude.
+     * @param minLat The minimum latitude.
+     * @param maxLon The maximum longitude.
+     * @param maxLat The maximum latitude.
+     * @return The grid or null if the range is empty.
+     */
+    public static InverseGrid build(NonLinearModel model, double minLon,
+                                    double minLat, double maxLon,
+                                    double maxLat) {
+        if (!(maxLon > minLon) || !(maxLat > minLat)) return null;
+        int nLon = N_CELLS, nLat = N_CELLS;
+        double dLon = (maxLon - minLon) / nLon;
+        double dLat = (maxLat - minLat) / nLat;
+        int nNodes = (nLon + 1) * (nLat + 1);
+        float[] gx = new float[nNodes];
+        float[] gy = new float[nNodes];
+        double[] xy = new double[2];
+        int k = 0;
+        for (int j = 0; j <= nLat; j++) {
+            double lat = minLat + j * dLat;
+            for (int i = 0; i <= nLon; i++) {
+                double lon = minLon + i * dLon;
+                if (model.exactInverse(lon, lat, xy)) {
+                    gx[k] = (float) xy[0];
+                    gy[k] = (float) xy[1];
+                } else {
+                    gx[k] = gy[k] = Float.NaN;
+                }
+                k++;
+            }
+        }
+        return new InverseGrid(minLon, minLat, 1 / dLon, 1 / dLat, nLon,
+                nLat, gx, gy);
+    }
+
+    /**
+     * Looks up the pixel coordinates for the given longitude and latitude.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @param xy  Array of length at least 2 to receive {x, y}.
+     * @return Whether the point is inside the grid and the values were set.
+     */
+    public boolean lookup(double lon, double lat, double[] xy) {
+        double u = (lon - lon0) * lonScale;
+        double v = (lat - lat0) * latScale;
+        if (!(u >= 0 && u <= nLon && v >= 0 && v <= nLat)) return false;
+        int i = Math.min((int) u, nLon - 1);
+        int j = Math.min((int) v, nLat - 1);
+        double fu = u - i, fv = v - j;
+        int k00 = j * (nLon + 1) + i;
+        int k10 = k00 + 1;
+        int k01 = k00 + nLon + 1;
+        int k11 = k01 + 1;
+        double w00 = (1 - fu) * (1 - fv), w10 = fu * (1 - fv);
+        double w01 = (1 - fu) * fv, w11 = fu * fv;
+        double x = w00 * gx[k00] + w10 * gx[k10] + w01 * gx[k01]
+                + w11 * gx[k11];
+        double y = w00 * gy[k00] + w10 * gy[k10] + w01 * gy[k01]
+                + w11 * gy[k11];
+        // NaN propagates from missing nodes
+        if (Double.isNaN(x) || Double.isNaN(y)) return false;
+        xy[0] = x;
+        xy[1] = y;
+        return true;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeDouble(lon0);
+        out.writeDouble(lat0);
+        out.writeDouble(lonScale);
+        out.writeDouble(latScale);
+        out.writeInt(nLon);
+        out.writeInt(nLat);
+        for (int k = 0; k < gx.length; k++) {
+            out.writeFloat(gx[k]);
+            out.writeFloat(gy[k]);
+        }
+    }
+
+    static InverseGrid read(DataInputStream in) throws IOException {
+        double lon0 = in.readDouble();
+        double lat0 = in.readDouble();
+        double lonScale = in.readDouble();
+        double latScale = in.readDouble();
+        int nLon = in.readInt();
+        int nLat = in.readInt();
+        if (nLon <= 0 || nLat <= 0 || nLon > 1024 || nLat > 1024) {
+            throw new CalibrationCache.InvalidEntryException(
+                    "Invalid grid size: " + nLon + " x " + nLat);
+        }
+        int nNodes = (nLon + 1) * (nLat + 1);
+        float[] gx = new float[nNodes];
+        float[] gy = new float[nNodes];
+        for (int k = 0; k < nNodes; k++) {
+            gx[k] = in.readFloat();
+            gy[k] = in.readFloat();
+        }
+        return new InverseGrid(lon0, lat0, lonScale, latScale, nLon, nLat,
+                gx, gy);
+    }
+}
@@ -5,9 +5,14 @@ import android.net.Uri;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -15,81 +20,317 @@ import Jama.Matrix;
 import Jama.SingularValueDecomposition;
 
 public class MapCalibration implements IConstants {
-    private final List<MapData> dataList = new ArrayList<>();
+    /**
+     * The calibration points, stored in primitive arrays.
+     */
+    private int nPoints;
+    private int[] xs = new int[16];
+    private int[] ys = new int[16];
+    private double[] lons = new double[16];
+    private double[] lats = new double[16];
+    /**
+     * The affine fit to the points. If there is a projection, it is to
+     * projected coordinates rather than longitude and latitude.
+     */
     private MapTransform transform;
+    /**
+     * The model used for conversions. It is the same as transform for the
+     * affine model without a projection.
+     */
+    private CalibrationModel model;
+    private int modelType = CalibrationModel.MODEL_AFFINE;
+    private Projection projection;
+    /**
+     * Converts using model. Null if there is no model.
+     */
+    private GeoTransform geoTransform;
     private final Context context;
+    private Uri uri;
+    private long modifiedTime = -1;
+    private int imageWidth;
+    private int imageHeight;
+    private long imageModifiedTime = -1;
+    /**
+     * The footprint of the image. Computed when the image size is set.
+     */
+    private MapFootprint footprint;
+    /**
+     * Whether errors are only logged rather than shown in dialogs, as
+     * needed when used off the main thread.
+     */
+    private boolean quiet;
 
     public MapCalibration(Context context) {
         this.context = context;
     }
 
+    /**
+     * Sets whether errors are only logged rather than shown in dialogs.
+     *
+     * @param quiet If errors are only to be logged.
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    /**
+     * Reads the calibration file, using the CalibrationCache if the file
+     * has not changed.
+     *
+     * @param uri The calibration file Uri.
+     * @throws NumberFormatException On a parse error.
+     * @throws IOException           On a read error.
+     */
     public void read(Uri uri) throws NumberFormatException, IOException {
-        MapData data;
-        String[] tokens;
-        int x, y;
-        double lon, lat;
-        try (InputStreamReader inputStreamReader = new InputStreamReader(
-                context.getContentResolver().openInputStream(uri));
-             BufferedReader in = new BufferedReader(inputStreamReader)) {
-            String line;
-            while ((line = in.readLine()) != null) {
-                tokens = line.trim().split("\\s+");
-                // Skip blank lines
-                if (tokens.length == 0) {
-                    continue;
-                }
-                // Skip lines starting with #
-                if (tokens[0].trim().startsWith("#")) {
-                    continue;
-                }
-                x = Integer.parseInt(tokens[0]);
-                y = Integer.parseInt(tokens[1]);
-                lon = Double.parseDouble(tokens[2]);
-                lat = Double.parseDouble(tokens[3]);
-                // DEBUG
-                // System.out.println(String.format("x=%d y=%d lon=%.6f lat=%
-                // .6f",
-                // x,
-                // y, lon, lat));
-                data = new MapData(x, y, lon, lat);
-                dataList.add(data);
+        read(uri, GeoReferenceResolver.GEOREF_CALIB,
+                UriUtils.getLastModified(context, uri));
+    }
+
+    /**
+     * Reads the calibration file or world file, using the CalibrationCache
+     * if the file has not changed.
+     *
+     * @param uri          The calibration file Uri.
+     * @param georefType   The type of the file, GEOREF_CALIB or
+     *                     GEOREF_WORLD_FILE from GeoReferenceResolver.
+     * @param modifiedTime The last modified time of the calibration file
+     *                     or a negative value if unknown.
+     * @throws NumberFormatException On a parse error.
+     * @throws IOException           On a read error.
+     */
+    public void read(Uri uri, int georefType, long modifiedTime)
+            throws NumberFormatException, IOException {
+        this.uri = uri;
+        this.modifiedTime = modifiedTime;
+        if (modifiedTime > 0 && CalibrationCache.read(context, uri,
+                modifiedTime, this)) {
+            return;
+        }
+        parse(uri, georefType);
+        if (transform != null && modifiedTime > 0) {
+            CalibrationCache.write(context, uri, modifiedTime, this);
+        }
+    }
+
+    /**
+     * Parses the calibration file or world file and creates the transform.
+     *
+     * @param uri        The calibration file Uri.
+     * @param georefType The type of the file.
+     * @throws NumberFormatException On a parse error.
+     * @throws IOException           On a read error.
+     */
+    private void parse(Uri uri, int georefType)
+            throws NumberFormatException, IOException {
+        nPoints = 0;
+        modelType = CalibrationModel.MODEL_AFFINE;
+        projection = null;
+        imageWidth = imageHeight = 0;
+        imageModifiedTime = -1;
+        footprint = null;
+        if (georefType == GeoReferenceResolver.GEOREF_WORLD_FILE) {
+            parseWorldFile(uri);
+            createTransform();
+            return;
+        }
+        try (InputStream inputStream =
+                     context.getContentResolver().openInputStream(uri);
+             InputStreamReader in = new InputStreamReader(inputStream,
+                     StandardCharsets.UTF_8)) {
+            CalibrationReader reader = new CalibrationReader(in);
+            while (reader.next()) {
+                addPoint(reader.getX(), reader.getY(), reader.getLon(),
+                        reader.getLat());
             }
+            modelType = reader.getModelType();
+            projection = Projection.create(reader.getProjectionType(),
+                    reader.getProjectionParams(),
+                    reader.getProjectionParamCount(), lons, lats, nPoints);
         }
         // Make the transform
         createTransform();
     }
 
     /**
-     * Calculates a, b, c, d, e, and f using singular value decomposition.
+     * Parses an ESRI world file. It has six lines A, D, B, E, C, F where
+     * lon = A * x + B * y + C and lat = D * x + E * y + F. Only world files
+     * in longitude and latitude are supported. Three calibration points that
+     * the transform passes through exactly are added, so the rest of the
+     * calibration is handled the same as for a calibration file.
+     *
+     * @param uri The world file Uri.
+     * @throws NumberFormatException On a parse error or if the file is not
+     *                               in longitude and latitude.
+     * @throws IOException           On a read error.
+     */
+    private void parseWorldFile(Uri uri) throws NumberFormatException,
+            IOException {
+        double[] vals = new double[6];
+        int nVals = 0;
+        try (InputStream inputStream =
+                     context.getContentResolver().openInputStream(uri);
+             BufferedReader in = new BufferedReader(new InputStreamReader(
+                     inputStream, StandardCharsets.UTF_8))) {
+            String line;
+            int lineNum = 0;
+            while (nVals < vals.length && (line = in.readLine()) != null) {
+                lineNum++;
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                try {
+                    vals[nVals++] = Double.parseDouble(line);
+                } catch (NumberFormatException ex) {
+                    throw new NumberFormatException("Line " + lineNum
+                            + ": Invalid number '" + line + "'");
+                }
+            }
+        }
+        if (nVals < vals.length) {
+            throw new NumberFormatException("World file has " + nVals
+                    + " values, expected 6");
+        }
+        double a = vals[0], d = vals[1], b = vals[2], e = vals[3];
+        double c = vals[4], f = vals[5];
+        if (Math.abs(c) > 360 || Math.abs(f) > 90) {
+            throw new NumberFormatException("World file is not in longitude "
+                    + "and latitude");
+        }
+        final int size = 1000;
+        addPoint(0, 0, c, f);
+        addPoint(size, 0, a * size + c, d * size + f);
+        addPoint(0, size, b * size + c, e * size + f);
+    }
+
+    /**
+     * Adds a calibration point, growing the arrays as needed.
+     *
+     * @param x   The x pixel coordinate.
+     * @param y   The y pixel coordinate.
+     * @param lon The longitude.
+     * @param lat The latitude.
+     */
+    private void addPoint(int x, int y, double lon, double lat) {
+        if (nPoints == xs.length) {
+            int newLength = 2 * nPoints;
+            xs = Arrays.copyOf(xs, newLength);
+            ys = Arrays.copyOf(ys, newLength);
+            lons = Arrays.copyOf(lons, newLength);
+            lats = Arrays.copyOf(lats, newLength);
+        }
+        xs[nPoints] = x;
+        ys[nPoints] = y;
+        lons[nPoints] = lon;
+        lats[nPoints] = lat;
+        nPoints++;
+    }
+
+    /**
+     * Creates the affine transform and, if a non-linear model was
+     * specified, the model. If the non-linear model cannot be fitted, the
+     * affine transform is used. If there is a projection, the fit is done
+     * to the projected coordinates of the points.
      */
     protected void createTransform() {
+        model = null;
+        geoTransform = null;
+        double[] us = lons, vs = lats;
+        if (projection != null) {
+            us = new double[nPoints];
+            vs = new double[nPoints];
+            projection.project(lons, lats, nPoints, us, vs);
+        }
+        createAffineTransform(us, vs);
+        if (transform == null) return;
+        CalibrationModel planeModel = null;
+        switch (modelType) {
+            case CalibrationModel.MODEL_POLY2:
+            case CalibrationModel.MODEL_POLY3:
+                planeModel = PolynomialModel.fit(modelType, transform, xs,
+                        ys, us, vs, nPoints);
+                break;
+            case CalibrationModel.MODEL_TPS:
+                planeModel = ThinPlateSplineModel.fit(transform, xs, ys, us,
+                        vs, nPoints);
+                break;
+        }
+        if (planeModel == null) {
+            if (modelType != CalibrationModel.MODEL_AFFINE) {
+                Log.w(TAG, this.getClass().getSimpleName()
+                        + ".createTransform: Failed to fit model "
+                        + CalibrationReader.getModelName(modelType)
+                        + " to " + nPoints + " points, using affine");
+            }
+            planeModel = transform;
+        }
+        model = projection == null ? planeModel :
+                new ProjectedModel(projection, planeModel);
+        geoTransform = new GeoTransform(model);
+    }
+
+    /**
+     * Calculates a, b, c, d, e, and f. The least-squares solution is found
+     * from the normal equations with an AffineSolver. Singular value
+     * decomposition is only used if the points are ill-conditioned.
+     *
+     * @param us The longitudes or projected x coordinates of the points.
+     * @param vs The latitudes or projected y coordinates of the points.
+     */
+    protected void createAffineTransform(double[] us, double[] vs) {
         transform = null;
-        if (dataList.size() < 3) {
+        if (nPoints < 3) {
             // SWTUtils.errMsg("Need at least three data points for
             // calibration.");
-            Utils.errMsg(context,
-                    "Need at least three data points for calibration.");
+            if (quiet) {
+                Log.w(TAG, "Need at least three data points for calibration: "
+                        + uri);
+            } else {
+                Utils.errMsg(context,
+                        "Need at least three data points for calibration.");
+            }
+            return;
+        }
+
+        AffineSolver solver = new AffineSolver();
+        for (int i = 0; i < nPoints; i++) {
+            solver.add(xs[i], ys[i], us[i], vs[i]);
+        }
+        double[] coeffs = new double[6];
+        if (solver.solve(coeffs)) {
+            transform = new MapTransform(coeffs[0], coeffs[1], coeffs[2],
+                    coeffs[3], coeffs[4], coeffs[5]);
             return;
         }
+        Log.d(TAG, this.getClass().getSimpleName()
+                + ".createAffineTransform: ill-conditioned points, using SVD");
+        createTransformSvd(us, vs);
+    }
 
+    /**
+     * Calculates a, b, c, d, e, and f using singular value decomposition.
+     * This is slower than the normal equations but handles ill-conditioned
+     * points.
+     *
+     * @param us The longitudes or projected x coordinates of the points.
+     * @param vs The latitudes or projected y coordinates of the points.
+     */
+    protected void createTransformSvd(double[] us, double[] vs) {
+        transform = null;
         // Define the matrices
-        int nPoints2 = 2 * dataList.size();
+        int nPoints2 = 2 * nPoints;
         Matrix aa = new Matrix(nPoints2, 6);
         Matrix bb = new Matrix(nPoints2, 1);
-        MapData data;
         int row;
-        for (int i = 0; i < dataList.size(); i++) {
-            data = dataList.get(i);
+        for (int i = 0; i < nPoints; i++) {
             row = 2 * i;
-            aa.set(row, 0, data.getX());
-            aa.set(row, 1, data.getY());
+            aa.set(row, 0, xs[i]);
+            aa.set(row, 1, ys[i]);
             aa.set(row, 4, 1);
-            bb.set(row, 0, data.getLon());
+            bb.set(row, 0, us[i]);
             row++;
-            aa.set(row, 2, data.getX());
-            aa.set(row, 3, data.getY());
+            aa.set(row, 2, xs[i]);
+            aa.set(row, 3, ys[i]);
             aa.set(row, 5, 1);
-            bb.set(row, 0, data.getLat());
+            bb.set(row, 0, vs[i]);
         }
 
         // Get the singular values
@@ -140,35 +381,17 @@ public class MapCalibration implements IConstants {
                     transform.getD(), transform.getE(), transform.getF()));
         } catch (Exception ex) {
             // SWTUtils.excMsg("Failed to create calibration transform", ex);
-            Utils.excMsg(context, "Failed to create calibration transform", ex);
+            if (quiet) {
+                Log.w(TAG, "Failed to create calibration transform: "
+                        + uri, ex);
+            } else {
+                Utils.excMsg(context, "Failed to create calibration " +
+                        "transform", ex);
+            }
             transform = null;
         }
     }
 
-    // Currently not used
-//	/**
-//	 * Transforms the pixel coordinates (x,y) to (longitude, latitude).
-//	 *
-//	 * @param x x pixel coordinate.
-//	 * @param y y pixel coordinate.
-//	 * @return {longitude, latitude}
-//	 */
-//	public double[] transform(int x, int y) {
-//		if (transform == null) {
-//			return null;
-//		}
-//		double[] val = new double[2];
-//		val[0] = transform.getA() * x + transform.getB() * y + transform
-// .getE();
-//		val[1] = transform.getC() * x + transform.getD() * y + transform
-// .getF();
-//		// DEBUG
-//		// System.out.println(String.format("x=%d y=%d lon=%.6f lat=%.6f",
-// x, y,
-//		// val[0], val[1]));
-//		return val;
-//	}
-
     /**
      * Calculates the pixel coordinates (x,y) corresponding to the given
      * longitude and latitude.
@@ -178,59 +401,255 @@ public class MapCalibration implements IConstants {
      * @return {x, y}
      */
     public int[] inverse(double lon, double lat) {
-        if (transform == null) {
+        int[] val = new int[2];
+        return inverse(lon, lat, val) ? val : null;
+    }
+
+    /**
+     * Calculates the pixel coordinates (x,y) corresponding to the given
+     * longitude and latitude without allocating.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @param val Array of length at least 2 to receive {x, y}.
+     * @return Whether the values were set.
+     */
+    public boolean inverse(double lon, double lat, int[] val) {
+        if (geoTransform == null) {
             Log.d(TAG, this.getClass().getSimpleName()
                     + ".inverse: transform is null.");
-            return null;
+            return false;
         }
-        int[] val = new int[2];
-        double det = transform.getA() * transform.getD() - transform.getB()
-                * transform.getC();
-        if (det == 0) {
-            // Log.d(TAG, this.getClass().getSimpleName()
-            // + ".inverse: determinant is zero.");
-            // Log.d(TAG, String.format(
-            // "  a=%.3g b=%.3g c=%.3g d=%.3g e=%.3g f= %.3g",
-            // transform.getA(), transform.getB(), transform.getC(),
-            // transform.getD(), transform.getE(), transform.getF()));
-            return null;
-        }
-        double v1, v2;
-        v1 = (transform.getD() * (lon - transform.getE()) - transform.getB()
-                * (lat - transform.getF()));
-        v2 = (transform.getA() * (lat - transform.getF()) - transform.getC()
-                * (lon - transform.getE()));
-        v1 /= det;
-        v2 /= det;
-        val[0] = (int) (v1 + .5);
-        val[1] = (int) (v2 + .5);
-        // Log.d(TAG, this.getClass().getSimpleName() + ".inverse:");
-        // Log.d(TAG, String.format(
-        // "  a=%.3g b=%.3g c=%.3g d=%.3g e=%.3g f= %.3g",
-        // transform.getA(), transform.getB(), transform.getC(),
-        // transform.getD(), transform.getE(), transform.getF()));
-        // Log.d(TAG, String.format("  v1=%.3f v2=%.3f", v1, v2));
-        return val;
+        return geoTransform.toPixel(lon, lat, val);
+    }
+
+    /**
+     * Calculates the pixel coordinates for arrays of longitude and latitude.
+     *
+     * @param lons The longitudes.
+     * @param lats The latitudes.
+     * @param n    The number of points to convert.
+     * @param xy   Array of length at least 2 * n to receive x0, y0, x1,
+     *             y1, ... Points that cannot be converted are set to NaN.
+     * @return Whether all the values were set.
+     */
+    public boolean inverse(double[] lons, double[] lats, int n, float[] xy) {
+        if (geoTransform == null) {
+            Log.d(TAG, this.getClass().getSimpleName()
+                    + ".inverse: transform is null.");
+            return false;
+        }
+        return geoTransform.toPixel(lons, lats, n, xy) == n;
+    }
+
+    /**
+     * Sets the dimensions of the image for this calibration, computes the
+     * footprint, and updates the CalibrationCache so they do not need to be
+     * determined again.
+     *
+     * @param width        The image width.
+     * @param height       The image height.
+     * @param modifiedTime The last modified time of the image file.
+     */
+    public void setImageSize(int width, int height, long modifiedTime) {
+        if (width == imageWidth && height == imageHeight
+                && modifiedTime == imageModifiedTime) {
+            return;
+        }
+        imageWidth = width;
+        imageHeight = height;
+        imageModifiedTime = modifiedTime;
+        footprint = MapFootprint.compute(model, width, height);
+        if (uri != null && transform != null && this.modifiedTime > 0) {
+            CalibrationCache.write(context, uri, this.modifiedTime, this);
+        }
+    }
+
+    /**
+     * Returns whether the stored image dimensions are valid for the image
+     * with the given modified time.
+     *
+     * @param modifiedTime The last modified time of the image file.
+     * @return If the dimensions are known.
+     */
+    public boolean hasImageSize(long modifiedTime) {
+        return imageWidth > 0 && imageHeight > 0 && modifiedTime > 0
+                && modifiedTime == imageModifiedTime;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
     }
 
     /**
-     * @return The value of transform.
+     * @return The footprint of the image or null if the image size is not
+     * known.
+     */
+    public MapFootprint getFootprint() {
+        return footprint;
+    }
+
+    /**
+     * Writes the compiled calibration for the CalibrationCache.
+     *
+     * @param out The output.
+     * @throws IOException On a write error.
+     */
+    void writeCompiled(DataOutputStream out) throws IOException {
+        out.writeInt(nPoints);
+        for (int i = 0; i < nPoints; i++) {
+            out.writeInt(xs[i]);
+            out.writeInt(ys[i]);
+            out.writeDouble(lons[i]);
+            out.writeDouble(lats[i]);
+        }
+        transform.write(out);
+        out.writeInt(model.getType());
+        if (model.getType() != CalibrationModel.MODEL_AFFINE) {
+            model.write(out);
+        }
+        Projection.write(projection, out);
+        out.writeInt(imageWidth);
+        out.writeInt(imageHeight);
+        out.writeLong(imageModifiedTime);
+        out.writeBoolean(footprint != null);
+        if (footprint != null) {
+            footprint.write(out);
+        }
+    }
+
+    /**
+     * Reads a compiled calibration written by writeCompiled.
+     *
+     * @param in The input.
+     * @throws IOException On a read error or invalid data.
+     */
+    void readCompiled(DataInputStream in) throws IOException {
+        int nPoints = in.readInt();
+        if (nPoints < 3 || nPoints > 1000000) {
+            throw new CalibrationCache.InvalidEntryException(
+                    "Invalid number of points: " + nPoints);
+        }
+        this.nPoints = 0;
+        for (int i = 0; i < nPoints; i++) {
+            addPoint(in.readInt(), in.readInt(), in.readDouble(),
+                    in.readDouble());
+        }
+        MapTransform newTransform = MapTransform.read(in);
+        int newModelType = in.readInt();
+        CalibrationModel newModel = newModelType ==
+                CalibrationModel.MODEL_AFFINE ? newTransform :
+                NonLinearModel.read(newModelType, newTransform, in);
+        Projection newProjection = Projection.read(in);
+        if (newProjection != null) {
+            newModel = new ProjectedModel(newProjection, newModel);
+        }
+        int width = in.readInt();
+        int height = in.readInt();
+        long imageTime = in.readLong();
+        MapFootprint newFootprint = in.readBoolean() ?
+                MapFootprint.read(in) : null;
+        transform = newTransform;
+        model = newModel;
+        geoTransform = new GeoTransform(newModel);
+        modelType = newModelType;
+        projection = newProjection;
+        imageWidth = width;
+        imageHeight = height;
+        imageModifiedTime = imageTime;
+        footprint = newFootprint;
+    }
+
+    /**
+     * @return The value of transform, which is the affine fit to the
+     * points. If there is a projection, it is to projected coordinates.
      */
     public MapTransform getTransform() {
         return transform;
     }
 
+    /**
+     * @return The model used for conversions or null if there is no
+     * transform.
+     */
+    public CalibrationModel getModel() {
+        return model;
+    }
+
+    /**
+     * @return The GeoTransform for converting in both directions or null
+     * if there is no transform.
+     */
+    public GeoTransform getGeoTransform() {
+        return geoTransform;
+    }
+
+    /**
+     * @return The projection or null if the fit is to longitude and
+     * latitude.
+     */
+    public Projection getProjection() {
+        return projection;
+    }
+
+    /**
+     * Gets the calibration points as a new List. Use getPointCount and
+     * getX, getY, getLon, and getLat to avoid creating objects.
+     *
+     * @return The list.
+     */
     public List<MapData> getDataList() {
+        List<MapData> dataList = new ArrayList<>(nPoints);
+        for (int i = 0; i < nPoints; i++) {
+            dataList.add(new MapData(xs[i], ys[i], lons[i], lats[i]));
+        }
         return dataList;
     }
 
-    public static class MapTransform {
+    /**
+     * @return The number of calibration points.
+     */
+    public int getPointCount() {
+        return nPoints;
+    }
+
+    public int getX(int i) {
+        return xs[i];
+    }
+
+    public int getY(int i) {
+        return ys[i];
+    }
+
+    public double getLon(int i) {
+        return lons[i];
+    }
+
+    public double getLat(int i) {
+        return lats[i];
+    }
+
+    /**
+     * Holds the affine transform from pixel coordinates to longitude and
+     * latitude together with its inverse, which is computed once.
+     */
+    public static class MapTransform implements CalibrationModel {
         private final double a;
         private final double b;
         private final double c;
         private final double d;
         private final double e;
         private final double f;
+        /**
+         * Inverse coefficients: x = ia * lon + ib * lat + ie,
+         * y = ic * lon + id * lat + jf.
+         */
+        private final double ia, ib, ic, id, ie, jf;
+        private final boolean invertible;
 
         public MapTransform(double a, double b, double c, double d, double e,
                             double f) {
@@ -240,6 +659,120 @@ public class MapCalibration implements IConstants {
             this.d = d;
             this.e = e;
             this.f = f;
+            double det = a * d - b * c;
+            invertible = det != 0 && !Double.isNaN(det)
+                    && !Double.isInfinite(det);
+            if (invertible) {
+                ia = d / det;
+                ib = -b / det;
+                ic = -c / det;
+                id = a / det;
+                ie = (b * f - d * e) / det;
+                jf = (c * e - a * f) / det;
+            } else {
+                ia = ib = ic = id = ie = jf = 0;
+            }
+        }
+
+        @Override
+        public int getType() {
+            return MODEL_AFFINE;
+        }
+
+        @Override
+        public boolean forward(double x, double y, double[] lonLat) {
+            lonLat[0] = a * x + b * y + e;
+            lonLat[1] = c * x + d * y + f;
+            return true;
+        }
+
+        @Override
+        public boolean inverse(double lon, double lat, double[] xy) {
+            if (!invertible) return false;
+            xy[0] = ia * lon + ib * lat + ie;
+            xy[1] = ic * lon + id * lat + jf;
+            return true;
+        }
+
+        /**
+         * @return Whether the transform has an inverse.
+         */
+        public boolean isInvertible() {
+            return invertible;
+        }
+
+        /**
+         * Calculates the pixel coordinates (x,y) corresponding to the given
+         * longitude and latitude. The values are rounded to the nearest
+         * pixel.
+         *
+         * @param lon The longitude.
+         * @param lat The latitude.
+         * @param val Array of length at least 2 to receive {x, y}.
+         * @return Whether the values were set.
+         */
+        public boolean inverse(double lon, double lat, int[] val) {
+            if (!invertible) return false;
+            val[0] = (int) (ia * lon + ib * lat + ie + .5);
+            val[1] = (int) (ic * lon + id * lat + jf + .5);
+            return true;
+        }
+
+        /**
+         * Calculates the pixel coordinates for arrays of longitude and
+         * latitude. The values are not rounded.
+         *
+         * @param lons The longitudes.
+         * @param lats The latitudes.
+         * @param n    The number of points to convert.
+         * @param xy   Array of length at least 2 * n to receive x0, y0, x1,
+         *             y1, ... All are set to NaN if the transform is not
+         *             invertible.
+         * @return The number of points converted.
+         */
+        @Override
+        public int inverse(double[] lons, double[] lats, int n, float[] xy) {
+            if (!invertible) {
+                Arrays.fill(xy, 0, 2 * n, Float.NaN);
+                return 0;
+            }
+            double lon, lat;
+            for (int i = 0, j = 0; i < n; i++) {
+                lon = lons[i];
+                lat = lats[i];
+                xy[j++] = (float) (ia * lon + ib * lat + ie);
+                xy[j++] = (float) (ic * lon + id * lat + jf);
+            }
+            return n;
+        }
+
+        /**
+         * Writes the coefficients.
+         *
+         * @param out The output.
+         * @throws IOException On a write error.
+         */
+        @Override
+        public void write(DataOutputStream out) throws IOException {
+            out.writeDouble(a);
+            out.writeDouble(b);
+            out.writeDouble(c);
+            out.writeDouble(d);
+            out.writeDouble(e);
+            out.writeDouble(f);
+        }
+
+        /**
+         * Reads coefficients written by write.
+         *
+         * @param in The input.
+         * @return The MapTransform.
+         * @throws IOException On a read error.
+         */
+        static MapTransform read(DataInputStream in) throws IOException {
+            return new MapTransform(in.readDouble(), in.readDouble(),
+                    in.readDouble(), in.readDouble(), in.readDouble(),
+                    in.readDouble());
         }
 
         public double getA() {
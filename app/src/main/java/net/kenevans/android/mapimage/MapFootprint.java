@@ -0,0 +1,239 @@
+package net.kenevans.android.mapimage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The area covered by a calibrated image and its ground resolution. The
+ * area is stored as a polygon in longitude and latitude following the
+ * image edges together with its bounding box, so containment can be tested
+ * without the calibration or the image.
+ */
+public class MapFootprint {
+    /**
+     * Number of segments along each edge of the image.
+     */
+    private static final int N_EDGE = 4;
+    /**
+     * Mean radius of the earth in m.
+     */
+    static final double EARTH_RADIUS = 6371008.8;
+
+    private final double[] polygon;
+    private final double minLon, minLat, maxLon, maxLat;
+    private final double metresPerPixel;
+
+    private MapFootprint(double[] polygon, double metresPerPixel) {
+        this.polygon = polygon;
+        this.metresPerPixel = metresPerPixel;
+        double minLon = Double.MAX_VALUE, minLat = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        for (int i = 0; i < polygon.length; i += 2) {
+            minLon = Math.min(minLon, polygon[i]);
+            maxLon = Math.max(maxLon, polygon[i]);
+            minLat = Math.min(minLat, polygon[i + 1]);
+            maxLat = Math.max(maxLat, polygon[i + 1]);
+        }
+        this.minLon = minLon;
+        this.minLat = minLat;
+        this.maxLon = maxLon;
+        this.maxLat = maxLat;
+    }
+
+    /**
+     * Computes the footprint of an image.
+     *
+     * @param model  The calibration model.
+     * @param width  The image width.
+     * @param height The image height.
+     * @return The footprint or null if it could not be computed.
+     */
+    public static MapFootprint compute(CalibrationModel model, int width,
+                                       int height) {
+        if (model == null || width <= 0 || height <= 0) return null;
+        int nVertices = 4 * N_EDGE;
+        double[] polygon = new double[2 * nVertices];
+        double[] lonLat = new double[2];
+        double x, y, t;
+        for (int k = 0; k < nVertices; k++) {
+            t = (double) (k % N_EDGE) / N_EDGE;
+            switch (k / N_EDGE) {
+                case 0:
+                    x = t * width;
+                    y = 0;
+                    break;
+                case 1:
+                    x = width;
+                    y = t * height;
+                    break;
+                case 2:
+                    x = (1 - t) * width;
+                    y = height;
+                    break;
+                default:
+                    x = 0;
+                    y = (1 - t) * height;
+                    break;
+            }
+            if (!model.forward(x, y, lonLat)) return null;
+            polygon[2 * k] = lonLat[0];
+            polygon[2 * k + 1] = lonLat[1];
+        }
+        // Resolution at the center, using a step that is large enough to
+        // avoid round off
+        double step = Math.max(1, Math.min(width, height) / 10.);
+        double cx = width / 2., cy = height / 2.;
+        double[] f = new double[6];
+        if (!model.forward(cx, cy, f)) return null;
+        if (!model.forward(cx + step, cy, lonLat)) return null;
+        f[2] = lonLat[0];
+        f[3] = lonLat[1];
+        if (!model.forward(cx, cy + step, lonLat)) return null;
+        f[4] = lonLat[0];
+        f[5] = lonLat[1];
+        double mPerDeg = Math.toRadians(EARTH_RADIUS);
+        double cosLat = Math.cos(Math.toRadians(f[1]));
+        double e1 = (f[2] - f[0]) * cosLat * mPerDeg;
+        double n1 = (f[3] - f[1]) * mPerDeg;
+        double e2 = (f[4] - f[0]) * cosLat * mPerDeg;
+        double n2 = (f[5] - f[1]) * mPerDeg;
+        // Square root of the ground area of one pixel
+        double metresPerPixel = Math.sqrt(Math.abs(e1 * n2 - e2 * n1)) / step;
+        if (!(metresPerPixel > 0) || Double.isInfinite(metresPerPixel)) {
+            return null;
+        }
+        return new MapFootprint(polygon, metresPerPixel);
+    }
+
+    /**
+     * Returns whether the given location is inside the footprint.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @return If it is inside.
+     */
+    public boolean contains(double lon, double lat) {
+        if (lon < minLon || lon > maxLon || lat < minLat || lat > maxLat) {
+            return false;
+        }
+        // Ray casting
+        boolean inside = false;
+        int n = polygon.length;
+        for (int i = 0, j = n - 2; i < n; j = i, i += 2) {
+            double xi = polygon[i], yi = polygon[i + 1];
+            double xj = polygon[j], yj = polygon[j + 1];
+            if ((yi > lat) != (yj > lat)
+                    && lon < (xj - xi) * (lat - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Gets the distance from the given location to the footprint. The
+     * edges are measured in a local plane at the location, which is
+     * accurate for nearby footprints and adequate for ranking far ones.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @return The distance in m, 0 if the location is inside.
+     */
+    public double distanceTo(double lon, double lat) {
+        if (contains(lon, lat)) return 0;
+        return distanceToEdge(lon, lat);
+    }
+
+    /**
+     * Gets the distance from the given location to the nearest edge of the
+     * footprint, whether the location is inside or outside, measured as
+     * for distanceTo.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @return The distance in m.
+     */
+    public double distanceToEdge(double lon, double lat) {
+        double mPerDegLat = Math.toRadians(EARTH_RADIUS);
+        double mPerDegLon = mPerDegLat * Math.cos(Math.toRadians(lat));
+        double minDist2 = Double.MAX_VALUE;
+        int n = polygon.length;
+        double xj = localX(polygon[n - 2], lon, mPerDegLon);
+        double yj = (polygon[n - 1] - lat) * mPerDegLat;
+        for (int i = 0; i < n; i += 2) {
+            double xi = localX(polygon[i], lon, mPerDegLon);
+            double yi = (polygon[i + 1] - lat) * mPerDegLat;
+            // Closest point on the segment to the origin
+            double dx = xi - xj, dy = yi - yj;
+            double len2 = dx * dx + dy * dy;
+            double t = len2 > 0 ? -(xj * dx + yj * dy) / len2 : 0;
+            t = Math.max(0, Math.min(1, t));
+            double px = xj + t * dx, py = yj + t * dy;
+            minDist2 = Math.min(minDist2, px * px + py * py);
+            xj = xi;
+            yj = yi;
+        }
+        return Math.sqrt(minDist2);
+    }
+
+    /**
+     * @return The east distance in m from lon0 to lon, taking the shorter
+     * way around.
+     */
+    private static double localX(double lon, double lon0, double mPerDeg) {
+        double dLon = lon - lon0;
+        if (dLon > 180) {
+            dLon -= 360;
+        } else if (dLon < -180) {
+            dLon += 360;
+        }
+        return dLon * mPerDeg;
+    }
+
+    /**
+     * @return The ground resolution at the center of the image in metres
+     * per pixel.
+     */
+    public double getMetresPerPixel() {
+        return metresPerPixel;
+    }
+
+    public double getMinLon() {
+        return minLon;
+    }
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public double getMaxLon() {
+        return maxLon;
+    }
+
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeDouble(metresPerPixel);
+        out.writeInt(polygon.length);
+        for (double val : polygon) {
+            out.writeDouble(val);
+        }
+    }
+
+    static MapFootprint read(DataInputStream in) throws IOException {
+        double metresPerPixel = in.readDouble();
+        int n = in.readInt();
+        if (n < 6 || n > 1024 || n % 2 != 0) {
+            throw new CalibrationCache.InvalidEntryException(
+                    "Invalid footprint size: " + n);
+        }
+        double[] polygon = new double[n];
+        for (int i = 0; i < n; i++) {
+            polygon[i] = in.readDouble();
+        }
+        return new MapFootprint(polygon, metresPerPixel);
+    }
+}
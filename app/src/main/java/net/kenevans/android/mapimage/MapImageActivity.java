@@ -12,12 +12,14 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.PointF;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
 import android.text.InputType;
@@ -26,17 +28,17 @@ import android.util.Log;
 import android.util.TypedValue;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
 import android.view.WindowManager;
+import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.LinearLayout;
+import android.widget.ProgressBar;
 import android.widget.Toast;
 
 import com.davemorrissey.labs.subscaleview.ImageSource;
 
-import net.kenevans.android.mapimage.MapCalibration.MapData;
-
 import java.io.FileWriter;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -44,6 +46,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
@@ -57,7 +61,6 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
      * Location, used for lat, lon, Accuracy only.
      */
     private Location mLocation;
-    private List<PointF> mTrackPointList;
     private boolean mUseLocation = false;
     private boolean mTracking;
     private MapImageLocationService mLocationService;
@@ -65,8 +68,46 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
     private boolean mFineLocationAsked;
 
     private MapCalibration mMapCalibration;
+    /**
+     * The Uri of the current image or null if there is none.
+     */
+    private Uri mImageUri;
+    /**
+     * Whether to switch to the best image when the location leaves the
+     * current one.
+     */
+    private boolean mAutoSwitch;
+    private long mLastAutoSwitchTime;
+    /**
+     * Reused for converting the location to pixel coordinates.
+     */
+    private final int[] mLocationVals = new int[2];
     private CharSequence[] mUpdateIntervals;
     private int mUpdateInterval = 0;
+    /**
+     * Index into PRELOAD_DISTANCES.
+     */
+    private int mPreloadDistance = PRELOAD_DISTANCE_DEFAULT;
+    private MapPreloader mPreloader;
+    /**
+     * The previous location and its distance from the edge of the current
+     * image, used to tell if the location is moving toward the edge.
+     */
+    private double mLastPreloadLon = Double.NaN;
+    private double mLastPreloadLat = Double.NaN;
+    private double mLastEdgeDistance = Double.NaN;
+    /**
+     * The Maps Near Me dialog while it is showing, else null.
+     */
+    private AlertDialog mNearbyDialog;
+    private ArrayAdapter<String> mNearbyAdapter;
+    private List<NearbyMaps.Ranked> mNearbyList = new ArrayList<>();
+    /**
+     * Ranks the maps for the Maps Near Me dialog.
+     */
+    private final ExecutorService mNearbyExecutor =
+            Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     // Launcher for PREF_TREE_URI
     private final ActivityResultLauncher<Intent> openDocumentTreeLauncher =
@@ -104,6 +145,9 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
                                     editor.putString(PREF_TREE_URI,
                                             treeUri.toString());
                                     editor.apply();
+                                    MapIndex.clear(this);
+                                    UriUtils.invalidateAll();
+                                    MapIndexer.start(this, null);
                                     // Trim the persisted permissions
                                     UriUtils.trimPermissions(this, 1);
                                 } catch (Exception ex) {
@@ -206,22 +250,29 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
                 public void onReceive(Context context, Intent intent) {
                     final String action = intent.getAction();
                     if (ACTION_LOCATION_CHANGED.equals(action)) {
-                        if (mMapCalibration != null &&
-                                mMapCalibration.getTransform() != null) {
-                            if (mLocation == null) {
-                                mLocation = new Location("");
-                            }
-                            double lat = intent.getDoubleExtra(EXTRA_LAT, 0.);
-                            double lon = intent.getDoubleExtra(EXTRA_LON, 0.);
-                            float accuracy =
-                                    intent.getFloatExtra(EXTRA_ACCURACY, 0);
-                            mLocation.setLatitude(lat);
-                            mLocation.setLongitude(lon);
-                            mLocation.setAccuracy(accuracy);
-                            int[] locationVals =
-                                    mMapCalibration.inverse(mLocation.getLongitude(),
-                                            mLocation.getLatitude());
-                            if (locationVals == null) {
+                        if (mLocation == null) {
+                            mLocation = new Location("");
+                        }
+                        double lat = intent.getDoubleExtra(EXTRA_LAT, 0.);
+                        double lon = intent.getDoubleExtra(EXTRA_LON, 0.);
+                        float accuracy =
+                                intent.getFloatExtra(EXTRA_ACCURACY, 0);
+                        mLocation.setLatitude(lat);
+                        mLocation.setLongitude(lon);
+                        mLocation.setAccuracy(accuracy);
+                        if (mNearbyDialog != null) {
+                            updateNearbyMaps();
+                        }
+                        if (mAutoSwitch) {
+                            checkAutoSwitch(lon, lat);
+                        }
+                        checkPreload(lon, lat);
+                        GeoTransform geoTransform = mMapCalibration == null
+                                ? null : mMapCalibration.getGeoTransform();
+                        if (geoTransform != null) {
+                            int[] locationVals = mLocationVals;
+                            if (!geoTransform.toPixel(mLocation.getLongitude(),
+                                    mLocation.getLatitude(), locationVals)) {
                                 Log.d(TAG, this.getClass().getSimpleName()
                                         + "  locationVals  is null");
                                 return;
@@ -229,16 +280,12 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
                             PointF locationPoint = new PointF(locationVals[0]
                                     , locationVals[1]);
                             if (mTracking) {
-                                if (mTrackPointList == null) {
-                                    mTrackPointList = new ArrayList<>();
-                                }
-                                mTrackPointList.add(new PointF(locationVals[0]
-                                        , locationVals[1]));
+                                mImageView.addTrackPoint(locationVals[0],
+                                        locationVals[1]);
                             } else {
-                                mTrackPointList = null;
+                                mImageView.clearTrack();
                             }
-                            mImageView.setLocationAndTracks(locationPoint,
-                                    mTrackPointList);
+                            mImageView.setLocation(locationPoint);
                         } else {
                             Log.d(TAG, this.getClass().getSimpleName()
                                     + ": onLocationChanged: transform is null");
@@ -282,6 +329,7 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         setContentView(R.layout.main);
         mImageView = findViewById(R.id.imageview);
         mImageView.setMinimumDpi(MIN_DPI);
+        mPreloader = new MapPreloader(this);
     }
 
     @Override
@@ -310,23 +358,18 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         SharedPreferences prefs = getPreferences(MODE_PRIVATE);
         mTracking = prefs.getBoolean(PREF_TRACKING, false);
         if (!mUseLocation) mTracking = false;
+        mAutoSwitch = prefs.getBoolean(PREF_AUTO_SWITCH, false);
         if (mLocationService != null) {
             mLocationService.setTracking(mTracking);
-            if (mTracking) {
-                if (mLocationService != null) {
-                    mTrackPointList =
-                            getPointsFromTrackpoints(
-                                    mLocationService.mTrackpointList);
-                }
-                if (mTrackPointList == null) {
-                    mTrackPointList = new ArrayList<>();
-                }
-            } else {
-                mTrackPointList = null;
-            }
-            mImageView.setTracks(mTrackPointList);
+            resetTrack();
         }
         mUpdateInterval = prefs.getInt(PREF_UPDATE_INTERVAL, 0);
+        mPreloadDistance = prefs.getInt(PREF_PRELOAD_DISTANCE,
+                PRELOAD_DISTANCE_DEFAULT);
+        if (mPreloadDistance < 0
+                || mPreloadDistance >= PRELOAD_DISTANCES.length) {
+            mPreloadDistance = PRELOAD_DISTANCE_DEFAULT;
+        }
         Log.d(TAG, this.getClass().getSimpleName()
                 + ": onResume (1): mUseLocation=" + mUseLocation
                 + " mUpdateInterval=" + mUpdateInterval);
@@ -365,6 +408,14 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
             Log.d(TAG, "    registerReceiver returned null="
                     + (intent == null));
         }
+        // Bring the MapIndex up to date with any changes to the image
+        // directory
+        if (ImageFileListActivity.getTreeUri(this) != null) {
+            MapIndexer.start(this, result -> Log.d(TAG,
+                    MapImageActivity.this.getClass().getSimpleName()
+                            + ": MapIndex updated: nChanges="
+                            + result.getChangeCount()));
+        }
         Log.d(TAG, this.getClass().getSimpleName() + ": onResume (4): end");
     }
 
@@ -379,6 +430,7 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         SharedPreferences.Editor editor = getPreferences(MODE_PRIVATE).edit();
         editor.putBoolean(PREF_USE_LOCATION, mUseLocation);
         editor.putBoolean(PREF_TRACKING, mTracking);
+        editor.putBoolean(PREF_AUTO_SWITCH, mAutoSwitch);
         if (mImageView != null) {
             PointF center = mImageView.getCenter();
             float scale = mImageView.getScale();
@@ -415,6 +467,8 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         Log.d(TAG, this.getClass().getSimpleName() + ": onDestroy: " +
                 "mUseLocation="
                 + mUseLocation + " mUpdateInterval=" + mUpdateInterval);
+        mNearbyExecutor.shutdownNow();
+        mPreloader.shutdown();
         super.onDestroy();
         // Unbind the service if it is bound
         unbindService(mServiceConnection);
@@ -486,6 +540,7 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
             menu.findItem(R.id.start_tracking).
                     setTitle(R.string.start_tracking_item);
         }
+        menu.findItem(R.id.auto_switch).setChecked(mAutoSwitch);
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -498,6 +553,19 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         } else if (id == R.id.open_image_location) {
             openImageForLocation();
             return true;
+        } else if (id == R.id.open_best_map) {
+            openBestMapForLocation();
+            return true;
+        } else if (id == R.id.maps_near_me) {
+            showNearbyMaps();
+            return true;
+        } else if (id == R.id.auto_switch) {
+            mAutoSwitch = !mAutoSwitch;
+            if (mAutoSwitch && !mUseLocation) {
+                Utils.warnMsg(this, "Auto switch only works when using "
+                        + "location. Try Start Location.");
+            }
+            return true;
         } else if (id == R.id.start_location) {
             if (mUseLocation) {
                 disableLocation();
@@ -523,19 +591,7 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
                 mLocationService.setTracking(mTracking);
             }
             // Get the stored trackpoints from the service if any
-            if (mTracking) {
-                if (mLocationService != null) {
-                    mTrackPointList =
-                            getPointsFromTrackpoints(
-                                    mLocationService.mTrackpointList);
-                }
-                if (mTrackPointList == null) {
-                    mTrackPointList = new ArrayList<>();
-                }
-            } else {
-                mTrackPointList = null;
-            }
-            mImageView.setTracks(mTrackPointList);
+            resetTrack();
             return true;
         } else if (id == R.id.save_gpx) {
             saveGpx();
@@ -549,6 +605,9 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         } else if (id == R.id.set_update_interval) {
             setUpdateInterval();
             return true;
+        } else if (id == R.id.set_preload_distance) {
+            setPreloadDistance();
+            return true;
         } else if (id == R.id.image_info) {
             info();
             return true;
@@ -590,6 +649,8 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         Bitmap.Config conf = Bitmap.Config.ARGB_8888;
         Bitmap bmp = Bitmap.createBitmap(1, 1, conf);
         mImageView.setImage(ImageSource.bitmap(bmp));
+        mImageView.setGeoTransform(null);
+        mImageUri = null;
     }
 
     /**
@@ -641,14 +702,18 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
                 info.append("Not calibrated\n");
             } else {
                 info.append("Calibrated\n");
-                List<MapData> dataList = mMapCalibration.getDataList();
-                if (dataList != null) {
-                    for (MapData data : dataList) {
-                        info.append(String.format(Locale.US,
-                                "  %04d   %04d  %11.6f %11.6f\n",
-                                data.getX(), data.getY(), +data.getLon(),
-                                data.getLat()));
-                    }
+                double[] lonLat = new double[2];
+                if (mImageView.viewToGeo(mImageView.getWidth() / 2f,
+                        mImageView.getHeight() / 2f, lonLat)) {
+                    info.append(String.format(Locale.US,
+                            "Center %.6f, %.6f\n", lonLat[0], lonLat[1]));
+                }
+                for (int i = 0; i < mMapCalibration.getPointCount(); i++) {
+                    info.append(String.format(Locale.US,
+                            "  %04d   %04d  %11.6f %11.6f\n",
+                            mMapCalibration.getX(i), mMapCalibration.getY(i),
+                            mMapCalibration.getLon(i),
+                            mMapCalibration.getLat(i)));
                 }
             }
             // Location
@@ -690,6 +755,7 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
                     }
                 }
             }
+            info.append(UriUtils.getMetadataCacheStats()).append("\n");
             info.append(UriUtils.getRequestedPermissionsInfo(this));
             String treeUriStr = prefs.getString(PREF_TREE_URI, null);
             if (treeUriStr == null) {
@@ -763,23 +829,18 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         double lon = mLocation.getLongitude();
         double lat = mLocation.getLatitude();
 
-        // Get the list of files
-        List<ImageFileListActivity.UriData> fileList =
-                ImageFileListActivity.getUriList(this);
-        if (fileList == null) {
-            Utils.errMsg(this,
-                    "openImageForLocation: Failed to get liat of image " +
-                            "files");
+        // Find the files from the index
+        MapIndex.load(this);
+        Uri treeUri = ImageFileListActivity.getTreeUri(this);
+        if (treeUri == null) {
+            Utils.errMsg(this, "There is no tree Uri set");
             return;
         }
-        Log.d(TAG, " fileList.size()=" + fileList.size());
-        final List<ImageFileListActivity.UriData> foundList =
-                new ArrayList<>();
-        for (ImageFileListActivity.UriData uriData : fileList) {
-            if (fileContainsLocation(uriData.uri, lat, lon)) {
-                foundList.add(uriData);
-            }
+        if (!MapIndex.isComplete(treeUri)) {
+            searchImagesForLocation(lon, lat);
+            return;
         }
+        final List<MapIndex.Entry> foundList = MapIndex.findAll(lon, lat);
         if (foundList.size() == 0) {
             Utils.infoMsg(this, "No images contain the current location");
             return;
@@ -800,16 +861,7 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
                                 "Invalid item");
                         return;
                     }
-                    SharedPreferences.Editor editor =
-                            getPreferences(MODE_PRIVATE).edit();
-                    editor.putString(PREF_IMAGE_URI,
-                            foundList.get(item).uri.toString());
-                    // Reset the preferences to the defaults
-                    editor.putFloat(PREF_CENTER_X, X_DEFAULT);
-                    editor.putFloat(PREF_CENTER_Y, Y_DEFAULT);
-                    editor.putFloat(PREF_SCALE, SCALE_DEFAULT);
-                    editor.apply();
-                    setNewImage(foundList.get(item).uri);
+                    openMapImage(foundList.get(item).uri);
                 });
         builder.setNegativeButton("Cancel",
                 (dialog, whichButton) -> {
@@ -820,57 +872,367 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
     }
 
     /**
-     * Checks if the current location is within the image in the file.
+     * Builds the MapIndex in the background and shows the images that
+     * contain the given location as they are found. The search can be
+     * cancelled, and the images that could not be read are listed at the
+     * end.
      *
-     * @param uri The Uri for the image file.
-     * @param lat The latitude.
      * @param lon The longitude.
-     * @return If location is within the image.
+     * @param lat The latitude.
      */
-    private boolean fileContainsLocation(Uri uri, double lat, double lon) {
-        // Get the file width and height
-        int dWidth, dHeight;
-        Uri calibUri;
-        try (InputStream inputStream =
-                     getContentResolver().openInputStream(uri)) {
-            // Get the bitmap dimensions without loading the Bitmap
-            BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-            bmOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(inputStream, null, bmOptions);
-            dWidth = bmOptions.outWidth;
-            dHeight = bmOptions.outHeight;
-        } catch (Exception ex) {
-            Utils.excMsg(this, "Error getting Bitmap dimensions", ex);
-            return false;
+    private void searchImagesForLocation(final double lon, final double lat) {
+        final List<MapIndex.Entry> foundList = new ArrayList<>();
+        final ArrayAdapter<String> adapter = new ArrayAdapter<>(this,
+                R.layout.row);
+        final ProgressBar progressBar = new ProgressBar(this, null,
+                android.R.attr.progressBarStyleHorizontal);
+        progressBar.setIndeterminate(true);
+        int padding = (int) TypedValue.applyDimension(
+                TypedValue.COMPLEX_UNIT_DIP, 16,
+                getResources().getDisplayMetrics());
+        progressBar.setPadding(padding, padding, padding, padding);
+        final MapIndexer.Task[] task = new MapIndexer.Task[1];
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getText(R.string.searching_images_title));
+        builder.setView(progressBar);
+        builder.setAdapter(adapter, (dialog, item) -> {
+            dialog.dismiss();
+            if (task[0] != null) task[0].cancel();
+            if (item < 0 || item >= foundList.size()) {
+                Utils.errMsg(MapImageActivity.this, "Invalid item");
+                return;
+            }
+            openMapImage(foundList.get(item).uri);
+        });
+        builder.setNegativeButton("Cancel", (dialog, whichButton) -> {
+            if (task[0] != null) task[0].cancel();
+        });
+        builder.setOnCancelListener(dialog -> {
+            if (task[0] != null) task[0].cancel();
+        });
+        final AlertDialog alert = builder.create();
+        alert.show();
+
+        task[0] = MapIndexer.start(this, new MapIndexer.ProgressListener() {
+            @Override
+            public void onProgress(MapIndex.Entry entry, int nDone,
+                                   int nTotal) {
+                progressBar.setIndeterminate(false);
+                progressBar.setMax(nTotal);
+                progressBar.setProgress(nDone);
+                if (entry != null && entry.footprint.contains(lon, lat)) {
+                    foundList.add(entry);
+                    adapter.add(entry.displayName);
+                }
+            }
+
+            @Override
+            public void onIndexUpdated(MapIndexer.Result result) {
+                if (isFinishing()) return;
+                if (result.error != null) {
+                    alert.dismiss();
+                    Utils.errMsg(MapImageActivity.this, result.error);
+                    return;
+                }
+                // Add any that were indexed before this search
+                for (MapIndex.Entry entry : MapIndex.findAll(lon, lat)) {
+                    if (!foundList.contains(entry)) {
+                        foundList.add(entry);
+                        adapter.add(entry.displayName);
+                    }
+                }
+                progressBar.setVisibility(View.GONE);
+                if (foundList.isEmpty()) {
+                    alert.dismiss();
+                    Utils.infoMsg(MapImageActivity.this,
+                            "No images contain the current location");
+                } else {
+                    alert.setTitle(getText(R.string.open_image_location_title));
+                }
+                showIndexFailures(result);
+            }
+        });
+    }
+
+    /**
+     * Shows the images that could not be added to the MapIndex, if any.
+     *
+     * @param result The MapIndexer.Result.
+     */
+    private void showIndexFailures(MapIndexer.Result result) {
+        int nFailures = result.failures.size();
+        if (nFailures == 0) return;
+        StringBuilder sb = new StringBuilder();
+        sb.append(nFailures).append(nFailures == 1 ? " image" : " images")
+                .append(" could not be used:\n");
+        for (int i = 0; i < Math.min(nFailures, MAX_FAILURES_SHOWN); i++) {
+            sb.append("\n").append(result.failures.get(i));
         }
-        if (dWidth <= 0 || dHeight <= 0) {
-            return false;
+        if (nFailures > MAX_FAILURES_SHOWN) {
+            sb.append("\n...");
         }
+        Utils.warnMsg(this, sb.toString());
+    }
 
-        // See if there is a calibration file
-        calibUri = getCalibUri(uri);
-        MapCalibration mapCalibration = null;
-        if (calibUri != null && UriUtils.exists(this, calibUri)) {
-            mapCalibration = new MapCalibration(this);
-            try {
-                mapCalibration.read(calibUri);
-            } catch (Exception ex) {
-                mapCalibration = null;
+    /**
+     * Opens the image with the highest resolution that contains the current
+     * location without prompting. Uses the MapIndex, which is built in the
+     * background the first time.
+     */
+    private void openBestMapForLocation() {
+        if (!mUseLocation) {
+            Utils.errMsg(this, "Not using location. Try Start Location.");
+            return;
+        }
+        if (mLocation == null) {
+            Utils.errMsg(this, "No location available");
+            return;
+        }
+        final double lon = mLocation.getLongitude();
+        final double lat = mLocation.getLatitude();
+        MapIndex.load(this);
+        Uri treeUri = ImageFileListActivity.getTreeUri(this);
+        if (treeUri == null) {
+            Utils.errMsg(this, "There is no tree Uri set");
+            return;
+        }
+        if (MapIndex.isComplete(treeUri)) {
+            openBestMap(lon, lat);
+            return;
+        }
+        Toast.makeText(this, R.string.searching_images_title,
+                Toast.LENGTH_SHORT).show();
+        MapIndexer.start(this, result -> {
+            if (isFinishing()) return;
+            if (result.error != null) {
+                Utils.errMsg(MapImageActivity.this, result.error);
+                return;
+            }
+            openBestMap(lon, lat);
+            showIndexFailures(result);
+        });
+    }
+
+    /**
+     * Shows all the calibrated images ordered by distance from the current
+     * location. The list is ranked again on each location change.
+     */
+    private void showNearbyMaps() {
+        if (!mUseLocation) {
+            Utils.errMsg(this, "Not using location. Try Start Location.");
+            return;
+        }
+        if (mLocation == null) {
+            Utils.errMsg(this, "No location available");
+            return;
+        }
+        Uri treeUri = ImageFileListActivity.getTreeUri(this);
+        if (treeUri == null) {
+            Utils.errMsg(this, "There is no tree Uri set");
+            return;
+        }
+        mNearbyList = new ArrayList<>();
+        mNearbyAdapter = new ArrayAdapter<>(this, R.layout.row);
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getText(R.string.maps_near_me_title));
+        builder.setAdapter(mNearbyAdapter, (dialog, item) -> {
+            dialog.dismiss();
+            if (item < 0 || item >= mNearbyList.size()) {
+                Utils.errMsg(MapImageActivity.this, "Invalid item");
+                return;
             }
+            openMapImage(mNearbyList.get(item).entry.uri);
+        });
+        builder.setNegativeButton("Cancel", (dialog, whichButton) -> {
+            // Do nothing
+        });
+        builder.setOnDismissListener(dialog -> {
+            mNearbyDialog = null;
+            mNearbyAdapter = null;
+        });
+        mNearbyDialog = builder.create();
+        mNearbyDialog.show();
+        MapIndex.load(this);
+        if (MapIndex.isComplete(treeUri)) {
+            updateNearbyMaps();
+        } else {
+            // Rank them when the index is built
+            MapIndexer.start(this, result -> {
+                if (isFinishing()) return;
+                if (result.error != null) {
+                    Utils.errMsg(MapImageActivity.this, result.error);
+                    return;
+                }
+                if (mNearbyDialog != null) updateNearbyMaps();
+            });
         }
-        if (mapCalibration == null) {
-            return false;
+    }
+
+    /**
+     * Ranks the maps in the MapIndex by distance from the current location
+     * in the background and shows them in the Maps Near Me dialog. Uses
+     * only the stored footprints.
+     */
+    private void updateNearbyMaps() {
+        if (mLocation == null) return;
+        final double lon = mLocation.getLongitude();
+        final double lat = mLocation.getLatitude();
+        mNearbyExecutor.execute(() -> {
+            final List<NearbyMaps.Ranked> ranked =
+                    NearbyMaps.rank(MapIndex.getEntries(), lon, lat);
+            final List<String> labels = new ArrayList<>(ranked.size());
+            for (NearbyMaps.Ranked r : ranked) {
+                labels.add(r.getLabel());
+            }
+            mHandler.post(() -> {
+                if (mNearbyAdapter == null) return;
+                mNearbyList = ranked;
+                mNearbyAdapter.clear();
+                mNearbyAdapter.addAll(labels);
+            });
+        });
+    }
+
+    /**
+     * Opens the image in the MapIndex with the highest resolution that
+     * contains the given location.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     */
+    private void openBestMap(double lon, double lat) {
+        MapIndex.Entry best = MapIndex.findBest(lon, lat);
+        if (best == null) {
+            Utils.infoMsg(this, "No images contain the current location");
+            return;
         }
+        Log.d(TAG, this.getClass().getSimpleName()
+                + ".openBestMap: " + best.displayName + " "
+                + String.format(Locale.US, "%.3f m/pixel",
+                best.footprint.getMetresPerPixel()));
+        openMapImage(best.uri);
+    }
 
-        // Check if the location is within the image
-        try {
-            int[] locationVals = mapCalibration.inverse(lon, lat);
-            return locationVals != null && !(locationVals[0] < 0 ||
-                    locationVals[0] >= dWidth || locationVals[1] < 0 ||
-                    locationVals[1] >= dHeight);
-        } catch (Exception ex) {
-            return false;
+    /**
+     * Switches to the best image for the given location if it has moved
+     * more than AUTO_SWITCH_MARGIN outside the current image. The margin,
+     * and the minimum time between switches, keep it from switching back
+     * and forth along a shared edge. Uses the footprints in the MapIndex,
+     * so it does no file I/O unless it switches. An image that is not in
+     * the MapIndex, such as one without a calibration, is never replaced.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     */
+    private void checkAutoSwitch(double lon, double lat) {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastAutoSwitchTime < AUTO_SWITCH_MIN_INTERVAL) return;
+        // The index is loaded, and kept up to date, by onResume
+        if (!MapIndex.isComplete(ImageFileListActivity.getTreeUri(this))) {
+            return;
         }
+        MapIndex.Entry current = mImageUri == null ? null :
+                MapIndex.get(mImageUri);
+        // Only switch away from an image with a known footprint
+        if (current == null || current.footprint.distanceTo(lon, lat)
+                <= AUTO_SWITCH_MARGIN) {
+            return;
+        }
+        MapIndex.Entry best = MapIndex.findBest(lon, lat);
+        if (best == null || best.uri.equals(current.uri)) return;
+        Log.d(TAG, this.getClass().getSimpleName()
+                + ".checkAutoSwitch: " + best.displayName);
+        mLastAutoSwitchTime = now;
+        // Keep the same ground scale on the screen
+        float scale = mImageView.getScale();
+        scale *= best.footprint.getMetresPerPixel()
+                / current.footprint.getMetresPerPixel();
+        openMapImage(best.uri);
+        GeoTransform geoTransform = mMapCalibration == null ? null :
+                mMapCalibration.getGeoTransform();
+        if (geoTransform != null
+                && geoTransform.toPixel(lon, lat, mLocationVals)) {
+            mImageView.setScaleAndCenter(scale,
+                    new PointF(mLocationVals[0], mLocationVals[1]));
+        }
+        Toast.makeText(this, best.displayName, Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Preloads the image the location is likely to move into next when it
+     * is within the preload distance of the edge of the current image and
+     * getting closer. The image is the best one at a point ahead along the
+     * direction of motion, just past the edge. Uses the footprints in the
+     * MapIndex, so it does no file I/O unless it preloads.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     */
+    private void checkPreload(double lon, double lat) {
+        double lastLon = mLastPreloadLon, lastLat = mLastPreloadLat;
+        double lastEdgeDistance = mLastEdgeDistance;
+        mLastPreloadLon = lon;
+        mLastPreloadLat = lat;
+        mLastEdgeDistance = Double.NaN;
+        double maxDistance = PRELOAD_DISTANCES[mPreloadDistance];
+        if (maxDistance <= 0 || mImageUri == null) return;
+        if (!MapIndex.isComplete(ImageFileListActivity.getTreeUri(this))) {
+            return;
+        }
+        MapIndex.Entry current = MapIndex.get(mImageUri);
+        if (current == null || !current.footprint.contains(lon, lat)) return;
+        double edgeDistance = current.footprint.distanceToEdge(lon, lat);
+        mLastEdgeDistance = edgeDistance;
+        // NaN comparisons are false, so this also needs a previous fix
+        if (edgeDistance > maxDistance
+                || !(edgeDistance < lastEdgeDistance)) {
+            return;
+        }
+        // Direction of motion in m
+        double mPerDegLat = Math.toRadians(MapFootprint.EARTH_RADIUS);
+        double mPerDegLon = mPerDegLat * Math.cos(Math.toRadians(lat));
+        double east = (lon - lastLon) * mPerDegLon;
+        double north = (lat - lastLat) * mPerDegLat;
+        double moved = Math.sqrt(east * east + north * north);
+        if (!(moved > 0) || mPerDegLon <= 0) return;
+        // The edge is at least edgeDistance ahead. Look further ahead, up
+        // to the preload distance, in case the motion is oblique.
+        MapIndex.Entry next = null;
+        for (double ahead = edgeDistance + AUTO_SWITCH_MARGIN;
+             next == null && ahead <= maxDistance + AUTO_SWITCH_MARGIN;
+             ahead *= 2) {
+            double aheadLon = lon + ahead * east / moved / mPerDegLon;
+            double aheadLat = lat + ahead * north / moved / mPerDegLat;
+            for (MapIndex.Entry entry : MapIndex.findAll(aheadLon,
+                    aheadLat)) {
+                if (entry.uri.equals(current.uri)) continue;
+                if (next == null || entry.footprint.getMetresPerPixel()
+                        < next.footprint.getMetresPerPixel()) {
+                    next = entry;
+                }
+            }
+        }
+        if (next == null) return;
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        mPreloader.preload(next, Math.max(metrics.widthPixels,
+                metrics.heightPixels));
+    }
+
+    /**
+     * Opens the given image with the position and scale reset.
+     *
+     * @param uri The image Uri.
+     */
+    private void openMapImage(Uri uri) {
+        SharedPreferences.Editor editor =
+                getPreferences(MODE_PRIVATE).edit();
+        editor.putString(PREF_IMAGE_URI, uri.toString());
+        // Reset the preferences to the defaults
+        editor.putFloat(PREF_CENTER_X, X_DEFAULT);
+        editor.putFloat(PREF_CENTER_Y, Y_DEFAULT);
+        editor.putFloat(PREF_SCALE, SCALE_DEFAULT);
+        editor.apply();
+        setNewImage(uri);
     }
 
     /**
@@ -889,7 +1251,10 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
             return;
         }
         String lastSeg = uri.getLastPathSegment();
-        if (!UriUtils.exists(this, uri)) {
+        // See if there is a calibration file or world file
+        GeoReferenceResolver.MapFile mapFile =
+                GeoReferenceResolver.find(this, uri);
+        if (mapFile.modifiedTime < 0) {
             String msg = "File does not exist " + lastSeg;
             Log.d(TAG, this.getClass().getSimpleName()
                     + "setNewImage: " + msg);
@@ -898,37 +1263,47 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         }
         mMapCalibration = null;
         setNoImage();
-        mImageView.setImage(ImageSource.uri(uri));
-        // See if there is a calibration file
-        Uri calibUri = getCalibUri(uri);
-        if (calibUri == null || !UriUtils.exists(this, calibUri)) {
+        // Use the preloaded preview and calibration if there are any and
+        // the image and its georeference file have not changed since
+        MapPreloader.Preloaded preloaded = mPreloader.take(uri);
+        if (preloaded != null && !preloaded.matches(mapFile)) {
+            preloaded = null;
+        }
+        if (preloaded != null && preloaded.preview != null) {
+            mImageView.setImage(ImageSource.uri(uri)
+                            .dimensions(preloaded.width, preloaded.height),
+                    ImageSource.bitmap(preloaded.preview));
+        } else {
+            mImageView.setImage(ImageSource.uri(uri));
+        }
+        mImageUri = uri;
+        if (!mapFile.hasGeoReference()) {
             Utils.warnMsg(this, "There is no calibration file for "
                     + uri.getLastPathSegment());
             return;
         }
-        mMapCalibration = new MapCalibration(this);
-        try {
-            mMapCalibration.read(calibUri);
-        } catch (Exception ex) {
-            // Have to use Exception because NumberFormatException might
-            // be wrapped in an InvocationTargetException
-            Utils.excMsg(this, "Error reading calibration file", ex);
-            mMapCalibration = null;
-        }
-        // Reset mTrackPointList with new calib
-        if (mTracking) {
-            if (mLocationService != null) {
-                mTrackPointList =
-                        getPointsFromTrackpoints(
-                                mLocationService.mTrackpointList);
-            }
-            if (mTrackPointList == null) {
-                mTrackPointList = new ArrayList<>();
-            }
+        if (preloaded != null) {
+            Log.d(TAG, this.getClass().getSimpleName()
+                    + ".setNewImage: Using preloaded " + lastSeg);
+            mMapCalibration = preloaded.calibration;
+            mMapCalibration.setQuiet(false);
         } else {
-            mTrackPointList = null;
+            mMapCalibration = new MapCalibration(this);
+            try {
+                mMapCalibration.read(mapFile.getGeorefUri(),
+                        mapFile.getGeorefType(),
+                        mapFile.getGeorefModifiedTime());
+            } catch (Exception ex) {
+                // Have to use Exception because NumberFormatException might
+                // be wrapped in an InvocationTargetException
+                Utils.excMsg(this, "Error reading calibration file", ex);
+                mMapCalibration = null;
+            }
         }
-        mImageView.setTracks(mTrackPointList);
+        mImageView.setGeoTransform(mMapCalibration == null ? null :
+                mMapCalibration.getGeoTransform());
+        // Reset the track with new calib
+        resetTrack();
     }
 
 
@@ -1245,28 +1620,80 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
     }
 
     /**
-     * Converts a List<Trackpoint> to a List<PointF> containing the pixel
-     * coordinates of the lat, lon values.
+     * Bring up a dialog to change the preload distance.
+     */
+    private void setPreloadDistance() {
+        Log.d(TAG, this.getClass().getSimpleName() + ": " +
+                "setPreloadDistance:");
+        final CharSequence[] items =
+                new CharSequence[PRELOAD_DISTANCES.length];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = PRELOAD_DISTANCES[i] == 0 ?
+                    getText(R.string.preload_off) :
+                    String.format(Locale.US, "%d m", PRELOAD_DISTANCES[i]);
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getText(R.string.preload_title));
+        builder.setSingleChoiceItems(items, mPreloadDistance,
+                (dialog, item) -> {
+                    dialog.dismiss();
+                    if (item < 0 || item >= PRELOAD_DISTANCES.length) {
+                        Utils.errMsg(MapImageActivity.this,
+                                "Invalid preload distance");
+                        mPreloadDistance = PRELOAD_DISTANCE_DEFAULT;
+                    } else {
+                        mPreloadDistance = item;
+                    }
+                    SharedPreferences.Editor editor =
+                            getPreferences(MODE_PRIVATE).edit();
+                    editor.putInt(PREF_PRELOAD_DISTANCE, mPreloadDistance);
+                    editor.apply();
+                });
+        AlertDialog alert = builder.create();
+        alert.show();
+    }
+
+    /**
+     * Sets the track in the view from the trackpoints stored in the service
+     * if tracking, otherwise clears it.
+     */
+    private void resetTrack() {
+        if (mImageView == null) return;
+        mImageView.clearTrack();
+        if (mTracking && mLocationService != null) {
+            setTrackFromTrackpoints(mLocationService.mTrackpointList);
+        }
+    }
+
+    /**
+     * Converts a List<Trackpoint> to the pixel coordinates of the lat, lon
+     * values and sets them as the track in the view.
      *
      * @param trackPointList The trackpoint list.
-     * @return The list of pixel coordinates.
      */
-    private List<PointF> getPointsFromTrackpoints
-    (List<Trackpoint> trackPointList) {
+    private void setTrackFromTrackpoints(List<Trackpoint> trackPointList) {
         if (trackPointList == null) {
-            return null;
+            return;
         }
-        if (mMapCalibration == null) {
-            return null;
+        GeoTransform geoTransform = mMapCalibration == null ? null :
+                mMapCalibration.getGeoTransform();
+        if (geoTransform == null) {
+            return;
         }
-        List<PointF> points = new ArrayList<>();
+        int nPoints = 0;
+        int size = trackPointList.size();
+        double[] lons = geoTransform.getLonBuffer(size);
+        double[] lats = geoTransform.getLatBuffer(size);
+        float[] xy = geoTransform.getFloatPixelBuffer(size);
         for (Trackpoint tkpt : trackPointList) {
             if (tkpt == null) continue;
-            int[] locationVals =
-                    mMapCalibration.inverse(tkpt.lon, tkpt.lat);
-            points.add(new PointF(locationVals[0], locationVals[1]));
+            lons[nPoints] = tkpt.lon;
+            lats[nPoints] = tkpt.lat;
+            nPoints++;
         }
-        return points;
+        geoTransform.toPixel(lons, lats, nPoints, xy);
+        // Points that could not be converted are NaN and are skipped
+        mImageView.setTrack(xy, nPoints);
     }
 
     /**
@@ -1279,26 +1706,6 @@ public class MapImageActivity extends AppCompatActivity implements IConstants {
         openDocumentTreeLauncher.launch(intent);
     }
 
-    /**
-     * Get the calibration file Uri corresponding to the given Uri.
-     *
-     * @param uri The Uri.
-     * @return The calibration Uri.
-     */
-    private Uri getCalibUri(Uri uri) {
-//        Log.d(TAG, "getCalibUri: uri=" + uri.getLastPathSegment());
-        if (uri == null) return null;
-        Uri calibUri = null;
-        String uriStr = uri.toString();
-        int i = uriStr.lastIndexOf('.');
-        String baseStr;
-        if (i > 0) {
-            baseStr = uriStr.substring(0, i + 1);
-            calibUri = Uri.parse(baseStr + CALIB_EXT);
-        }
-        return calibUri;
-    }
-
     /**
      * Determines if either COARSE or FINE location permission is granted.
      *
@@ -26,6 +26,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PointF;
 import android.util.AttributeSet;
@@ -34,8 +35,6 @@ import android.util.TypedValue;
 
 import com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView;
 
-import java.util.List;
-
 /**
  * Based on an example at:
  *
@@ -47,8 +46,38 @@ public class MapImageView extends SubsamplingScaleImageView implements
         IConstants {
     private Bitmap mLocationCursor;
     private PointF mLocationPoint;
-    private List<PointF> mTrackPointList;
+    /**
+     * The track in source coordinates, with simplified levels for when
+     * zoomed out.
+     */
+    private final TrackLod mTrack = new TrackLod();
     private Paint mPaint;
+    /**
+     * The transform for the current calibration, shared with the activity.
+     * Null if the image is not calibrated.
+     */
+    private GeoTransform mGeoTransform;
+    /**
+     * Reused for converting view coordinates.
+     */
+    private final PointF mSourcePoint = new PointF();
+    /**
+     * Reused for converting source coordinates.
+     */
+    private final PointF mViewPoint = new PointF();
+    /**
+     * The source to view transform, set once per frame.
+     */
+    private final Matrix mSourceToView = new Matrix();
+    /**
+     * The track in view coordinates, reused across frames and only grown
+     * when the drawn track gets longer.
+     */
+    private float[] mTrackViewPoints = new float[0];
+    /**
+     * Width of the track in pixels, 0 for hairline.
+     */
+    private float mTrackStrokeWidth;
 
     /**
      * Use this constructor when calling from code.
@@ -80,6 +109,21 @@ public class MapImageView extends SubsamplingScaleImageView implements
 //        float density = getResources().getDisplayMetrics().densityDpi;
         mLocationCursor = BitmapFactory.decodeResource(this.getResources(), R
                 .drawable.location);
+        // The paint is only used for the track and the cursor, so it is set
+        // up once, including the stroke width
+        if (mPaint == null) {
+            mPaint = new Paint();
+            mPaint.setAntiAlias(true);
+            mPaint.setColor(Color.BLUE);
+            final int dpSize = 10;
+            DisplayMetrics dm = getResources().getDisplayMetrics();
+            float strokeWidth =
+                    TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                            dpSize, dm);
+            // If less than 1 pixel then use 0 to get hairline mode
+            mTrackStrokeWidth = strokeWidth < 1f ? 0 : strokeWidth;
+            mPaint.setStrokeWidth(mTrackStrokeWidth);
+        }
     }
 
     public void setLocation(PointF locationPoint) {
@@ -90,67 +134,97 @@ public class MapImageView extends SubsamplingScaleImageView implements
         invalidate();
     }
 
-    public void setTracks(List<PointF> trackPointList) {
-        this.mTrackPointList = trackPointList;
+    /**
+     * Replaces the track.
+     *
+     * @param xy      The points in source coordinates as {x0, y0, x1, y1,
+     *                ...}. Points that are NaN are skipped.
+     * @param nPoints The number of points to use from xy.
+     */
+    public void setTrack(float[] xy, int nPoints) {
+        mTrack.set(xy, nPoints);
         invalidate();
     }
 
-    public void setLocationAndTracks(PointF locationPoint,
-                                     List<PointF> trackPointList) {
-        this.mLocationPoint = locationPoint;
-        this.mTrackPointList = trackPointList;
-        if (mLocationCursor == null) {
-            init();
-        }
+    /**
+     * Removes all points from the track.
+     */
+    public void clearTrack() {
+        if (mTrack.size() == 0) return;
+        mTrack.clear();
+        invalidate();
+    }
+
+    /**
+     * Adds a point to the end of the track. Amortized O(1).
+     *
+     * @param x The x source coordinate.
+     * @param y The y source coordinate.
+     */
+    public void addTrackPoint(float x, float y) {
+        mTrack.add(x, y);
         invalidate();
     }
 
+    public GeoTransform getGeoTransform() {
+        return mGeoTransform;
+    }
+
+    public void setGeoTransform(GeoTransform geoTransform) {
+        this.mGeoTransform = geoTransform;
+    }
+
+    /**
+     * Converts view coordinates to longitude and latitude using the current
+     * GeoTransform.
+     *
+     * @param vX     The view x coordinate.
+     * @param vY     The view y coordinate.
+     * @param lonLat Array of length at least 2 to receive {lon, lat}.
+     * @return Whether the values were set. False if the image is not ready
+     * or not calibrated.
+     */
+    public boolean viewToGeo(float vX, float vY, double[] lonLat) {
+        if (mGeoTransform == null || !isReady()) return false;
+        PointF sPoint = viewToSourceCoord(vX, vY, mSourcePoint);
+        return sPoint != null && mGeoTransform.toGeo(sPoint.x, sPoint.y,
+                lonLat);
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
 //        Log.d(TAG, this.getClass().getSimpleName()
 //                + ": onDraw:" + " mLocationPoint=" + mLocationPoint.x + ","
-//                + mLocationPoint.y + " mTrackPointList.size="
-//                + (mTrackPointList == null ? "null" : mTrackPointList.size
-//                ()));
+//                + mLocationPoint.y + " mTrack.size=" + mTrack.size());
         super.onDraw(canvas);
         // Don't draw cursor before image is ready so it doesn't move around
         // during setup.
         if (!isReady()) {
             return;
         }
-        if (mPaint == null) {
-            mPaint = new Paint();
+        // Source to view is a scale followed by a translation
+        PointF origin = sourceToViewCoord(0, 0, mViewPoint);
+        if (origin == null) {
+            return;
         }
-        mPaint.setAntiAlias(true);
-
-        if (mTrackPointList != null && !mTrackPointList.isEmpty()) {
-            int nTrackpoints = mTrackPointList.size();
-            float[] pts = new float[4 * nTrackpoints];
-            int index = 0;
-            PointF pt = sourceToViewCoord(mTrackPointList.get(0));
-            PointF pt1;
-            for (int i = 0; i < nTrackpoints - 1; i++) {
-                pt1 = sourceToViewCoord(mTrackPointList.get(i + 1));
-                if (pt != null && pt1 != null) {
-                    pts[index++] = pt.x;
-                    pts[index++] = pt.y;
-                    pts[index++] = pt1.x;
-                    pts[index++] = pt1.y;
-                }
-                pt = pt1;
+        float scale = getScale();
+        mSourceToView.setScale(scale, scale);
+        mSourceToView.postTranslate(origin.x, origin.y);
+
+        if (mTrack.size() > 1) {
+            // Draw the segments of the level for the scale that are in
+            // view, then the tails of the levels below it, which have the
+            // points not yet simplified and are short
+            int level = mTrack.getLevelForScale(scale);
+            drawVisibleTrack(canvas, mTrack.getLevel(level),
+                    mTrack.getGrid(level), scale, origin.x, origin.y);
+            for (int k = level - 1; k >= 0; k--) {
+                drawTrack(canvas, mTrack.getLevel(k), mTrack.getTailStart(k));
             }
-            mPaint.setColor(Color.BLUE);
-            final int dpSize = 10;
-            DisplayMetrics dm = getResources().getDisplayMetrics();
-            float strokeWidth =
-                    TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
-                            dpSize, dm);
-            // If less than 1 pixel then use 0 to get hairline mode
-            mPaint.setStrokeWidth(strokeWidth < 1f ? 0 : strokeWidth);
-            canvas.drawLines(pts, mPaint);
         }
         if (mLocationPoint != null && mLocationCursor != null) {
-            PointF vPoint = sourceToViewCoord(mLocationPoint);
+            PointF vPoint = sourceToViewCoord(mLocationPoint.x,
+                    mLocationPoint.y, mViewPoint);
             if (vPoint != null) {
                 float vX = vPoint.x - (mLocationCursor.getWidth() / 2f);
                 float vY = vPoint.y - mLocationCursor.getHeight() / 2f;
@@ -167,5 +241,76 @@ public class MapImageView extends SubsamplingScaleImageView implements
         }
     }
 
+    /**
+     * Draws the segments of a track level that are in cells of its grid
+     * that intersect the visible source rectangle.
+     *
+     * @param canvas The canvas.
+     * @param points The points in source coordinates.
+     * @param grid   The SegmentGrid for the points.
+     * @param scale  The scale.
+     * @param vX0    The view x of source x = 0.
+     * @param vY0    The view y of source y = 0.
+     */
+    private void drawVisibleTrack(Canvas canvas, TrackBuffer points,
+                                  SegmentGrid grid, float scale, float vX0,
+                                  float vY0) {
+        // The visible source rectangle, with room for the stroke
+        float margin = (mTrackStrokeWidth / 2 + 1) / scale;
+        float minX = -vX0 / scale - margin;
+        float minY = -vY0 / scale - margin;
+        float maxX = (getWidth() - vX0) / scale + margin;
+        float maxY = (getHeight() - vY0) / scale + margin;
+        int nFound = grid.find(minX, minY, maxX, maxY);
+        if (nFound == 0) return;
+        if (mTrackViewPoints.length < 4 * nFound) {
+            mTrackViewPoints = new float[Math.max(4 * nFound,
+                    2 * mTrackViewPoints.length)];
+        }
+        float[] lines = mTrackViewPoints;
+        float[] pts = points.getPoints();
+        int[] found = grid.getFound();
+        for (int i = 0; i < nFound; i++) {
+            System.arraycopy(pts, 2 * found[i], lines, 4 * i, 4);
+        }
+        mSourceToView.mapPoints(lines, 0, lines, 0, 2 * nFound);
+        canvas.drawLines(lines, 0, 4 * nFound, mPaint);
+    }
+
+    /**
+     * Draws the points of a track level from the given index on.
+     *
+     * @param canvas The canvas.
+     * @param points The points in source coordinates.
+     * @param start  The index of the first point.
+     */
+    private void drawTrack(Canvas canvas, TrackBuffer points, int start) {
+        int nPoints = points.size() - start;
+        if (nPoints < 2) return;
+        if (mTrackViewPoints.length < 2 * nPoints) {
+            mTrackViewPoints = new float[Math.max(2 * nPoints,
+                    2 * mTrackViewPoints.length)];
+        }
+        mSourceToView.mapPoints(mTrackViewPoints, 0, points.getPoints(),
+                2 * start, nPoints);
+        drawPolyline(canvas, mTrackViewPoints, nPoints);
+    }
+
+    /**
+     * Draws a polyline with drawLines without making an array of line
+     * segments. drawLines takes the points in pairs, so drawing from the
+     * first point gives segments 0-1, 2-3, ..., and drawing from the second
+     * gives 1-2, 3-4, ....
+     *
+     * @param canvas  The canvas.
+     * @param pts     The points as {x0, y0, x1, y1, ...}.
+     * @param nPoints The number of points.
+     */
+    private void drawPolyline(Canvas canvas, float[] pts, int nPoints) {
+        // Number of values in whole segments
+        canvas.drawLines(pts, 0, 4 * (nPoints / 2), mPaint);
+        canvas.drawLines(pts, 2, 4 * ((nPoints - 1) / 2), mPaint);
+    }
+
 }
 
@@ -0,0 +1,515 @@
+package net.kenevans.android.mapimage;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent index of the footprints of the calibrated images in the image
+ * directory. The entries are saved in the application files directory and
+ * a MapRTree over their bounding boxes is built when they are loaded or
+ * changed, so finding the images that contain a location takes no image
+ * or calibration I/O.
+ * <p>
+ * The last listing of the image directory, including images that are not
+ * calibrated, is saved with the entries so the MapIndexer can find what
+ * has changed.
+ */
+public class MapIndex implements IConstants {
+    private static final String INDEX_FILE = "map_index.bin";
+    private static final int MAGIC = 0x4d494d58; // MIMX
+    /**
+     * Increment when the format of the file changes.
+     */
+    private static final int VERSION = 5;
+
+    /**
+     * Entries keyed by the image Uri string.
+     */
+    private static final Map<String, Entry> sEntries = new HashMap<>();
+    /**
+     * The last listing keyed by the image Uri string.
+     */
+    private static final Map<String, ListingRecord> sListing =
+            new HashMap<>();
+    /**
+     * The tree Uri the entries and listing are for, or null.
+     */
+    private static Uri sTreeUri;
+    /**
+     * Whether all images in sTreeUri have been indexed.
+     */
+    private static boolean sComplete;
+    private static boolean sLoaded;
+    /**
+     * Whether there are changes that have not been saved.
+     */
+    private static boolean sDirty;
+    /**
+     * The tree and the entries it indexes. Null if it must be rebuilt.
+     */
+    private static MapRTree sTree;
+    private static Entry[] sTreeEntries;
+    private static int[] sSearchResult;
+
+    private MapIndex() {
+    }
+
+    /**
+     * Loads the index from storage if it has not been loaded.
+     *
+     * @param context The context.
+     */
+    public static synchronized void load(Context context) {
+        if (sLoaded) return;
+        sLoaded = true;
+        File file = new File(context.getFilesDir(), INDEX_FILE);
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new CalibrationCache.InvalidEntryException(
+                        "Invalid header");
+            }
+            String treeUriStr = in.readUTF();
+            boolean complete = in.readBoolean();
+            int n = in.readInt();
+            Map<String, Entry> entries = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                Entry entry = Entry.read(in);
+                entries.put(entry.uri.toString(), entry);
+            }
+            n = in.readInt();
+            Map<String, ListingRecord> listing = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                ListingRecord record = ListingRecord.read(in);
+                listing.put(record.uri.toString(), record);
+            }
+            sEntries.clear();
+            sEntries.putAll(entries);
+            sListing.clear();
+            sListing.putAll(listing);
+            sTreeUri = treeUriStr.isEmpty() ? null :
+                    Uri.parse(treeUriStr);
+            sComplete = complete;
+            sTree = null;
+        } catch (Exception ex) {
+            Log.d(TAG, "MapIndex.load: Failed to read " + file.getName()
+                    + ": " + ex);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Saves the index to storage if it has changed.
+     *
+     * @param context The context.
+     */
+    public static synchronized void save(Context context) {
+        if (!sDirty) return;
+        File file = new File(context.getFilesDir(), INDEX_FILE);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(sTreeUri == null ? "" : sTreeUri.toString());
+            out.writeBoolean(sComplete);
+            out.writeInt(sEntries.size());
+            for (Entry entry : sEntries.values()) {
+                entry.write(out);
+            }
+            out.writeInt(sListing.size());
+            for (ListingRecord record : sListing.values()) {
+                record.write(out);
+            }
+        } catch (Exception ex) {
+            Log.d(TAG, "MapIndex.save: Failed to write " + file.getName()
+                    + ": " + ex);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        sDirty = false;
+    }
+
+    /**
+     * Adds or replaces the entry for an image.
+     *
+     * @param mapFile     The image file and its georeference file.
+     * @param calibration The calibration. It must have a footprint.
+     */
+    public static synchronized void put(GeoReferenceResolver.MapFile mapFile,
+                                        MapCalibration calibration) {
+        sEntries.put(mapFile.uri.toString(), new Entry(mapFile.uri,
+                mapFile.displayName, mapFile.modifiedTime,
+                mapFile.getGeorefUri(), mapFile.getGeorefModifiedTime(),
+                calibration.getImageWidth(), calibration.getImageHeight(),
+                calibration.getFootprint()));
+        changed();
+    }
+
+    /**
+     * Removes the entry for an image.
+     *
+     * @param uri The image Uri.
+     */
+    public static synchronized void remove(Uri uri) {
+        if (sEntries.remove(uri.toString()) != null) changed();
+    }
+
+    /**
+     * Removes all entries and deletes the stored index.
+     *
+     * @param context The context.
+     */
+    public static synchronized void clear(Context context) {
+        sEntries.clear();
+        sListing.clear();
+        sTreeUri = null;
+        sComplete = false;
+        sLoaded = true;
+        sDirty = false;
+        sTree = null;
+        //noinspection ResultOfMethodCallIgnored
+        new File(context.getFilesDir(), INDEX_FILE).delete();
+    }
+
+    /**
+     * Removes all entries and the listing without deleting the stored
+     * index and starts an incomplete index for the given tree. Used when
+     * the image directory has changed.
+     *
+     * @param treeUri The tree Uri.
+     */
+    static synchronized void reset(Uri treeUri) {
+        sEntries.clear();
+        sListing.clear();
+        sTreeUri = treeUri;
+        sComplete = false;
+        changed();
+    }
+
+    /**
+     * @param treeUri The tree Uri.
+     * @return Whether the entries and listing are for the given tree,
+     * whether or not all its images have been indexed.
+     */
+    static synchronized boolean isForTree(Uri treeUri) {
+        return treeUri != null && treeUri.equals(sTreeUri);
+    }
+
+    /**
+     * Records an image from the listing of the image directory.
+     *
+     * @param mapFile The image file and its georeference file.
+     */
+    static synchronized void putListing(GeoReferenceResolver.MapFile mapFile) {
+        sListing.put(mapFile.uri.toString(), new ListingRecord(mapFile));
+        sDirty = true;
+    }
+
+    /**
+     * Removes an image from the listing and its entry from the index.
+     *
+     * @param uriStr The image Uri string.
+     */
+    static synchronized void removeListing(String uriStr) {
+        sListing.remove(uriStr);
+        sEntries.remove(uriStr);
+        changed();
+    }
+
+    /**
+     * @param uri The image Uri.
+     * @return The record for the image in the last listing or null if
+     * there is none.
+     */
+    public static synchronized ListingRecord getListingRecord(Uri uri) {
+        return sListing.get(uri.toString());
+    }
+
+    /**
+     * @return A copy of the last listing keyed by the image Uri string.
+     */
+    public static synchronized Map<String, ListingRecord> getListing() {
+        return new HashMap<>(sListing);
+    }
+
+    /**
+     * @return A copy of all the entries.
+     */
+    public static synchronized List<Entry> getEntries() {
+        return new ArrayList<>(sEntries.values());
+    }
+
+    /**
+     * Sets whether all images in the tree the index is for have been
+     * indexed.
+     *
+     * @param complete Whether they have.
+     */
+    static synchronized void setComplete(boolean complete) {
+        if (sComplete == complete) return;
+        sComplete = complete;
+        sDirty = true;
+    }
+
+    /**
+     * @param treeUri The tree Uri.
+     * @return Whether all images in the given tree have been indexed.
+     */
+    public static synchronized boolean isComplete(Uri treeUri) {
+        return sComplete && treeUri != null && treeUri.equals(sTreeUri);
+    }
+
+    /**
+     * @param uri The image Uri.
+     * @return The entry for the given image or null if there is none.
+     */
+    public static synchronized Entry get(Uri uri) {
+        return sEntries.get(uri.toString());
+    }
+
+    /**
+     * Finds the images that contain the given location.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @return The entries, sorted by display name.
+     */
+    public static synchronized List<Entry> findAll(double lon, double lat) {
+        List<Entry> found = new ArrayList<>();
+        int nFound = search(lon, lat);
+        for (int i = 0; i < nFound; i++) {
+            found.add(sTreeEntries[sSearchResult[i]]);
+        }
+        found.sort((e1, e2) -> e1.displayName.compareTo(e2.displayName));
+        return found;
+    }
+
+    /**
+     * Finds the image with the highest resolution that contains the given
+     * location.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @return The entry or null if no image contains the location.
+     */
+    public static synchronized Entry findBest(double lon, double lat) {
+        Entry best = null;
+        int nFound = search(lon, lat);
+        for (int i = 0; i < nFound; i++) {
+            Entry entry = sTreeEntries[sSearchResult[i]];
+            if (best == null || entry.footprint.getMetresPerPixel()
+                    < best.footprint.getMetresPerPixel()) {
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the entries whose footprints contain the given location. The
+     * results are left in sSearchResult as indices into sTreeEntries.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @return The number found.
+     */
+    private static int search(double lon, double lat) {
+        if (sTree == null) buildTree();
+        int nCandidates = sTree.search(lon, lat, sSearchResult);
+        // Keep those inside the footprint polygon
+        int nFound = 0;
+        for (int i = 0; i < nCandidates; i++) {
+            int index = sSearchResult[i];
+            if (sTreeEntries[index].footprint.contains(lon, lat)) {
+                sSearchResult[nFound++] = index;
+            }
+        }
+        return nFound;
+    }
+
+    private static void buildTree() {
+        int n = sEntries.size();
+        sTreeEntries = sEntries.values().toArray(new Entry[n]);
+        double[] boxes = new double[4 * n];
+        for (int i = 0; i < n; i++) {
+            MapFootprint footprint = sTreeEntries[i].footprint;
+            boxes[4 * i] = footprint.getMinLon();
+            boxes[4 * i + 1] = footprint.getMinLat();
+            boxes[4 * i + 2] = footprint.getMaxLon();
+            boxes[4 * i + 3] = footprint.getMaxLat();
+        }
+        sTree = new MapRTree(boxes, n);
+        sSearchResult = new int[n];
+    }
+
+    private static void changed() {
+        sDirty = true;
+        sTree = null;
+    }
+
+    /**
+     * An image from the last listing of the image directory with the
+     * modified times used to detect changes.
+     */
+    public static class ListingRecord {
+        final public Uri uri;
+        final public String displayName;
+        /**
+         * The directory path relative to the tree, or "" for the top level.
+         */
+        final public String folder;
+        /**
+         * The MIME type or null if unknown.
+         */
+        final public String mimeType;
+        /**
+         * The size in bytes or -1 if unknown.
+         */
+        final public long size;
+        final public long modifiedTime;
+        /**
+         * One of the GeoReferenceResolver.GEOREF_ constants.
+         */
+        final public int georefType;
+        /**
+         * The georeference file Uri or null if there is none.
+         */
+        final public Uri georefUri;
+        final public long georefModifiedTime;
+
+        ListingRecord(GeoReferenceResolver.MapFile mapFile) {
+            this(mapFile.uri, mapFile.displayName, mapFile.folder,
+                    mapFile.mimeType,
+                    mapFile.size, mapFile.modifiedTime,
+                    mapFile.getGeorefType(), mapFile.getGeorefUri(),
+                    mapFile.getGeorefModifiedTime());
+        }
+
+        private ListingRecord(Uri uri, String displayName, String folder,
+                              String mimeType, long size, long modifiedTime,
+                              int georefType, Uri georefUri,
+                              long georefModifiedTime) {
+            this.uri = uri;
+            this.displayName = displayName;
+            this.folder = folder;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.georefType = georefType;
+            this.georefUri = georefUri;
+            this.georefModifiedTime = georefModifiedTime;
+        }
+
+        /**
+         * Returns whether the given image and its georeference file are
+         * unchanged from this record.
+         *
+         * @param mapFile The image file and its georeference file.
+         * @return If unchanged.
+         */
+        public boolean matches(GeoReferenceResolver.MapFile mapFile) {
+            Uri otherGeorefUri = mapFile.getGeorefUri();
+            return modifiedTime == mapFile.modifiedTime
+                    && size == mapFile.size
+                    && georefModifiedTime == mapFile.getGeorefModifiedTime()
+                    && (georefUri == null ? otherGeorefUri == null :
+                    georefUri.equals(otherGeorefUri));
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(uri.toString());
+            out.writeUTF(displayName);
+            out.writeUTF(folder);
+            out.writeUTF(mimeType == null ? "" : mimeType);
+            out.writeLong(size);
+            out.writeLong(modifiedTime);
+            out.writeInt(georefType);
+            out.writeUTF(georefUri == null ? "" : georefUri.toString());
+            out.writeLong(georefModifiedTime);
+        }
+
+        static ListingRecord read(DataInputStream in) throws IOException {
+            Uri uri = Uri.parse(in.readUTF());
+            String displayName = in.readUTF();
+            String folder = in.readUTF();
+            String mimeType = in.readUTF();
+            long size = in.readLong();
+            long modifiedTime = in.readLong();
+            int georefType = in.readInt();
+            String georefUriStr = in.readUTF();
+            long georefModifiedTime = in.readLong();
+            return new ListingRecord(uri, displayName, folder,
+                    mimeType.isEmpty() ? null : mimeType, size, modifiedTime,
+                    georefType,
+                    georefUriStr.isEmpty() ? null : Uri.parse(georefUriStr),
+                    georefModifiedTime);
+        }
+    }
+
+    /**
+     * An indexed image.
+     */
+    public static class Entry {
+        final public Uri uri;
+        final public String displayName;
+        final public long modifiedTime;
+        final public Uri georefUri;
+        final public long georefModifiedTime;
+        final public int width;
+        final public int height;
+        final public MapFootprint footprint;
+
+        Entry(Uri uri, String displayName, long modifiedTime, Uri georefUri,
+              long georefModifiedTime, int width, int height,
+              MapFootprint footprint) {
+            this.uri = uri;
+            this.displayName = displayName;
+            this.modifiedTime = modifiedTime;
+            this.georefUri = georefUri;
+            this.georefModifiedTime = georefModifiedTime;
+            this.width = width;
+            this.height = height;
+            this.footprint = footprint;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(uri.toString());
+            out.writeUTF(displayName);
+            out.writeLong(modifiedTime);
+            out.writeUTF(georefUri.toString());
+            out.writeLong(georefModifiedTime);
+            out.writeInt(width);
+            out.writeInt(height);
+            footprint.write(out);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            return new Entry(Uri.parse(in.readUTF()), in.readUTF(),
+                    in.readLong(), Uri.parse(in.readUTF()), in.readLong(),
+                    in.readInt(), in.readInt(), MapFootprint.read(in));
+        }
+    }
+}
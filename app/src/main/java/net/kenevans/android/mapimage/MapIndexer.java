@@ -0,0 +1,408 @@
+package net.kenevans.android.mapimage;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the MapIndex up to date with the image directory. The directory is
+ * listed with a single query and compared with the last listing stored in
+ * the MapIndex using the document Uris and last modified times of the
+ * images and their georeference files. Only images that were added or
+ * whose image or georeference file changed are read, and the entries for
+ * images that were removed are dropped.
+ * <p>
+ * Updates run one at a time on a background thread. The changed images
+ * are read in parallel on a pool with one thread per core. Listeners are
+ * called on the main thread as each image is read and when the update
+ * finishes. Errors for individual images are collected in the Result
+ * rather than shown.
+ */
+public class MapIndexer implements IConstants {
+    private static final int N_THREADS =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor();
+    /**
+     * Pool for reading the images.
+     */
+    private static final ExecutorService sPool =
+            Executors.newFixedThreadPool(N_THREADS);
+    private static final Handler sHandler =
+            new Handler(Looper.getMainLooper());
+    /**
+     * Held while updating so background and foreground updates do not
+     * overlap.
+     */
+    private static final Object sUpdateLock = new Object();
+    /**
+     * The update that is queued but not started or null if there is none.
+     */
+    private static Run sQueuedRun;
+
+    private MapIndexer() {
+    }
+
+    /**
+     * Starts an update in the background. If one is already queued, the
+     * listener is added to it instead.
+     *
+     * @param context  The context.
+     * @param listener Called on the main thread when the update finishes.
+     *                 It is also called for each image read if it is a
+     *                 ProgressListener. May be null.
+     * @return A Task that can be used to stop listening and, if it
+     * started the update, to cancel it.
+     */
+    public static synchronized Task start(Context context, Listener listener) {
+        Run run = sQueuedRun;
+        boolean created = run == null;
+        if (created) {
+            run = new Run();
+            sQueuedRun = run;
+            final Run newRun = run;
+            final Context appContext = context.getApplicationContext();
+            sExecutor.execute(() -> {
+                synchronized (MapIndexer.class) {
+                    sQueuedRun = null;
+                }
+                final Result result = update(appContext, newRun);
+                sHandler.post(() -> {
+                    for (Listener l : newRun.listeners) {
+                        l.onIndexUpdated(result);
+                    }
+                });
+            });
+        }
+        if (listener != null) {
+            run.listeners.add(listener);
+        } else {
+            // Nothing can tell that it is no longer wanted
+            run.keep = true;
+        }
+        return new Task(run, listener, created);
+    }
+
+    /**
+     * Updates the MapIndex on the calling thread. Errors are logged, not
+     * shown, so this may be called from any thread.
+     *
+     * @param context The context.
+     * @param run     The Run for cancellation and progress.
+     * @return The Result.
+     */
+    private static Result update(Context context, Run run) {
+        Result result = new Result();
+        synchronized (sUpdateLock) {
+            MapIndex.load(context);
+            Uri treeUri = ImageFileListActivity.getTreeUri(context);
+            if (treeUri == null) {
+                result.error = "There is no tree Uri set";
+                return result;
+            }
+            long start = System.nanoTime();
+            List<GeoReferenceResolver.MapFile> fileList;
+            try {
+                fileList = GeoReferenceResolver.resolve(context, treeUri);
+            } catch (Exception ex) {
+                Log.e(TAG, "MapIndexer.update: Failed to list " + treeUri,
+                        ex);
+                result.error = "Failed to list the image directory: " + ex;
+                return result;
+            }
+            result.nFiles = fileList.size();
+            // Start over if the stored index is for another tree. An
+            // incomplete index for this tree is kept, and the images it is
+            // missing are found as added.
+            if (!MapIndex.isForTree(treeUri)) {
+                MapIndex.reset(treeUri);
+            }
+            Map<String, MapIndex.ListingRecord> oldListing =
+                    MapIndex.getListing();
+            List<GeoReferenceResolver.MapFile> toIndex = new ArrayList<>();
+            for (GeoReferenceResolver.MapFile mapFile : fileList) {
+                MapIndex.ListingRecord record =
+                        oldListing.remove(mapFile.uri.toString());
+                if (record != null && record.matches(mapFile)) continue;
+                if (record == null) {
+                    result.nAdded++;
+                } else {
+                    result.nChanged++;
+                    MapIndex.remove(mapFile.uri);
+                    UriUtils.invalidate(record.georefUri);
+                }
+                // The cache may have them as missing or out of date, such
+                // as for a georeference file that was just added
+                UriUtils.invalidate(mapFile.uri);
+                UriUtils.invalidate(mapFile.getGeorefUri());
+                toIndex.add(mapFile);
+            }
+            indexMapFiles(context, run, toIndex, result);
+            for (String uriStr : oldListing.keySet()) {
+                MapIndex.removeListing(uriStr);
+                UriUtils.invalidate(Uri.parse(uriStr));
+                result.nRemoved++;
+            }
+            // The listing only has the images that were read, so any left
+            // after a cancel are found next time. Until then the index is
+            // not complete.
+            MapIndex.setComplete(!run.cancelled);
+            MapIndex.save(context);
+            Log.d(TAG, String.format(Locale.US,
+                    "MapIndexer.update: %d files, %d added, %d changed, " +
+                            "%d removed, %d failed, cancelled=%b, %.1f ms",
+                    result.nFiles, result.nAdded, result.nChanged,
+                    result.nRemoved, result.failures.size(),
+                    result.cancelled, 1.e-6 * (System.nanoTime() - start)));
+            return result;
+        }
+    }
+
+    /**
+     * Reads the given images on the pool and records them in the listing
+     * as they finish.
+     *
+     * @param context The context.
+     * @param run     The Run for cancellation and progress.
+     * @param toIndex The images to read.
+     * @param result  The Result to receive the failures.
+     */
+    private static void indexMapFiles(
+            final Context context, final Run run,
+            List<GeoReferenceResolver.MapFile> toIndex, Result result) {
+        final int nTotal = toIndex.size();
+        if (nTotal == 0) return;
+        CompletionService<FileResult> completionService =
+                new ExecutorCompletionService<>(sPool);
+        for (final GeoReferenceResolver.MapFile mapFile : toIndex) {
+            completionService.submit(() -> {
+                FileResult fileResult = new FileResult(mapFile);
+                if (run.cancelled) {
+                    fileResult.skipped = true;
+                } else {
+                    fileResult.error = indexMapFile(context, mapFile);
+                }
+                return fileResult;
+            });
+        }
+        int nDone = 0;
+        for (int i = 0; i < nTotal; i++) {
+            FileResult fileResult;
+            try {
+                fileResult = completionService.take().get();
+            } catch (InterruptedException ex) {
+                // Let the remaining tasks finish quickly
+                run.cancelled = true;
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                // Not expected since indexMapFile catches its errors
+                Log.e(TAG, "MapIndexer: Unexpected error", ex);
+                continue;
+            }
+            if (fileResult.skipped) continue;
+            GeoReferenceResolver.MapFile mapFile = fileResult.mapFile;
+            // Record it even if it failed so it is not retried until it
+            // changes
+            MapIndex.putListing(mapFile);
+            if (fileResult.error != null) {
+                result.failures.add(mapFile.displayName + ": "
+                        + fileResult.error);
+            }
+            nDone++;
+            final MapIndex.Entry entry = MapIndex.get(mapFile.uri);
+            final int nDoneNow = nDone;
+            sHandler.post(() -> {
+                for (Listener l : run.listeners) {
+                    if (l instanceof ProgressListener) {
+                        ((ProgressListener) l).onProgress(entry, nDoneNow,
+                                nTotal);
+                    }
+                }
+            });
+        }
+        result.cancelled = run.cancelled;
+    }
+
+    /**
+     * Reads the calibration for the image in the file, determines the image
+     * size if it is not cached, and adds the footprint to the MapIndex.
+     *
+     * @param context The context.
+     * @param mapFile The image file and its georeference file.
+     * @return Null if the image was added or has no georeference file,
+     * otherwise the reason it could not be added.
+     */
+    static String indexMapFile(Context context,
+                                GeoReferenceResolver.MapFile mapFile) {
+        if (!mapFile.hasGeoReference()) {
+            return null;
+        }
+        Uri uri = mapFile.uri;
+        MapCalibration mapCalibration = new MapCalibration(context);
+        mapCalibration.setQuiet(true);
+        try {
+            mapCalibration.read(mapFile.getGeorefUri(),
+                    mapFile.getGeorefType(),
+                    mapFile.getGeorefModifiedTime());
+        } catch (Exception ex) {
+            Log.w(TAG, "MapIndexer: Failed to read calibration for "
+                    + mapFile.displayName, ex);
+            return "Failed to read calibration: " + ex.getMessage();
+        }
+        if (mapCalibration.getTransform() == null) {
+            return "Failed to create calibration transform";
+        }
+
+        // Get the file width and height, from the cache if possible
+        int dWidth, dHeight;
+        long imageModifiedTime = mapFile.modifiedTime;
+        if (mapCalibration.hasImageSize(imageModifiedTime)) {
+            dWidth = mapCalibration.getImageWidth();
+            dHeight = mapCalibration.getImageHeight();
+        } else {
+            int[] size = new int[2];
+            if (!ImageSizeReader.read(context, uri, imageModifiedTime,
+                    size)) {
+                return "Error getting image dimensions";
+            }
+            dWidth = size[0];
+            dHeight = size[1];
+            if (dWidth > 0 && dHeight > 0) {
+                mapCalibration.setImageSize(dWidth, dHeight,
+                        imageModifiedTime);
+            }
+        }
+        if (dWidth <= 0 || dHeight <= 0) {
+            return "Invalid image size";
+        }
+        if (mapCalibration.getFootprint() == null) {
+            return "Failed to compute the footprint";
+        }
+        MapIndex.put(mapFile, mapCalibration);
+        return null;
+    }
+
+    /**
+     * Receives the result of a background update.
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread when an update finishes.
+         *
+         * @param result The Result.
+         */
+        void onIndexUpdated(Result result);
+    }
+
+    /**
+     * Also receives the progress of a background update.
+     */
+    public interface ProgressListener extends Listener {
+        /**
+         * Called on the main thread after each changed image is read.
+         *
+         * @param entry  The MapIndex.Entry for the image or null if it
+         *               could not be added or has no georeference file.
+         * @param nDone  The number of images read so far.
+         * @param nTotal The number of images to read.
+         */
+        void onProgress(MapIndex.Entry entry, int nDone, int nTotal);
+    }
+
+    /**
+     * The outcome of an update.
+     */
+    public static class Result {
+        /**
+         * The reason the update failed or null if it did not.
+         */
+        public String error;
+        public int nFiles;
+        public int nAdded;
+        public int nChanged;
+        public int nRemoved;
+        public boolean cancelled;
+        /**
+         * The images that could not be added, as "name: reason".
+         */
+        public final List<String> failures = new ArrayList<>();
+
+        /**
+         * @return The number of images added, changed, or removed.
+         */
+        public int getChangeCount() {
+            return nAdded + nChanged + nRemoved;
+        }
+    }
+
+    /**
+     * Handle for a started update.
+     */
+    public static class Task {
+        private final Run run;
+        private final Listener listener;
+        /**
+         * Whether this Task started the update rather than joining one
+         * that was queued.
+         */
+        private final boolean created;
+
+        private Task(Run run, Listener listener, boolean created) {
+            this.run = run;
+            this.listener = listener;
+            this.created = created;
+        }
+
+        /**
+         * Stops calling the listener for this Task. If this Task started
+         * the update and no other listeners are left, also stops reading
+         * images for it. Must be called on the main thread.
+         */
+        public void cancel() {
+            if (listener != null) run.listeners.remove(listener);
+            if (created && !run.keep && run.listeners.isEmpty()) {
+                run.cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * The state shared by the Tasks for one update.
+     */
+    private static class Run {
+        final List<Listener> listeners = new CopyOnWriteArrayList<>();
+        volatile boolean cancelled;
+        /**
+         * Whether a Task without a listener joined, so the update must not
+         * be cancelled.
+         */
+        volatile boolean keep;
+    }
+
+    /**
+     * The outcome of reading one image.
+     */
+    private static class FileResult {
+        final GeoReferenceResolver.MapFile mapFile;
+        String error;
+        boolean skipped;
+
+        FileResult(GeoReferenceResolver.MapFile mapFile) {
+            this.mapFile = mapFile;
+        }
+    }
+}
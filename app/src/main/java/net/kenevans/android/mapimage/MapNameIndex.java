@@ -0,0 +1,131 @@
+package net.kenevans.android.mapimage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Prefix index over the words in the paths of the images for filtering as
+ * the user types. The words of all the paths are kept in one sorted array,
+ * so the items with a word starting with a given prefix are a contiguous
+ * range found by binary search. An item matches a query if every word in
+ * the query is a prefix of one of its words.
+ */
+public class MapNameIndex {
+    private final int nItems;
+    /**
+     * The words of all items in sorted order.
+     */
+    private final String[] words;
+    /**
+     * The item for each word.
+     */
+    private final int[] items;
+
+    /**
+     * Builds the index.
+     *
+     * @param paths The paths of the items, including folders.
+     */
+    public MapNameIndex(List<String> paths) {
+        nItems = paths.size();
+        List<Word> list = new ArrayList<>(4 * nItems);
+        for (int i = 0; i < nItems; i++) {
+            for (String word : tokenize(paths.get(i))) {
+                list.add(new Word(word, i));
+            }
+        }
+        Word[] sorted = list.toArray(new Word[0]);
+        Arrays.sort(sorted, (w1, w2) -> w1.word.compareTo(w2.word));
+        words = new String[sorted.length];
+        items = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            words[i] = sorted[i].word;
+            items[i] = sorted[i].item;
+        }
+    }
+
+    /**
+     * Splits text into lower-case words at characters that are not letters
+     * or digits.
+     *
+     * @param text The text.
+     * @return The words.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0, n = lower.length(); i <= n; i++) {
+            boolean inWord = i < n
+                    && Character.isLetterOrDigit(lower.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Finds the items that match a query.
+     *
+     * @param query The query.
+     * @return The matching item indices in increasing order, or null if the
+     * query has no words and all items match.
+     */
+    public int[] find(String query) {
+        List<String> prefixes = tokenize(query);
+        if (prefixes.isEmpty()) return null;
+        BitSet result = null;
+        for (String prefix : prefixes) {
+            BitSet found = new BitSet(nItems);
+            for (int i = lowerBound(prefix); i < words.length
+                    && words[i].startsWith(prefix); i++) {
+                found.set(items[i]);
+            }
+            if (result == null) {
+                result = found;
+            } else {
+                result.and(found);
+            }
+            if (result.isEmpty()) break;
+        }
+        int[] matches = new int[result.cardinality()];
+        for (int i = result.nextSetBit(0), j = 0; i >= 0;
+             i = result.nextSetBit(i + 1)) {
+            matches[j++] = i;
+        }
+        return matches;
+    }
+
+    /**
+     * @return The first position whose word is not less than key.
+     */
+    private int lowerBound(String key) {
+        int lo = 0, hi = words.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (words[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static class Word {
+        final String word;
+        final int item;
+
+        Word(String word, int item) {
+            this.word = word;
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package net.kenevans.android.mapimage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Prepares an image in the background before it is opened, so switching
+ * to it is fast. The georeference file is found, the calibration is read,
+ * and a low resolution preview of the whole image is decoded. The preview
+ * can be shown by SubsamplingScaleImageView while it decodes the tiles.
+ * <p>
+ * Only one image is kept. Use from the main thread.
+ */
+public class MapPreloader implements IConstants {
+    private final Context context;
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    /**
+     * The Uri being or last preloaded.
+     */
+    private Uri uri;
+    private Preloaded preloaded;
+
+    /**
+     * @param context The context.
+     */
+    public MapPreloader(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Starts preloading the given image unless it is already preloaded or
+     * in progress. Replaces any other preloaded image.
+     *
+     * @param entry          The MapIndex.Entry for the image.
+     * @param maxPreviewSize The maximum size of the longer side of the
+     *                       preview.
+     */
+    public void preload(final MapIndex.Entry entry, final int maxPreviewSize) {
+        if (entry.uri.equals(uri)) return;
+        uri = entry.uri;
+        preloaded = null;
+        executor.execute(() -> {
+            final Preloaded result = load(entry, maxPreviewSize);
+            handler.post(() -> {
+                if (!entry.uri.equals(uri)) return;
+                if (result != null) {
+                    preloaded = result;
+                } else {
+                    // Allow it to be tried again
+                    uri = null;
+                }
+            });
+        });
+    }
+
+    /**
+     * Returns the preloaded image if it is for the given Uri and is
+     * finished. The MapPreloader no longer holds it.
+     *
+     * @param uri The image Uri.
+     * @return The Preloaded or null.
+     */
+    public Preloaded take(Uri uri) {
+        if (preloaded == null || !preloaded.uri.equals(uri)) return null;
+        Preloaded result = preloaded;
+        preloaded = null;
+        this.uri = null;
+        return result;
+    }
+
+    /**
+     * Stops the background thread. The MapPreloader cannot be used after
+     * this.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        preloaded = null;
+        uri = null;
+    }
+
+    /**
+     * Does the preloading. Called on the background thread.
+     *
+     * @param entry          The MapIndex.Entry.
+     * @param maxPreviewSize The maximum size of the preview.
+     * @return The Preloaded or null on failure.
+     */
+    private Preloaded load(MapIndex.Entry entry, int maxPreviewSize) {
+        long start = System.nanoTime();
+        GeoReferenceResolver.MapFile mapFile =
+                GeoReferenceResolver.find(context, entry.uri);
+        if (mapFile.modifiedTime < 0 || !mapFile.hasGeoReference()) {
+            return null;
+        }
+        MapCalibration calibration = new MapCalibration(context);
+        calibration.setQuiet(true);
+        try {
+            calibration.read(mapFile.getGeorefUri(),
+                    mapFile.getGeorefType(),
+                    mapFile.getGeorefModifiedTime());
+        } catch (Exception ex) {
+            Log.d(TAG, "MapPreloader: Failed to read calibration for "
+                    + entry.displayName + ": " + ex);
+            return null;
+        }
+        if (calibration.getGeoTransform() == null) return null;
+        Bitmap preview = decodePreview(entry, maxPreviewSize);
+        Log.d(TAG, String.format(Locale.US,
+                "MapPreloader: %s preview=%b %.1f ms", entry.displayName,
+                preview != null, 1.e-6 * (System.nanoTime() - start)));
+        return new Preloaded(entry.uri, mapFile, calibration, preview,
+                entry.width, entry.height);
+    }
+
+    /**
+     * Decodes the whole image with the smallest inSampleSize that keeps
+     * the longer side within maxPreviewSize.
+     *
+     * @param entry          The MapIndex.Entry.
+     * @param maxPreviewSize The maximum size of the preview.
+     * @return The preview or null on failure.
+     */
+    private Bitmap decodePreview(MapIndex.Entry entry, int maxPreviewSize) {
+        int longer = Math.max(entry.width, entry.height);
+        if (longer <= 0 || maxPreviewSize <= 0) return null;
+        int sampleSize = 1;
+        while (longer / sampleSize > maxPreviewSize) {
+            sampleSize *= 2;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        try (InputStream inputStream =
+                     context.getContentResolver().openInputStream(entry.uri)) {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (Exception | OutOfMemoryError ex) {
+            Log.d(TAG, "MapPreloader: Failed to decode preview for "
+                    + entry.displayName + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * An image that is ready to be opened.
+     */
+    public static class Preloaded {
+        final public Uri uri;
+        final public GeoReferenceResolver.MapFile mapFile;
+        final public MapCalibration calibration;
+        /**
+         * A low resolution version of the whole image or null.
+         */
+        final public Bitmap preview;
+        final public int width;
+        final public int height;
+
+        Preloaded(Uri uri, GeoReferenceResolver.MapFile mapFile,
+                  MapCalibration calibration, Bitmap preview, int width,
+                  int height) {
+            this.uri = uri;
+            this.mapFile = mapFile;
+            this.calibration = calibration;
+            this.preview = preview;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Returns whether the preloaded calibration is still valid for the
+         * given MapFile.
+         *
+         * @param current The MapFile found when opening the image.
+         * @return If it is valid.
+         */
+        public boolean matches(GeoReferenceResolver.MapFile current) {
+            return current.modifiedTime == mapFile.modifiedTime
+                    && current.getGeorefUri() != null
+                    && current.getGeorefUri().equals(mapFile.getGeorefUri())
+                    && current.getGeorefModifiedTime()
+                    == mapFile.getGeorefModifiedTime();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package net.kenevans.android.mapimage;
+
+import java.util.Arrays;
+
+/**
+ * A static packed R-tree over bounding boxes, bulk loaded with the
+ * Sort-Tile-Recursive method. The nodes are stored in flat arrays with the
+ * items first, followed by each level of internal nodes, and the root
+ * last. It is rebuilt rather than updated when the items change, which
+ * takes a few milliseconds for thousands of items.
+ */
+public class MapRTree {
+    private static final int NODE_SIZE = 16;
+
+    private final int nItems;
+    /**
+     * minX, minY, maxX, maxY for each node.
+     */
+    private final double[] boxes;
+    /**
+     * For items, the index of the item. For internal nodes, the position of
+     * the first child.
+     */
+    private final int[] indices;
+    /**
+     * The end position of each level, starting with the items.
+     */
+    private final int[] levelBounds;
+    /**
+     * Stack for search. Not thread safe.
+     */
+    private final int[] stack;
+
+    /**
+     * Builds the tree.
+     *
+     * @param itemBoxes minX, minY, maxX, maxY for each item.
+     * @param n         The number of items.
+     */
+    public MapRTree(double[] itemBoxes, int n) {
+        nItems = n;
+        // Count the nodes in each level
+        int nLevels = 1;
+        int size = n;
+        while (size > 1) {
+            size = (size + NODE_SIZE - 1) / NODE_SIZE;
+            nLevels++;
+        }
+        levelBounds = new int[nLevels];
+        int nNodes = n;
+        levelBounds[0] = n;
+        size = n;
+        for (int level = 1; level < nLevels; level++) {
+            size = (size + NODE_SIZE - 1) / NODE_SIZE;
+            nNodes += size;
+            levelBounds[level] = nNodes;
+        }
+        boxes = new double[4 * nNodes];
+        indices = new int[nNodes];
+        stack = new int[2 * NODE_SIZE * nLevels];
+
+        // Order the items
+        int[] order = sortTileRecursive(itemBoxes, n);
+        for (int i = 0; i < n; i++) {
+            int item = order[i];
+            System.arraycopy(itemBoxes, 4 * item, boxes, 4 * i, 4);
+            indices[i] = item;
+        }
+
+        // Build the internal levels from consecutive groups of children
+        int pos = 0;
+        int write = n;
+        for (int level = 0; level < nLevels - 1; level++) {
+            int end = levelBounds[level];
+            while (pos < end) {
+                int first = pos;
+                double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+                double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+                for (int k = 0; k < NODE_SIZE && pos < end; k++, pos++) {
+                    minX = Math.min(minX, boxes[4 * pos]);
+                    minY = Math.min(minY, boxes[4 * pos + 1]);
+                    maxX = Math.max(maxX, boxes[4 * pos + 2]);
+                    maxY = Math.max(maxY, boxes[4 * pos + 3]);
+                }
+                boxes[4 * write] = minX;
+                boxes[4 * write + 1] = minY;
+                boxes[4 * write + 2] = maxX;
+                boxes[4 * write + 3] = maxY;
+                indices[write] = first;
+                write++;
+            }
+        }
+    }
+
+    /**
+     * Orders the items by sorting on the x center, cutting into vertical
+     * slices, and sorting each slice on the y center.
+     *
+     * @param itemBoxes The item boxes.
+     * @param n         The number of items.
+     * @return The item indices in order.
+     */
+    private static int[] sortTileRecursive(double[] itemBoxes, int n) {
+        // Sort packed keys of (rank, index) to avoid boxing
+        long[] keys = new long[n];
+        double[] cx = new double[n];
+        double[] cy = new double[n];
+        for (int i = 0; i < n; i++) {
+            cx[i] = .5 * (itemBoxes[4 * i] + itemBoxes[4 * i + 2]);
+            cy[i] = .5 * (itemBoxes[4 * i + 1] + itemBoxes[4 * i + 3]);
+        }
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        sortBy(order, 0, n, cx, keys);
+        int nLeaves = (n + NODE_SIZE - 1) / NODE_SIZE;
+        int nSlices = (int) Math.ceil(Math.sqrt(nLeaves));
+        int sliceSize = nSlices * NODE_SIZE;
+        for (int start = 0; start < n; start += sliceSize) {
+            sortBy(order, start, Math.min(n, start + sliceSize), cy, keys);
+        }
+        return order;
+    }
+
+    /**
+     * Sorts part of order by the given values. The values are mapped to
+     * ranks so they can be packed with the index into a long.
+     */
+    private static void sortBy(int[] order, int from, int to, double[] vals,
+                               long[] keys) {
+        int count = to - from;
+        if (count < 2) return;
+        // Rank the values in this range
+        double[] sorted = new double[count];
+        for (int i = 0; i < count; i++) sorted[i] = vals[order[from + i]];
+        Arrays.sort(sorted);
+        for (int i = 0; i < count; i++) {
+            int idx = order[from + i];
+            long rank = Arrays.binarySearch(sorted, vals[idx]);
+            if (rank < 0) rank = 0;
+            keys[i] = (rank << 32) | idx;
+        }
+        Arrays.sort(keys, 0, count);
+        for (int i = 0; i < count; i++) {
+            order[from + i] = (int) keys[i];
+        }
+    }
+
+    /**
+     * @return The number of items.
+     */
+    public int size() {
+        return nItems;
+    }
+
+    /**
+     * Finds the items whose boxes contain the given point.
+     *
+     * @param x      The x coordinate.
+     * @param y      The y coordinate.
+     * @param result Array of length at least size() to receive the item
+     *               indices.
+     * @return The number of items found.
+     */
+    public int search(double x, double y, int[] result) {
+        if (nItems == 0) return 0;
+        int nFound = 0;
+        int top = 0;
+        stack[top++] = boxes.length / 4 - 1;
+        stack[top++] = levelBounds.length - 1;
+        while (top > 0) {
+            int level = stack[--top];
+            int pos = stack[--top];
+            if (x < boxes[4 * pos] || y < boxes[4 * pos + 1]
+                    || x > boxes[4 * pos + 2] || y > boxes[4 * pos + 3]) {
+                continue;
+            }
+            if (level == 0) {
+                result[nFound++] = indices[pos];
+                continue;
+            }
+            int first = indices[pos];
+            int end = Math.min(first + NODE_SIZE, levelBounds[level - 1]);
+            for (int child = first; child < end; child++) {
+                stack[top++] = child;
+                stack[top++] = level - 1;
+            }
+        }
+        return nFound;
+    }
+}
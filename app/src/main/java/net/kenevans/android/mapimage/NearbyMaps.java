@@ -0,0 +1,73 @@
+package net.kenevans.android.mapimage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Orders the maps in the MapIndex by distance from a location using their
+ * stored footprints, so no file I/O is needed. Maps that contain the
+ * location come first, ordered by resolution, then the others by distance.
+ */
+public class NearbyMaps {
+    private NearbyMaps() {
+    }
+
+    /**
+     * Ranks the given entries.
+     *
+     * @param entries The MapIndex entries.
+     * @param lon     The longitude.
+     * @param lat     The latitude.
+     * @return The ranked list.
+     */
+    public static List<Ranked> rank(List<MapIndex.Entry> entries, double lon,
+                                    double lat) {
+        List<Ranked> ranked = new ArrayList<>(entries.size());
+        for (MapIndex.Entry entry : entries) {
+            ranked.add(new Ranked(entry, entry.footprint.distanceTo(lon,
+                    lat)));
+        }
+        ranked.sort((r1, r2) -> {
+            if (r1.distance == 0 && r2.distance == 0) {
+                return Double.compare(r1.entry.footprint.getMetresPerPixel(),
+                        r2.entry.footprint.getMetresPerPixel());
+            }
+            return Double.compare(r1.distance, r2.distance);
+        });
+        return ranked;
+    }
+
+    /**
+     * A map and its distance from the location.
+     */
+    public static class Ranked {
+        final public MapIndex.Entry entry;
+        /**
+         * The distance in m, 0 if the map contains the location.
+         */
+        final public double distance;
+
+        Ranked(MapIndex.Entry entry, double distance) {
+            this.entry = entry;
+            this.distance = distance;
+        }
+
+        /**
+         * @return The name with the resolution if the map contains the
+         * location or the distance if it does not.
+         */
+        public String getLabel() {
+            if (distance == 0) {
+                return String.format(Locale.US, "%s  (here, %.1f m/pixel)",
+                        entry.displayName,
+                        entry.footprint.getMetresPerPixel());
+            } else if (distance < 1000) {
+                return String.format(Locale.US, "%s  (%.0f m)",
+                        entry.displayName, distance);
+            }
+            return String.format(Locale.US, "%s  (%.1f km)",
+                    entry.displayName, distance / 1000);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package net.kenevans.android.mapimage;
+
+import net.kenevans.android.mapimage.MapCalibration.MapTransform;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Base class for non-linear calibration models. Subclasses provide the
+ * forward transform. The inverse is found by Newton iteration starting
+ * from the affine fit and is baked into an InverseGrid when the model is
+ * fitted, so that per-fix lookups are cheap.
+ * <p>
+ * The inverse does not allocate. It uses work arrays kept in this object,
+ * so it is not thread safe.
+ */
+public abstract class NonLinearModel implements CalibrationModel {
+    private static final int MAX_ITERATIONS = 20;
+    /**
+     * Convergence tolerance in pixels.
+     */
+    private static final double TOLERANCE = 1e-4;
+    /**
+     * Step in pixels for the numerical Jacobian.
+     */
+    private static final double STEP = .5;
+    /**
+     * Fraction of the extent of the calibration points by which the grid is
+     * extended on each side.
+     */
+    private static final double GRID_MARGIN = .25;
+
+    protected final MapTransform affine;
+    private InverseGrid grid;
+    /**
+     * Work arrays for the inverse.
+     */
+    private final double[] inverseVal = new double[2];
+    private final double[] newtonVals = new double[6];
+
+    /**
+     * @param affine The affine fit to the same points, used for the initial
+     *               guess of the inverse.
+     */
+    protected NonLinearModel(MapTransform affine) {
+        this.affine = affine;
+    }
+
+    @Override
+    public boolean inverse(double lon, double lat, double[] xy) {
+        if (grid != null && grid.lookup(lon, lat, xy)) return true;
+        return exactInverse(lon, lat, xy);
+    }
+
+    @Override
+    public int inverse(double[] lons, double[] lats, int n, float[] xy) {
+        double[] val = inverseVal;
+        int nConverted = 0;
+        for (int i = 0, j = 0; i < n; i++, j += 2) {
+            if (inverse(lons[i], lats[i], val)) {
+                xy[j] = (float) val[0];
+                xy[j + 1] = (float) val[1];
+                nConverted++;
+            } else {
+                xy[j] = xy[j + 1] = Float.NaN;
+            }
+        }
+        return nConverted;
+    }
+
+    /**
+     * Finds the inverse by Newton iteration on the forward transform.
+     *
+     * @param lon The longitude.
+     * @param lat The latitude.
+     * @param xy  Array of length at least 2 to receive {x, y}.
+     * @return Whether the iteration converged and the values were set.
+     */
+    public boolean exactInverse(double lon, double lat, double[] xy) {
+        if (!affine.inverse(lon, lat, xy)) return false;
+        double x = xy[0], y = xy[1];
+        double[] f = newtonVals;
+        for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
+            forward(x, y, f);
+            forward(x + STEP, y, f, 2);
+            forward(x, y + STEP, f, 4);
+            double rLon = f[0] - lon, rLat = f[1] - lat;
+            double j00 = (f[2] - f[0]) / STEP, j01 = (f[4] - f[0]) / STEP;
+            double j10 = (f[3] - f[1]) / STEP, j11 = (f[5] - f[1]) / STEP;
+            double det = j00 * j11 - j01 * j10;
+            if (det == 0 || Double.isNaN(det)) return false;
+            double dx = (j11 * rLon - j01 * rLat) / det;
+            double dy = (j00 * rLat - j10 * rLon) / det;
+            x -= dx;
+            y -= dy;
+            if (Math.abs(dx) + Math.abs(dy) < TOLERANCE) {
+                xy[0] = x;
+                xy[1] = y;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean forward(double x, double y, double[] lonLat) {
+        forward(x, y, lonLat, 0);
+        return true;
+    }
+
+    /**
+     * Evaluates the forward transform.
+     *
+     * @param x      The x pixel coordinate.
+     * @param y      The y pixel coordinate.
+     * @param lonLat Array to receive lon at offset and lat at offset + 1.
+     * @param offset The offset.
+     */
+    protected abstract void forward(double x, double y, double[] lonLat,
+                                    int offset);
+
+    /**
+     * Builds the InverseGrid over the region covered by the given range of
+     * calibration points extended by a margin.
+     *
+     * @param xs The x pixel coordinates.
+     * @param ys The y pixel coordinates.
+     * @param n  The number of points.
+     */
+    protected void buildGrid(int[] xs, int[] ys, int n) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        double marginX = GRID_MARGIN * (maxX - minX);
+        double marginY = GRID_MARGIN * (maxY - minY);
+        double x0 = minX - marginX, x1 = maxX + marginX;
+        double y0 = minY - marginY, y1 = maxY + marginY;
+        // Find the longitude and latitude range along the boundary
+        double minLon = Double.MAX_VALUE, minLat = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double[] lonLat = new double[2];
+        final int nSteps = 16;
+        for (int k = 0; k <= nSteps; k++) {
+            double t = (double) k / nSteps;
+            double xt = x0 + t * (x1 - x0), yt = y0 + t * (y1 - y0);
+            for (int side = 0; side < 4; side++) {
+                switch (side) {
+                    case 0:
+                        forward(xt, y0, lonLat, 0);
+                        break;
+                    case 1:
+                        forward(xt, y1, lonLat, 0);
+                        break;
+                    case 2:
+                        forward(x0, yt, lonLat, 0);
+                        break;
+                    default:
+                        forward(x1, yt, lonLat, 0);
+                        break;
+                }
+                minLon = Math.min(minLon, lonLat[0]);
+                maxLon = Math.max(maxLon, lonLat[0]);
+                minLat = Math.min(minLat, lonLat[1]);
+                maxLat = Math.max(maxLat, lonLat[1]);
+            }
+        }
+        grid = InverseGrid.build(this, minLon, minLat, maxLon, maxLat);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        writeParameters(out);
+        out.writeBoolean(grid != null);
+        if (grid != null) {
+            grid.write(out);
+        }
+    }
+
+    /**
+     * Writes the parameters of the subclass.
+     *
+     * @param out The output.
+     * @throws IOException On a write error.
+     */
+    protected abstract void writeParameters(DataOutputStream out)
+            throws IOException;
+
+    /**
+     * Reads the grid written by write after the subclass has read its
+     * parameters.
+     *
+     * @param in The input.
+     * @throws IOException On a read error.
+     */
+    protected void readGrid(DataInputStream in) throws IOException {
+        grid = in.readBoolean() ? InverseGrid.read(in) : null;
+    }
+
+    /**
+     * Reads a non-linear model written by write.
+     *
+     * @param type   The model type.
+     * @param affine The affine fit to the same points.
+     * @param in     The input.
+     * @return The model.
+     * @throws IOException On a read error or invalid type.
+     */
+    static NonLinearModel read(int type, MapTransform affine,
+                               DataInputStream in) throws IOException {
+        NonLinearModel model;
+        switch (type) {
+            case MODEL_POLY2:
+            case MODEL_POLY3:
+                model = PolynomialModel.readParameters(type, affine, in);
+                break;
+            case MODEL_TPS:
+                model = ThinPlateSplineModel.readParameters(affine, in);
+                break;
+            default:
+                throw new CalibrationCache.InvalidEntryException(
+                        "Invalid model type: " + type);
+        }
+        model.readGrid(in);
+        return model;
+    }
+}
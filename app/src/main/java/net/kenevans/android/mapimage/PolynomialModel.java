@@ -0,0 +1,183 @@
+package net.kenevans.android.mapimage;
+
+import net.kenevans.android.mapimage.MapCalibration.MapTransform;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Second or third-order polynomial calibration model fitted by least
+ * squares. The pixel coordinates are centered and scaled before fitting to
+ * keep the normal equations well conditioned.
+ */
+public class PolynomialModel extends NonLinearModel {
+    private final int type;
+    private final int order;
+    private final double cx, cy, scale;
+    private final double[] cLon, cLat;
+
+    private PolynomialModel(int type, MapTransform affine, double cx,
+                            double cy, double scale, double[] cLon,
+                            double[] cLat) {
+        super(affine);
+        this.type = type;
+        this.order = type == MODEL_POLY3 ? 3 : 2;
+        this.cx = cx;
+        this.cy = cy;
+        this.scale = scale;
+        this.cLon = cLon;
+        this.cLat = cLat;
+    }
+
+    /**
+     * Gets the number of terms for the given model type.
+     *
+     * @param type MODEL_POLY2 or MODEL_POLY3.
+     * @return The number of terms.
+     */
+    public static int getNTerms(int type) {
+        return type == MODEL_POLY3 ? 10 : 6;
+    }
+
+    /**
+     * Fits a polynomial model to the given points.
+     *
+     * @param type   MODEL_POLY2 or MODEL_POLY3.
+     * @param affine The affine fit to the same points.
+     * @param xs     The x pixel coordinates.
+     * @param ys     The y pixel coordinates.
+     * @param lons   The longitudes.
+     * @param lats   The latitudes.
+     * @param n      The number of points.
+     * @return The model or null if there are too few points or the fit
+     * failed.
+     */
+    public static PolynomialModel fit(int type, MapTransform affine,
+                                      int[] xs, int[] ys, double[] lons,
+                                      double[] lats, int n) {
+        int m = getNTerms(type);
+        if (n < m) return null;
+        // Normalize
+        double sumX = 0, sumY = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            sumX += xs[i];
+            sumY += ys[i];
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        double range = Math.max(maxX - minX, maxY - minY);
+        if (!(range > 0)) return null;
+        double cx = sumX / n, cy = sumY / n, scale = 2 / range;
+        // Normal equations with two right-hand sides
+        double[] ata = new double[m * m];
+        double[] atb = new double[2 * m];
+        double[] terms = new double[m];
+        for (int i = 0; i < n; i++) {
+            setTerms((xs[i] - cx) * scale, (ys[i] - cy) * scale, m, terms);
+            for (int r = 0; r < m; r++) {
+                double tr = terms[r];
+                for (int c = r; c < m; c++) {
+                    ata[r * m + c] += tr * terms[c];
+                }
+                atb[2 * r] += tr * lons[i];
+                atb[2 * r + 1] += tr * lats[i];
+            }
+        }
+        for (int r = 1; r < m; r++) {
+            for (int c = 0; c < r; c++) {
+                ata[r * m + c] = ata[c * m + r];
+            }
+        }
+        if (!DenseSolver.solve(ata, m, atb, 2)) return null;
+        double[] cLon = new double[m];
+        double[] cLat = new double[m];
+        for (int r = 0; r < m; r++) {
+            cLon[r] = atb[2 * r];
+            cLat[r] = atb[2 * r + 1];
+        }
+        PolynomialModel model = new PolynomialModel(type, affine, cx, cy,
+                scale, cLon, cLat);
+        model.buildGrid(xs, ys, n);
+        return model;
+    }
+
+    /**
+     * Sets the polynomial terms 1, u, v, u^2, uv, v^2, and for third order
+     * u^3, u^2v, uv^2, v^3.
+     *
+     * @param u     The normalized x.
+     * @param v     The normalized y.
+     * @param m     The number of terms.
+     * @param terms Array to receive the terms.
+     */
+    private static void setTerms(double u, double v, int m, double[] terms) {
+        terms[0] = 1;
+        terms[1] = u;
+        terms[2] = v;
+        terms[3] = u * u;
+        terms[4] = u * v;
+        terms[5] = v * v;
+        if (m > 6) {
+            terms[6] = terms[3] * u;
+            terms[7] = terms[3] * v;
+            terms[8] = u * terms[5];
+            terms[9] = v * terms[5];
+        }
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    protected void forward(double x, double y, double[] lonLat, int offset) {
+        double u = (x - cx) * scale, v = (y - cy) * scale;
+        double uu = u * u, uv = u * v, vv = v * v;
+        double lon = cLon[0] + cLon[1] * u + cLon[2] * v + cLon[3] * uu
+                + cLon[4] * uv + cLon[5] * vv;
+        double lat = cLat[0] + cLat[1] * u + cLat[2] * v + cLat[3] * uu
+                + cLat[4] * uv + cLat[5] * vv;
+        if (order == 3) {
+            double uuu = uu * u, uuv = uu * v, uvv = u * vv, vvv = vv * v;
+            lon += cLon[6] * uuu + cLon[7] * uuv + cLon[8] * uvv
+                    + cLon[9] * vvv;
+            lat += cLat[6] * uuu + cLat[7] * uuv + cLat[8] * uvv
+                    + cLat[9] * vvv;
+        }
+        lonLat[offset] = lon;
+        lonLat[offset + 1] = lat;
+    }
+
+    @Override
+    protected void writeParameters(DataOutputStream out) throws IOException {
+        out.writeDouble(cx);
+        out.writeDouble(cy);
+        out.writeDouble(scale);
+        for (int r = 0; r < cLon.length; r++) {
+            out.writeDouble(cLon[r]);
+            out.writeDouble(cLat[r]);
+        }
+    }
+
+    static PolynomialModel readParameters(int type, MapTransform affine,
+                                          DataInputStream in)
+            throws IOException {
+        double cx = in.readDouble();
+        double cy = in.readDouble();
+        double scale = in.readDouble();
+        int m = getNTerms(type);
+        double[] cLon = new double[m];
+        double[] cLat = new double[m];
+        for (int r = 0; r < m; r++) {
+            cLon[r] = in.readDouble();
+            cLat[r] = in.readDouble();
+        }
+        return new PolynomialModel(type, affine, cx, cy, scale, cLon, cLat);
+    }
+}
@@ -0,0 +1,98 @@
+package net.kenevans.android.mapimage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A calibration model fitted between pixel coordinates and a projected
+ * plane, combined with the Projection so that it converts between pixels
+ * and longitude and latitude like any other CalibrationModel.
+ * <p>
+ * The bulk inverse projects the points a chunk at a time into work arrays
+ * kept in this object, so it does not allocate and is not thread safe.
+ */
+public class ProjectedModel implements CalibrationModel {
+    /**
+     * Number of points projected at a time in the bulk inverse.
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    private final Projection projection;
+    private final CalibrationModel planeModel;
+    /**
+     * Work arrays for the bulk inverse, allocated when first needed.
+     */
+    private double[] es;
+    private double[] ns;
+    private float[] chunkXy;
+
+    /**
+     * @param projection The projection.
+     * @param planeModel The model from pixels to projected coordinates.
+     */
+    public ProjectedModel(Projection projection,
+                          CalibrationModel planeModel) {
+        this.projection = projection;
+        this.planeModel = planeModel;
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return The model from pixels to projected coordinates.
+     */
+    public CalibrationModel getPlaneModel() {
+        return planeModel;
+    }
+
+    @Override
+    public int getType() {
+        return planeModel.getType();
+    }
+
+    @Override
+    public boolean forward(double x, double y, double[] lonLat) {
+        if (!planeModel.forward(x, y, lonLat)) return false;
+        projection.unproject(lonLat[0], lonLat[1], lonLat, 0);
+        return true;
+    }
+
+    @Override
+    public boolean inverse(double lon, double lat, double[] xy) {
+        projection.project(lon, lat, xy, 0);
+        return planeModel.inverse(xy[0], xy[1], xy);
+    }
+
+    @Override
+    public int inverse(double[] lons, double[] lats, int n, float[] xy) {
+        if (es == null) {
+            es = new double[CHUNK_SIZE];
+            ns = new double[CHUNK_SIZE];
+            chunkXy = new float[2 * CHUNK_SIZE];
+        }
+        int nConverted = 0;
+        for (int start = 0; start < n; start += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, n - start);
+            // Projects in place
+            System.arraycopy(lons, start, es, 0, count);
+            System.arraycopy(lats, start, ns, 0, count);
+            projection.project(es, ns, count, es, ns);
+            nConverted += planeModel.inverse(es, ns, count, chunkXy);
+            System.arraycopy(chunkXy, 0, xy, 2 * start, 2 * count);
+        }
+        return nConverted;
+    }
+
+    /**
+     * Writes the plane model. The projection is written separately.
+     *
+     * @param out The output.
+     * @throws IOException On a write error.
+     */
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        planeModel.write(out);
+    }
+}
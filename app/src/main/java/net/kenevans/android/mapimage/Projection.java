@@ -0,0 +1,467 @@
+package net.kenevans.android.mapimage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Map projection from longitude and latitude in degrees on the WGS84
+ * ellipsoid to a plane in metres. All constants are computed in the
+ * constructor so converting a point involves no repeated setup. The bulk
+ * project uses a work array kept in this object, so it is not thread safe.
+ */
+public abstract class Projection {
+    public static final int PROJECTION_NONE = 0;
+    public static final int PROJECTION_UTM = 1;
+    public static final int PROJECTION_WEB_MERCATOR = 2;
+    public static final int PROJECTION_LCC = 3;
+
+    /**
+     * WGS84 semi-major axis in m.
+     */
+    public static final double WGS84_A = 6378137;
+    /**
+     * WGS84 flattening.
+     */
+    public static final double WGS84_F = 1 / 298.257223563;
+    /**
+     * WGS84 first eccentricity.
+     */
+    public static final double WGS84_E = Math.sqrt(WGS84_F * (2 - WGS84_F));
+
+    /**
+     * Work array for the bulk project.
+     */
+    private final double[] en = new double[2];
+
+    /**
+     * @return One of the PROJECTION_ constants.
+     */
+    public abstract int getType();
+
+    /**
+     * Projects a point.
+     *
+     * @param lon    The longitude in degrees.
+     * @param lat    The latitude in degrees.
+     * @param en     Array to receive easting at offset and northing at
+     *               offset + 1.
+     * @param offset The offset.
+     */
+    public abstract void project(double lon, double lat, double[] en,
+                                 int offset);
+
+    /**
+     * Converts a projected point back to longitude and latitude.
+     *
+     * @param e      The easting in m.
+     * @param n      The northing in m.
+     * @param lonLat Array to receive longitude at offset and latitude at
+     *               offset + 1, in degrees.
+     * @param offset The offset.
+     */
+    public abstract void unproject(double e, double n, double[] lonLat,
+                                   int offset);
+
+    /**
+     * Projects arrays of points. The output arrays may be the same as the
+     * input arrays.
+     *
+     * @param lons The longitudes in degrees.
+     * @param lats The latitudes in degrees.
+     * @param n    The number of points.
+     * @param es   Array to receive the eastings.
+     * @param ns   Array to receive the northings.
+     */
+    public void project(double[] lons, double[] lats, int n, double[] es,
+                        double[] ns) {
+        for (int i = 0; i < n; i++) {
+            project(lons[i], lats[i], en, 0);
+            es[i] = en[0];
+            ns[i] = en[1];
+        }
+    }
+
+    /**
+     * Writes the parameters needed to recreate the projection.
+     *
+     * @param out The output.
+     * @throws IOException On a write error.
+     */
+    public abstract void write(DataOutputStream out) throws IOException;
+
+    /**
+     * Reads a projection written by write.
+     *
+     * @param in The input.
+     * @return The projection or null for PROJECTION_NONE.
+     * @throws IOException On a read error or invalid type.
+     */
+    public static Projection read(DataInputStream in) throws IOException {
+        int type = in.readInt();
+        switch (type) {
+            case PROJECTION_NONE:
+                return null;
+            case PROJECTION_UTM:
+                return new TransverseMercator(in.readInt(),
+                        in.readBoolean());
+            case PROJECTION_WEB_MERCATOR:
+                return new WebMercator();
+            case PROJECTION_LCC:
+                return new LambertConformalConic(in.readDouble(),
+                        in.readDouble(), in.readDouble(), in.readDouble());
+            default:
+                throw new CalibrationCache.InvalidEntryException(
+                        "Invalid projection type: " + type);
+        }
+    }
+
+    /**
+     * Writes the given projection, which may be null.
+     *
+     * @param projection The projection or null.
+     * @param out        The output.
+     * @throws IOException On a write error.
+     */
+    public static void write(Projection projection, DataOutputStream out)
+            throws IOException {
+        if (projection == null) {
+            out.writeInt(PROJECTION_NONE);
+        } else {
+            projection.write(out);
+        }
+    }
+
+    /**
+     * Creates a projection from the parameters in a calibration file
+     * header. Parameters that are not given are chosen to suit the
+     * calibration points.
+     *
+     * @param type    One of the PROJECTION_ constants.
+     * @param params  The parameters. For UTM, the zone (0 to choose it) and
+     *                1 for the southern hemisphere. For LCC, the two
+     *                standard parallels, the latitude of origin, and the
+     *                central meridian.
+     * @param nParams The number of parameters given.
+     * @param lons    The longitudes of the calibration points.
+     * @param lats    The latitudes of the calibration points.
+     * @param n       The number of calibration points.
+     * @return The projection or null for PROJECTION_NONE.
+     */
+    public static Projection create(int type, double[] params, int nParams,
+                                    double[] lons, double[] lats, int n) {
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double sumLon = 0, sumLat = 0;
+        for (int i = 0; i < n; i++) {
+            sumLon += lons[i];
+            sumLat += lats[i];
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+        }
+        double meanLon = n > 0 ? sumLon / n : 0;
+        double meanLat = n > 0 ? sumLat / n : 0;
+        switch (type) {
+            case PROJECTION_UTM: {
+                int zone = nParams > 0 ? (int) params[0] : 0;
+                if (zone < 1 || zone > 60) {
+                    zone = (int) Math.floor((meanLon + 180) / 6) % 60 + 1;
+                }
+                boolean south = nParams > 1 ? params[1] != 0 : meanLat < 0;
+                return new TransverseMercator(zone, south);
+            }
+            case PROJECTION_WEB_MERCATOR:
+                return new WebMercator();
+            case PROJECTION_LCC: {
+                if (nParams >= 4) {
+                    return new LambertConformalConic(params[0], params[1],
+                            params[2], params[3]);
+                }
+                // Standard parallels at 1/6 and 5/6 of the range
+                double range = maxLat - minLat;
+                return new LambertConformalConic(minLat + range / 6,
+                        maxLat - range / 6, meanLat, meanLon);
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reduces an angle in radians to [-pi, pi].
+     *
+     * @param angle The angle.
+     * @return The reduced angle.
+     */
+    static double wrapRadians(double angle) {
+        if (angle > Math.PI || angle < -Math.PI) {
+            angle -= 2 * Math.PI * Math.floor((angle + Math.PI)
+                    / (2 * Math.PI));
+        }
+        return angle;
+    }
+
+    static double atanh(double x) {
+        return .5 * Math.log((1 + x) / (1 - x));
+    }
+
+    /**
+     * Universal Transverse Mercator using the Kr&uuml;ger series to fourth
+     * order in the third flattening, which is accurate to well under a
+     * millimetre within a zone.
+     */
+    public static class TransverseMercator extends Projection {
+        private static final double K0 = .9996;
+        private static final double FALSE_EASTING = 500000;
+        private static final double FALSE_NORTHING_SOUTH = 10000000;
+
+        private final int zone;
+        private final boolean south;
+        private final double lon0;
+        private final double falseNorthing;
+        /**
+         * K0 times the rectifying radius.
+         */
+        private final double k0A;
+        private final double[] alpha = new double[4];
+        private final double[] beta = new double[4];
+        private final double[] delta = new double[4];
+
+        public TransverseMercator(int zone, boolean south) {
+            this.zone = zone;
+            this.south = south;
+            lon0 = Math.toRadians(6 * zone - 183);
+            falseNorthing = south ? FALSE_NORTHING_SOUTH : 0;
+            double n = WGS84_F / (2 - WGS84_F);
+            double n2 = n * n, n3 = n2 * n, n4 = n3 * n;
+            k0A = K0 * WGS84_A / (1 + n) * (1 + n2 / 4 + n4 / 64);
+            alpha[0] = n / 2 - 2 * n2 / 3 + 5 * n3 / 16 + 41 * n4 / 180;
+            alpha[1] = 13 * n2 / 48 - 3 * n3 / 5 + 557 * n4 / 1440;
+            alpha[2] = 61 * n3 / 240 - 103 * n4 / 140;
+            alpha[3] = 49561 * n4 / 161280;
+            beta[0] = n / 2 - 2 * n2 / 3 + 37 * n3 / 96 - n4 / 360;
+            beta[1] = n2 / 48 + n3 / 15 - 437 * n4 / 1440;
+            beta[2] = 17 * n3 / 480 - 37 * n4 / 840;
+            beta[3] = 4397 * n4 / 161280;
+            delta[0] = 2 * n - 2 * n2 / 3 - 2 * n3 + 116 * n4 / 45;
+            delta[1] = 7 * n2 / 3 - 8 * n3 / 5 - 227 * n4 / 45;
+            delta[2] = 56 * n3 / 15 - 136 * n4 / 35;
+            delta[3] = 4279 * n4 / 630;
+        }
+
+        @Override
+        public int getType() {
+            return PROJECTION_UTM;
+        }
+
+        public int getZone() {
+            return zone;
+        }
+
+        public boolean isSouth() {
+            return south;
+        }
+
+        @Override
+        public void project(double lon, double lat, double[] en, int offset) {
+            double phi = Math.toRadians(lat);
+            double dLambda = wrapRadians(Math.toRadians(lon) - lon0);
+            double sinPhi = Math.sin(phi);
+            // Conformal latitude
+            double t = Math.sinh(atanh(sinPhi)
+                    - WGS84_E * atanh(WGS84_E * sinPhi));
+            double xiP = Math.atan2(t, Math.cos(dLambda));
+            double etaP = atanh(Math.sin(dLambda) / Math.sqrt(1 + t * t));
+            // Sum the series using multiple-angle recurrences
+            double s1 = Math.sin(2 * xiP), c1 = Math.cos(2 * xiP);
+            double sh1 = Math.sinh(2 * etaP), ch1 = Math.cosh(2 * etaP);
+            double s = s1, c = c1, sh = sh1, ch = ch1, tmp;
+            double xi = xiP, eta = etaP;
+            for (int j = 0; j < 4; j++) {
+                xi += alpha[j] * s * ch;
+                eta += alpha[j] * c * sh;
+                tmp = s * c1 + c * s1;
+                c = c * c1 - s * s1;
+                s = tmp;
+                tmp = sh * ch1 + ch * sh1;
+                ch = ch * ch1 + sh * sh1;
+                sh = tmp;
+            }
+            en[offset] = FALSE_EASTING + k0A * eta;
+            en[offset + 1] = falseNorthing + k0A * xi;
+        }
+
+        @Override
+        public void unproject(double e, double n, double[] lonLat,
+                              int offset) {
+            double xi = (n - falseNorthing) / k0A;
+            double eta = (e - FALSE_EASTING) / k0A;
+            double s1 = Math.sin(2 * xi), c1 = Math.cos(2 * xi);
+            double sh1 = Math.sinh(2 * eta), ch1 = Math.cosh(2 * eta);
+            double s = s1, c = c1, sh = sh1, ch = ch1, tmp;
+            double xiP = xi, etaP = eta;
+            for (int j = 0; j < 4; j++) {
+                xiP -= beta[j] * s * ch;
+                etaP -= beta[j] * c * sh;
+                tmp = s * c1 + c * s1;
+                c = c * c1 - s * s1;
+                s = tmp;
+                tmp = sh * ch1 + ch * sh1;
+                ch = ch * ch1 + sh * sh1;
+                sh = tmp;
+            }
+            double chi = Math.asin(Math.sin(xiP) / Math.cosh(etaP));
+            double s2 = Math.sin(2 * chi), c2 = Math.cos(2 * chi);
+            s = s2;
+            c = c2;
+            double phi = chi;
+            for (int j = 0; j < 4; j++) {
+                phi += delta[j] * s;
+                tmp = s * c2 + c * s2;
+                c = c * c2 - s * s2;
+                s = tmp;
+            }
+            double lambda = lon0 + Math.atan2(Math.sinh(etaP), Math.cos(xiP));
+            lonLat[offset] = Math.toDegrees(wrapRadians(lambda));
+            lonLat[offset + 1] = Math.toDegrees(phi);
+        }
+
+        @Override
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(PROJECTION_UTM);
+            out.writeInt(zone);
+            out.writeBoolean(south);
+        }
+    }
+
+    /**
+     * Spherical Web Mercator (EPSG:3857).
+     */
+    public static class WebMercator extends Projection {
+        private static final double DEG_TO_M = Math.toRadians(WGS84_A);
+        private static final double MAX_LAT = 85.0511287798;
+
+        @Override
+        public int getType() {
+            return PROJECTION_WEB_MERCATOR;
+        }
+
+        @Override
+        public void project(double lon, double lat, double[] en, int offset) {
+            lat = Math.max(-MAX_LAT, Math.min(MAX_LAT, lat));
+            en[offset] = DEG_TO_M * lon;
+            en[offset + 1] = WGS84_A * atanh(Math.sin(Math.toRadians(lat)));
+        }
+
+        @Override
+        public void unproject(double e, double n, double[] lonLat,
+                              int offset) {
+            lonLat[offset] = e / DEG_TO_M;
+            lonLat[offset + 1] = Math.toDegrees(Math.atan(Math.sinh(n
+                    / WGS84_A)));
+        }
+
+        @Override
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(PROJECTION_WEB_MERCATOR);
+        }
+    }
+
+    /**
+     * Ellipsoidal Lambert conformal conic with two standard parallels.
+     */
+    public static class LambertConformalConic extends Projection {
+        private static final int MAX_ITERATIONS = 10;
+        private static final double TOLERANCE = 1e-12;
+
+        private final double lat1, lat2, latOrigin, lonOrigin;
+        private final double lon0;
+        private final double n;
+        private final double aF;
+        private final double rho0;
+        private final double halfE = WGS84_E / 2;
+
+        /**
+         * @param lat1      The first standard parallel in degrees.
+         * @param lat2      The second standard parallel in degrees.
+         * @param latOrigin The latitude of origin in degrees.
+         * @param lonOrigin The central meridian in degrees.
+         */
+        public LambertConformalConic(double lat1, double lat2,
+                                     double latOrigin, double lonOrigin) {
+            this.lat1 = lat1;
+            this.lat2 = lat2;
+            this.latOrigin = latOrigin;
+            this.lonOrigin = lonOrigin;
+            lon0 = Math.toRadians(lonOrigin);
+            double phi1 = Math.toRadians(lat1);
+            double phi2 = Math.toRadians(lat2);
+            double m1 = m(phi1), m2 = m(phi2);
+            double t1 = t(phi1), t2 = t(phi2);
+            if (Math.abs(phi1 - phi2) < 1e-10) {
+                n = Math.sin(phi1);
+            } else {
+                n = (Math.log(m1) - Math.log(m2))
+                        / (Math.log(t1) - Math.log(t2));
+            }
+            aF = WGS84_A * m1 / (n * Math.pow(t1, n));
+            rho0 = aF * Math.pow(t(Math.toRadians(latOrigin)), n);
+        }
+
+        private static double m(double phi) {
+            double sinPhi = Math.sin(phi);
+            return Math.cos(phi) / Math.sqrt(1 - WGS84_E * WGS84_E
+                    * sinPhi * sinPhi);
+        }
+
+        private double t(double phi) {
+            double eSinPhi = WGS84_E * Math.sin(phi);
+            return Math.tan(Math.PI / 4 - phi / 2)
+                    / Math.pow((1 - eSinPhi) / (1 + eSinPhi), halfE);
+        }
+
+        @Override
+        public int getType() {
+            return PROJECTION_LCC;
+        }
+
+        @Override
+        public void project(double lon, double lat, double[] en, int offset) {
+            double rho = aF * Math.pow(t(Math.toRadians(lat)), n);
+            double theta = n * wrapRadians(Math.toRadians(lon) - lon0);
+            en[offset] = rho * Math.sin(theta);
+            en[offset + 1] = rho0 - rho * Math.cos(theta);
+        }
+
+        @Override
+        public void unproject(double e, double nn, double[] lonLat,
+                              int offset) {
+            double sign = n < 0 ? -1 : 1;
+            double dy = rho0 - nn;
+            double rho = sign * Math.sqrt(e * e + dy * dy);
+            double tp = Math.pow(rho / aF, 1 / n);
+            double theta = Math.atan2(sign * e, sign * dy);
+            double phi = Math.PI / 2 - 2 * Math.atan(tp);
+            for (int i = 0; i < MAX_ITERATIONS; i++) {
+                double eSinPhi = WGS84_E * Math.sin(phi);
+                double phiNew = Math.PI / 2 - 2 * Math.atan(tp
+                        * Math.pow((1 - eSinPhi) / (1 + eSinPhi), halfE));
+                if (Math.abs(phiNew - phi) < TOLERANCE) {
+                    phi = phiNew;
+                    break;
+                }
+                phi = phiNew;
+            }
+            lonLat[offset] = Math.toDegrees(wrapRadians(theta / n + lon0));
+            lonLat[offset + 1] = Math.toDegrees(phi);
+        }
+
+        @Override
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(PROJECTION_LCC);
+            out.writeDouble(lat1);
+            out.writeDouble(lat2);
+            out.writeDouble(latOrigin);
+            out.writeDouble(lonOrigin);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package net.kenevans.android.mapimage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over the segments of a polyline in source coordinates, for
+ * finding the segments in the visible rectangle. Segment i joins points i
+ * and i + 1 and is put in the cells it passes through. Segments are added
+ * as points are appended.
+ * <p>
+ * A segment that is longer than MAX_SEGMENT_SPAN cells, such as one
+ * across a gap in the track, or that has coordinates too large for the
+ * grid, is kept in a separate list instead, and every query returns it.
+ * This keeps the cost of adding a segment bounded.
+ * <p>
+ * Only the cells that have segments are stored. A query checks each of
+ * them against the rectangle, which is cheap since there are far fewer
+ * cells than segments, and does not allocate once the work arrays are
+ * large enough.
+ */
+public class SegmentGrid {
+    /**
+     * The longest segment put in the cells, as its width plus height in
+     * cells.
+     */
+    private static final int MAX_SEGMENT_SPAN = 64;
+    /**
+     * Fraction of a cell the y range in a column is widened by, so
+     * rounding does not miss a cell the segment just touches.
+     */
+    private static final double EDGE_TOLERANCE = 1e-3;
+    /**
+     * Limit on the magnitude of a cell index, well inside the int range.
+     */
+    private static final double MAX_CELL_INDEX = 1 << 30;
+
+    private final float cellSize;
+    private final Map<Long, Cell> cellMap = new HashMap<>();
+    private final List<Cell> cells = new ArrayList<>();
+    /**
+     * The cell a segment was last added to, since consecutive segments are
+     * usually in the same cell.
+     */
+    private Cell lastCell;
+    /**
+     * The segments that are not in the cells.
+     */
+    private int[] longSegments = new int[16];
+    private int nLongSegments;
+    /**
+     * The query in which each segment was last found, so segments in more
+     * than one cell are only returned once.
+     */
+    private int[] stamps = new int[256];
+    private int query;
+    private int[] found = new int[256];
+
+    /**
+     * @param cellSize The size of the cells in source pixels.
+     */
+    public SegmentGrid(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Removes all segments.
+     */
+    public void clear() {
+        cellMap.clear();
+        cells.clear();
+        lastCell = null;
+        nLongSegments = 0;
+    }
+
+    /**
+     * Adds a segment.
+     *
+     * @param pts     The points as {x0, y0, x1, y1, ...}.
+     * @param segment The index of the segment, which joins points segment
+     *                and segment + 1.
+     */
+    public void add(float[] pts, int segment) {
+        float x0 = pts[2 * segment], y0 = pts[2 * segment + 1];
+        float x1 = pts[2 * segment + 2], y1 = pts[2 * segment + 3];
+        // Go from left to right
+        if (x1 < x0) {
+            float tmp = x0;
+            x0 = x1;
+            x1 = tmp;
+            tmp = y0;
+            y0 = y1;
+            y1 = tmp;
+        }
+        // In cell units
+        double gx0 = x0 / cellSize, gy0 = y0 / cellSize;
+        double gx1 = x1 / cellSize, gy1 = y1 / cellSize;
+        if (!(Math.abs(gx0) < MAX_CELL_INDEX
+                && Math.abs(gy0) < MAX_CELL_INDEX
+                && Math.abs(gx1) < MAX_CELL_INDEX
+                && Math.abs(gy1) < MAX_CELL_INDEX)
+                || Math.abs(gx1 - gx0) + Math.abs(gy1 - gy0)
+                > MAX_SEGMENT_SPAN) {
+            // Also catches NaN
+            addLongSegment(segment);
+        } else {
+            addToCells(segment, gx0, gy0, gx1, gy1);
+        }
+        if (segment >= stamps.length) {
+            int[] newStamps = new int[Math.max(segment + 1,
+                    2 * stamps.length)];
+            System.arraycopy(stamps, 0, newStamps, 0, stamps.length);
+            stamps = newStamps;
+        }
+    }
+
+    /**
+     * Finds the segments in cells that intersect the given rectangle and
+     * the long segments. The results are in getFound, in no particular
+     * order.
+     *
+     * @param minX The minimum x.
+     * @param minY The minimum y.
+     * @param maxX The maximum x.
+     * @param maxY The maximum y.
+     * @return The number found.
+     */
+    public int find(float minX, float minY, float maxX, float maxY) {
+        if (++query == 0) {
+            // Wrapped around, so old stamps could match
+            Arrays.fill(stamps, 0);
+            query = 1;
+        }
+        int cx0 = cellIndex(minX), cx1 = cellIndex(maxX);
+        int cy0 = cellIndex(minY), cy1 = cellIndex(maxY);
+        if (found.length < nLongSegments) {
+            found = new int[Math.max(nLongSegments, 2 * found.length)];
+        }
+        // These are in no cell, so they are only found here
+        System.arraycopy(longSegments, 0, found, 0, nLongSegments);
+        int nFound = nLongSegments;
+        // Indexed rather than for-each so there is no Iterator
+        for (int i = 0, n = cells.size(); i < n; i++) {
+            Cell cell = cells.get(i);
+            if (cell.cx < cx0 || cell.cx > cx1 || cell.cy < cy0
+                    || cell.cy > cy1) {
+                continue;
+            }
+            for (int j = 0; j < cell.nSegments; j++) {
+                int segment = cell.segments[j];
+                if (stamps[segment] == query) continue;
+                stamps[segment] = query;
+                if (nFound == found.length) {
+                    int[] newFound = new int[2 * found.length];
+                    System.arraycopy(found, 0, newFound, 0, nFound);
+                    found = newFound;
+                }
+                found[nFound++] = segment;
+            }
+        }
+        return nFound;
+    }
+
+    /**
+     * Returns the segments from the last find. Only the number it returned
+     * are valid.
+     *
+     * @return The segment indices.
+     */
+    public int[] getFound() {
+        return found;
+    }
+
+    /**
+     * Adds a segment to the cells it passes through, one column of cells
+     * at a time. In each column, the cells are those between the y values
+     * of the segment where it enters and leaves the column.
+     *
+     * @param segment The index of the segment.
+     * @param gx0     The x of the left end in cell units.
+     * @param gy0     The y of the left end in cell units.
+     * @param gx1     The x of the right end in cell units.
+     * @param gy1     The y of the right end in cell units.
+     */
+    private void addToCells(int segment, double gx0, double gy0,
+                            double gx1, double gy1) {
+        int cx0 = (int) Math.floor(gx0), cx1 = (int) Math.floor(gx1);
+        double slope = cx0 == cx1 ? 0 : (gy1 - gy0) / (gx1 - gx0);
+        for (int cx = cx0; cx <= cx1; cx++) {
+            // The y values at the ends of the part in this column
+            double ya = cx == cx0 ? gy0 : gy0 + (cx - gx0) * slope;
+            double yb = cx == cx1 ? gy1 : gy0 + (cx + 1 - gx0) * slope;
+            int cy0 = (int) Math.floor(Math.min(ya, yb) - EDGE_TOLERANCE);
+            int cy1 = (int) Math.floor(Math.max(ya, yb) + EDGE_TOLERANCE);
+            for (int cy = cy0; cy <= cy1; cy++) {
+                getCell(cx, cy).add(segment);
+            }
+        }
+    }
+
+    private void addLongSegment(int segment) {
+        if (nLongSegments == longSegments.length) {
+            int[] newLongSegments = new int[2 * longSegments.length];
+            System.arraycopy(longSegments, 0, newLongSegments, 0,
+                    nLongSegments);
+            longSegments = newLongSegments;
+        }
+        longSegments[nLongSegments++] = segment;
+    }
+
+    private int cellIndex(float val) {
+        return (int) Math.floor(val / cellSize);
+    }
+
+    private Cell getCell(int cx, int cy) {
+        if (lastCell != null && lastCell.cx == cx && lastCell.cy == cy) {
+            return lastCell;
+        }
+        Long key = ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+        Cell cell = cellMap.get(key);
+        if (cell == null) {
+            cell = new Cell(cx, cy);
+            cellMap.put(key, cell);
+            cells.add(cell);
+        }
+        lastCell = cell;
+        return cell;
+    }
+
+    /**
+     * The segments in one cell, in increasing order.
+     */
+    private static class Cell {
+        final int cx;
+        final int cy;
+        int[] segments = new int[16];
+        int nSegments;
+
+        Cell(int cx, int cy) {
+            this.cx = cx;
+            this.cy = cy;
+        }
+
+        void add(int segment) {
+            if (nSegments == segments.length) {
+                int[] newSegments = new int[2 * segments.length];
+                System.arraycopy(segments, 0, newSegments, 0, nSegments);
+                segments = newSegments;
+            }
+            segments[nSegments++] = segment;
+        }
+    }
+}
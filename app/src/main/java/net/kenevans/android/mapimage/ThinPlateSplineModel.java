@@ -0,0 +1,185 @@
+package net.kenevans.android.mapimage;
+
+import net.kenevans.android.mapimage.MapCalibration.MapTransform;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Thin-plate spline calibration model. It passes exactly through the
+ * calibration points. Evaluating the forward transform is O(n) in the
+ * number of points, so the inverse grid is what keeps per-fix lookups
+ * cheap.
+ */
+public class ThinPlateSplineModel extends NonLinearModel {
+    /**
+     * Limit on the number of points, since the fit is O(n^3).
+     */
+    public static final int MAX_POINTS = 1000;
+
+    private final double cx, cy, scale;
+    /**
+     * Normalized calibration point coordinates.
+     */
+    private final double[] us, vs;
+    /**
+     * Weights for each point followed by the three affine coefficients.
+     */
+    private final double[] wLon, wLat;
+
+    private ThinPlateSplineModel(MapTransform affine, double cx, double cy,
+                                 double scale, double[] us, double[] vs,
+                                 double[] wLon, double[] wLat) {
+        super(affine);
+        this.cx = cx;
+        this.cy = cy;
+        this.scale = scale;
+        this.us = us;
+        this.vs = vs;
+        this.wLon = wLon;
+        this.wLat = wLat;
+    }
+
+    /**
+     * Fits a thin-plate spline to the given points.
+     *
+     * @param affine The affine fit to the same points.
+     * @param xs     The x pixel coordinates.
+     * @param ys     The y pixel coordinates.
+     * @param lons   The longitudes.
+     * @param lats   The latitudes.
+     * @param n      The number of points.
+     * @return The model or null if there are too few or too many points or
+     * the fit failed, for example with duplicate points.
+     */
+    public static ThinPlateSplineModel fit(MapTransform affine, int[] xs,
+                                           int[] ys, double[] lons,
+                                           double[] lats, int n) {
+        if (n < 3 || n > MAX_POINTS) return null;
+        double sumX = 0, sumY = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            sumX += xs[i];
+            sumY += ys[i];
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        double range = Math.max(maxX - minX, maxY - minY);
+        if (!(range > 0)) return null;
+        double cx = sumX / n, cy = sumY / n, scale = 2 / range;
+        double[] us = new double[n];
+        double[] vs = new double[n];
+        for (int i = 0; i < n; i++) {
+            us[i] = (xs[i] - cx) * scale;
+            vs[i] = (ys[i] - cy) * scale;
+        }
+        // | K  P | | w |   | b |
+        // | Pt 0 | | a | = | 0 |
+        int size = n + 3;
+        double[] a = new double[size * size];
+        double[] b = new double[2 * size];
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double du = us[i] - us[j], dv = vs[i] - vs[j];
+                double k = kernel(du * du + dv * dv);
+                a[i * size + j] = k;
+                a[j * size + i] = k;
+            }
+            a[i * size + n] = a[n * size + i] = 1;
+            a[i * size + n + 1] = a[(n + 1) * size + i] = us[i];
+            a[i * size + n + 2] = a[(n + 2) * size + i] = vs[i];
+            b[2 * i] = lons[i];
+            b[2 * i + 1] = lats[i];
+        }
+        if (!DenseSolver.solve(a, size, b, 2)) return null;
+        double[] wLon = new double[size];
+        double[] wLat = new double[size];
+        for (int i = 0; i < size; i++) {
+            wLon[i] = b[2 * i];
+            wLat[i] = b[2 * i + 1];
+        }
+        ThinPlateSplineModel model = new ThinPlateSplineModel(affine, cx, cy,
+                scale, us, vs, wLon, wLat);
+        model.buildGrid(xs, ys, n);
+        return model;
+    }
+
+    /**
+     * The thin-plate spline radial basis function r^2 log(r^2).
+     *
+     * @param r2 The square of the distance.
+     * @return The value.
+     */
+    private static double kernel(double r2) {
+        return r2 > 0 ? r2 * Math.log(r2) : 0;
+    }
+
+    @Override
+    public int getType() {
+        return MODEL_TPS;
+    }
+
+    @Override
+    protected void forward(double x, double y, double[] lonLat, int offset) {
+        double u = (x - cx) * scale, v = (y - cy) * scale;
+        int n = us.length;
+        double lon = wLon[n] + wLon[n + 1] * u + wLon[n + 2] * v;
+        double lat = wLat[n] + wLat[n + 1] * u + wLat[n + 2] * v;
+        for (int i = 0; i < n; i++) {
+            double du = u - us[i], dv = v - vs[i];
+            double k = kernel(du * du + dv * dv);
+            lon += wLon[i] * k;
+            lat += wLat[i] * k;
+        }
+        lonLat[offset] = lon;
+        lonLat[offset + 1] = lat;
+    }
+
+    @Override
+    protected void writeParameters(DataOutputStream out) throws IOException {
+        out.writeDouble(cx);
+        out.writeDouble(cy);
+        out.writeDouble(scale);
+        int n = us.length;
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(us[i]);
+            out.writeDouble(vs[i]);
+        }
+        for (int i = 0; i < n + 3; i++) {
+            out.writeDouble(wLon[i]);
+            out.writeDouble(wLat[i]);
+        }
+    }
+
+    static ThinPlateSplineModel readParameters(MapTransform affine,
+                                               DataInputStream in)
+            throws IOException {
+        double cx = in.readDouble();
+        double cy = in.readDouble();
+        double scale = in.readDouble();
+        int n = in.readInt();
+        if (n < 3 || n > MAX_POINTS) {
+            throw new CalibrationCache.InvalidEntryException(
+                    "Invalid number of points: " + n);
+        }
+        double[] us = new double[n];
+        double[] vs = new double[n];
+        for (int i = 0; i < n; i++) {
+            us[i] = in.readDouble();
+            vs[i] = in.readDouble();
+        }
+        double[] wLon = new double[n + 3];
+        double[] wLat = new double[n + 3];
+        for (int i = 0; i < n + 3; i++) {
+            wLon[i] = in.readDouble();
+            wLat[i] = in.readDouble();
+        }
+        return new ThinPlateSplineModel(affine, cx, cy, scale, us, vs, wLon,
+                wLat);
+    }
+}
@@ -0,0 +1,325 @@
+package net.kenevans.android.mapimage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Thumbnails of the images for the file list. Thumbnails are decoded in
+ * the background from the image with a large inSampleSize and kept in a
+ * small memory LRU and in a size-bounded LRU in the application cache
+ * directory. Both are keyed by the document ID and last modified time, so
+ * a changed image gets a new thumbnail.
+ */
+public class ThumbnailCache implements IConstants {
+    private static final String CACHE_DIR = "thumbnails";
+    private static final String CACHE_EXT = ".jpg";
+    /**
+     * Size of the longer side of a thumbnail in pixels.
+     */
+    private static final int THUMBNAIL_SIZE = 128;
+    private static final int JPEG_QUALITY = 80;
+    private static final int MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    /**
+     * Maximum total size of the files. The least recently used are removed
+     * first.
+     */
+    private static final long MAX_DISK_BYTES = 32 * 1024 * 1024;
+    private static final int N_THREADS = 2;
+
+    private static final LruCache<String, Bitmap> sMemory =
+            new LruCache<String, Bitmap>(MAX_MEMORY_BYTES) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+    private static final ExecutorService sExecutor =
+            Executors.newFixedThreadPool(N_THREADS);
+    private static final Handler sHandler =
+            new Handler(Looper.getMainLooper());
+    /**
+     * Total size of the files, or -1 if not yet known.
+     */
+    private static long sDiskBytes = -1;
+
+    private ThumbnailCache() {
+    }
+
+    /**
+     * Sets the thumbnail for an image into an ImageView, loading it in the
+     * background if it is not in memory. A load still pending for a
+     * previous image in the same view is cancelled, so views may be
+     * recycled. Must be called on the main thread.
+     *
+     * @param view         The ImageView.
+     * @param uri          The image Uri.
+     * @param modifiedTime The last modified time of the image.
+     */
+    public static void bind(ImageView view, Uri uri, long modifiedTime) {
+        String key = getKey(uri, modifiedTime);
+        Object tag = view.getTag();
+        if (tag instanceof Request) {
+            Request old = (Request) tag;
+            if (old.key.equals(key)) return;
+            old.cancel();
+        }
+        Bitmap bitmap = sMemory.get(key);
+        if (bitmap != null) {
+            view.setTag(null);
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        view.setImageBitmap(null);
+        Request request = new Request(view.getContext().getApplicationContext(),
+                view, uri, modifiedTime, key);
+        view.setTag(request);
+        request.future = sExecutor.submit(request);
+    }
+
+    /**
+     * Removes all thumbnails from memory and disk.
+     *
+     * @param context The context.
+     */
+    public static synchronized void clear(Context context) {
+        sMemory.evictAll();
+        File[] files = getDir(context).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        sDiskBytes = 0;
+    }
+
+    private static String getKey(Uri uri, long modifiedTime) {
+        String id;
+        try {
+            id = DocumentsContract.getDocumentId(uri);
+        } catch (Exception ex) {
+            id = uri.toString();
+        }
+        return id + "@" + modifiedTime;
+    }
+
+    /**
+     * Gets the thumbnail from disk or by decoding the image. Called on a
+     * background thread.
+     *
+     * @param context      The context.
+     * @param uri          The image Uri.
+     * @param modifiedTime The last modified time of the image.
+     * @param key          The key.
+     * @return The thumbnail or null on failure.
+     */
+    private static Bitmap load(Context context, Uri uri, long modifiedTime,
+                               String key) {
+        File file = getFile(context, key);
+        if (file.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                // Mark it as recently used
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = decode(context, uri, modifiedTime);
+        if (bitmap != null) write(context, file, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Decodes a thumbnail from the image using the largest inSampleSize
+     * that keeps it at least THUMBNAIL_SIZE, then scales it.
+     *
+     * @param context      The context.
+     * @param uri          The image Uri.
+     * @param modifiedTime The last modified time of the image.
+     * @return The thumbnail or null on failure.
+     */
+    private static Bitmap decode(Context context, Uri uri,
+                                 long modifiedTime) {
+        int[] size = new int[2];
+        if (!ImageSizeReader.read(context, uri, modifiedTime, size)) {
+            return null;
+        }
+        int longer = Math.max(size[0], size[1]);
+        int sampleSize = 1;
+        while (longer / (2 * sampleSize) >= THUMBNAIL_SIZE) {
+            sampleSize *= 2;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap;
+        try (InputStream inputStream =
+                     context.getContentResolver().openInputStream(uri)) {
+            bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (Exception | OutOfMemoryError ex) {
+            Log.d(TAG, "ThumbnailCache: Failed to decode "
+                    + uri.getLastPathSegment() + ": " + ex);
+            return null;
+        }
+        if (bitmap == null) return null;
+        int width = bitmap.getWidth(), height = bitmap.getHeight();
+        if (Math.max(width, height) <= THUMBNAIL_SIZE) return bitmap;
+        double scale = (double) THUMBNAIL_SIZE / Math.max(width, height);
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, (int) Math.round(scale * width)),
+                Math.max(1, (int) Math.round(scale * height)), true);
+        if (scaled != bitmap) bitmap.recycle();
+        return scaled;
+    }
+
+    private static void write(Context context, File file, Bitmap bitmap) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (Exception ex) {
+            Log.d(TAG, "ThumbnailCache.write: Failed to write "
+                    + file.getName() + ": " + ex);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        long length = tmpFile.length();
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        added(context, length);
+    }
+
+    /**
+     * Updates the total size after a file is added and removes the least
+     * recently used files if it is over MAX_DISK_BYTES.
+     *
+     * @param context The context.
+     * @param length  The size of the added file.
+     */
+    private static synchronized void added(Context context, long length) {
+        File[] files = null;
+        if (sDiskBytes < 0) {
+            files = getDir(context).listFiles();
+            sDiskBytes = 0;
+            if (files != null) {
+                for (File file : files) sDiskBytes += file.length();
+            }
+        } else {
+            sDiskBytes += length;
+        }
+        if (sDiskBytes <= MAX_DISK_BYTES) return;
+        if (files == null) files = getDir(context).listFiles();
+        if (files == null) return;
+        Arrays.sort(files, (f1, f2) -> Long.compare(f1.lastModified(),
+                f2.lastModified()));
+        // Trim to three quarters so this is not done on every write
+        long target = MAX_DISK_BYTES / 4 * 3;
+        for (File file : files) {
+            if (sDiskBytes <= target) break;
+            long fileLength = file.length();
+            if (file.delete()) sDiskBytes -= fileLength;
+        }
+    }
+
+    private static File getDir(Context context) {
+        File dir = new File(context.getCacheDir(), CACHE_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.d(TAG, "ThumbnailCache: Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Gets the file for the given key. The name is a digest of the key.
+     *
+     * @param context The context.
+     * @param key     The key.
+     * @return The File.
+     */
+    private static File getFile(Context context, String key) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+        } catch (Exception ex) {
+            sb.append(Integer.toHexString(key.hashCode()));
+        }
+        return new File(getDir(context), sb + CACHE_EXT);
+    }
+
+    /**
+     * A pending load for an ImageView.
+     */
+    private static class Request implements Runnable {
+        private final Context context;
+        private final ImageView view;
+        private final Uri uri;
+        private final long modifiedTime;
+        private final String key;
+        private Future<?> future;
+        private volatile boolean cancelled;
+
+        Request(Context context, ImageView view, Uri uri, long modifiedTime,
+                String key) {
+            this.context = context;
+            this.view = view;
+            this.uri = uri;
+            this.modifiedTime = modifiedTime;
+            this.key = key;
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null) future.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            Bitmap bitmap = sMemory.get(key);
+            if (bitmap == null) {
+                bitmap = load(context, uri, modifiedTime, key);
+                if (bitmap == null) {
+                    // Let the next bind for the view try again
+                    sHandler.post(() -> {
+                        if (view.getTag() == this) view.setTag(null);
+                    });
+                    return;
+                }
+                sMemory.put(key, bitmap);
+            }
+            final Bitmap result = bitmap;
+            sHandler.post(() -> {
+                if (view.getTag() != this) return;
+                view.setTag(null);
+                view.setImageBitmap(result);
+            });
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package net.kenevans.android.mapimage;
+
+/**
+ * Growable buffer of track points in image pixel coordinates, stored as
+ * {x0, y0, x1, y1, ...} in one float array. Adding a point is amortized
+ * O(1), as the array is only reallocated, at twice the size, when it is
+ * full.
+ */
+public class TrackBuffer {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private float[] points = new float[2 * INITIAL_CAPACITY];
+    private int nPoints;
+
+    /**
+     * Removes all points. The storage is kept.
+     */
+    public void clear() {
+        nPoints = 0;
+    }
+
+    /**
+     * Adds a point.
+     *
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     */
+    public void add(float x, float y) {
+        ensureCapacity(nPoints + 1);
+        points[2 * nPoints] = x;
+        points[2 * nPoints + 1] = y;
+        nPoints++;
+    }
+
+    /**
+     * Replaces the points with the given ones, skipping any that are NaN.
+     *
+     * @param xy      The points as {x0, y0, x1, y1, ...}.
+     * @param nPoints The number of points to use from xy.
+     */
+    public void set(float[] xy, int nPoints) {
+        clear();
+        ensureCapacity(nPoints);
+        for (int i = 0; i < 2 * nPoints; i += 2) {
+            // Skip points that could not be converted
+            if (Float.isNaN(xy[i]) || Float.isNaN(xy[i + 1])) continue;
+            points[2 * this.nPoints] = xy[i];
+            points[2 * this.nPoints + 1] = xy[i + 1];
+            this.nPoints++;
+        }
+    }
+
+    /**
+     * @return The number of points.
+     */
+    public int size() {
+        return nPoints;
+    }
+
+    /**
+     * Returns the backing array. Only the first 2 * size() values are
+     * valid, and the array is replaced when it grows, so do not keep it.
+     *
+     * @return The points as {x0, y0, x1, y1, ...}.
+     */
+    public float[] getPoints() {
+        return points;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (2 * capacity <= points.length) return;
+        float[] newPoints = new float[Math.max(2 * capacity,
+                2 * points.length)];
+        System.arraycopy(points, 0, newPoints, 0, 2 * nPoints);
+        points = newPoints;
+    }
+}
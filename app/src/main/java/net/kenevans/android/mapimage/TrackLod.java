@@ -0,0 +1,251 @@
+package net.kenevans.android.mapimage;
+
+/**
+ * A track with simplified versions for drawing when zoomed out. Level 0 is
+ * the full track. Level k is level k - 1 simplified with Douglas-Peucker
+ * using a tolerance of BASE_TOLERANCE * 2^(k - 1) source pixels, so each
+ * level has a fraction of the points of the one below.
+ * <p>
+ * The levels are built incrementally. When level k - 1 has CHUNK_SIZE
+ * segments past the last point used for level k, those segments are
+ * simplified and appended to level k. The end points of each chunk are
+ * kept, so the levels join up: level k followed by the tail of each lower
+ * level is the whole track. Adding a point costs O(CHUNK_SIZE) at most
+ * per level and amortized O(1) overall, and the tails add fewer than
+ * CHUNK_SIZE points per level to a drawing.
+ * <p>
+ * Each level also has a SegmentGrid, so only the segments in view need to
+ * be drawn. The cells are larger for higher levels, which are drawn when
+ * zoomed out, so about the same number of cells cover the screen.
+ */
+public class TrackLod {
+    private static final int N_LEVELS = 12;
+    /**
+     * Tolerance of level 1 in source pixels.
+     */
+    private static final float BASE_TOLERANCE = 1;
+    /**
+     * Number of segments simplified at a time.
+     */
+    private static final int CHUNK_SIZE = 64;
+    /**
+     * Size of the SegmentGrid cells for level 0 in source pixels. It
+     * doubles for each level.
+     */
+    private static final float GRID_CELL_SIZE = 256;
+
+    private final TrackBuffer[] levels = new TrackBuffer[N_LEVELS];
+    private final SegmentGrid[] grids = new SegmentGrid[N_LEVELS];
+    /**
+     * For level k > 0, the index of the last point in level k - 1 that
+     * is in level k. The tail of level k - 1 after level k starts there.
+     */
+    private final int[] ends = new int[N_LEVELS];
+    /**
+     * Work arrays for simplifying a chunk.
+     */
+    private final boolean[] keep = new boolean[CHUNK_SIZE + 1];
+    private final int[] stack = new int[2 * (CHUNK_SIZE + 1)];
+
+    public TrackLod() {
+        for (int k = 0; k < N_LEVELS; k++) {
+            levels[k] = new TrackBuffer();
+            grids[k] = new SegmentGrid(GRID_CELL_SIZE * (1 << k));
+        }
+    }
+
+    /**
+     * Removes all points.
+     */
+    public void clear() {
+        for (int k = 0; k < N_LEVELS; k++) {
+            levels[k].clear();
+            grids[k].clear();
+            ends[k] = 0;
+        }
+    }
+
+    /**
+     * Adds a point to the end of the track.
+     *
+     * @param x The x source coordinate.
+     * @param y The y source coordinate.
+     */
+    public void add(float x, float y) {
+        addToLevel(0, x, y);
+        update();
+    }
+
+    /**
+     * Replaces the track with the given points, skipping any that are NaN.
+     *
+     * @param xy      The points as {x0, y0, x1, y1, ...}.
+     * @param nPoints The number of points to use from xy.
+     */
+    public void set(float[] xy, int nPoints) {
+        clear();
+        levels[0].set(xy, nPoints);
+        float[] pts = levels[0].getPoints();
+        for (int i = 0; i < levels[0].size() - 1; i++) {
+            grids[0].add(pts, i);
+        }
+        update();
+    }
+
+    /**
+     * @return The number of points in the full track.
+     */
+    public int size() {
+        return levels[0].size();
+    }
+
+    /**
+     * Gets the highest level that looks the same as the full track at the
+     * given scale. The errors of the levels add, so the total for level k
+     * is less than twice its tolerance, and that must be under one screen
+     * pixel.
+     *
+     * @param scale The scale in screen pixels per source pixel.
+     * @return The level.
+     */
+    public int getLevelForScale(float scale) {
+        if (!(scale > 0)) return 0;
+        float maxTolerance = 1f / (2 * scale);
+        int level = 0;
+        float tolerance = BASE_TOLERANCE;
+        while (level + 1 < N_LEVELS && tolerance <= maxTolerance) {
+            level++;
+            tolerance *= 2;
+        }
+        return level;
+    }
+
+    /**
+     * @param level The level.
+     * @return The points of the given level.
+     */
+    public TrackBuffer getLevel(int level) {
+        return levels[level];
+    }
+
+    /**
+     * @param level The level.
+     * @return The SegmentGrid for the given level.
+     */
+    public SegmentGrid getGrid(int level) {
+        return grids[level];
+    }
+
+    /**
+     * Gets the first point of the given level that is not in the level
+     * above. To draw level k, draw all of level k, then each lower level
+     * from this index.
+     *
+     * @param level The level, less than the highest.
+     * @return The index.
+     */
+    public int getTailStart(int level) {
+        return ends[level + 1];
+    }
+
+    /**
+     * Adds a point to a level and its segment to the grid.
+     *
+     * @param level The level.
+     * @param x     The x source coordinate.
+     * @param y     The y source coordinate.
+     */
+    private void addToLevel(int level, float x, float y) {
+        TrackBuffer points = levels[level];
+        points.add(x, y);
+        if (points.size() > 1) {
+            grids[level].add(points.getPoints(), points.size() - 2);
+        }
+    }
+
+    /**
+     * Simplifies all full chunks, working up the levels.
+     */
+    private void update() {
+        for (int k = 1; k < N_LEVELS; k++) {
+            TrackBuffer lower = levels[k - 1];
+            boolean changed = false;
+            while (lower.size() - 1 - ends[k] >= CHUNK_SIZE) {
+                simplifyChunk(lower, ends[k], k,
+                        BASE_TOLERANCE * (1 << (k - 1)));
+                ends[k] += CHUNK_SIZE;
+                changed = true;
+            }
+            // The higher levels only change if this one did
+            if (!changed) break;
+        }
+    }
+
+    /**
+     * Simplifies CHUNK_SIZE segments with Douglas-Peucker and appends the
+     * kept points to the output level. The first point is not appended if
+     * the output already ends with it.
+     *
+     * @param in        The input.
+     * @param start     The index of the first point in the input.
+     * @param level     The output level.
+     * @param tolerance The maximum distance of a removed point from the
+     *                  simplified line.
+     */
+    private void simplifyChunk(TrackBuffer in, int start, int level,
+                               float tolerance) {
+        float[] pts = in.getPoints();
+        int last = CHUNK_SIZE;
+        for (int i = 0; i <= last; i++) {
+            keep[i] = false;
+        }
+        keep[0] = keep[last] = true;
+        // Stack of ranges {first, last} relative to start
+        int nStack = 0;
+        stack[nStack++] = 0;
+        stack[nStack++] = last;
+        float tolerance2 = tolerance * tolerance;
+        while (nStack > 0) {
+            int j = stack[--nStack];
+            int i = stack[--nStack];
+            if (j - i < 2) continue;
+            float x0 = pts[2 * (start + i)], y0 = pts[2 * (start + i) + 1];
+            float dx = pts[2 * (start + j)] - x0;
+            float dy = pts[2 * (start + j) + 1] - y0;
+            float len2 = dx * dx + dy * dy;
+            float maxDist2 = -1;
+            int maxIndex = -1;
+            for (int m = i + 1; m < j; m++) {
+                float px = pts[2 * (start + m)] - x0;
+                float py = pts[2 * (start + m) + 1] - y0;
+                float dist2;
+                if (len2 > 0) {
+                    // Distance to the segment
+                    float t = (px * dx + py * dy) / len2;
+                    t = Math.max(0, Math.min(1, t));
+                    float ex = px - t * dx, ey = py - t * dy;
+                    dist2 = ex * ex + ey * ey;
+                } else {
+                    dist2 = px * px + py * py;
+                }
+                if (dist2 > maxDist2) {
+                    maxDist2 = dist2;
+                    maxIndex = m;
+                }
+            }
+            if (maxDist2 > tolerance2) {
+                keep[maxIndex] = true;
+                stack[nStack++] = i;
+                stack[nStack++] = maxIndex;
+                stack[nStack++] = maxIndex;
+                stack[nStack++] = j;
+            }
+        }
+        for (int i = levels[level].size() > 0 ? 1 : 0; i <= last; i++) {
+            if (keep[i]) {
+                addToLevel(level, pts[2 * (start + i)],
+                        pts[2 * (start + i) + 1]);
+            }
+        }
+    }
+}
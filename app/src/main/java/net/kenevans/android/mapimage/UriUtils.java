@@ -9,16 +9,40 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UriUtils implements IConstants {
+    /**
+     * Maximum number of documents in the metadata cache.
+     */
+    private static final int METADATA_CACHE_SIZE = 512;
+    /**
+     * Time in ms cached metadata is used before the document is queried
+     * again.
+     */
+    private static final long METADATA_TTL = 10000;
+
+    /**
+     * Metadata from the ContentResolver keyed by document Uri, including
+     * documents that do not exist, so repeated lookups of the same Uri do
+     * not each query the provider.
+     */
+    private static final LruCache<String, Metadata> sMetadata =
+            new LruCache<>(METADATA_CACHE_SIZE);
+    private static final AtomicLong sMetadataHits = new AtomicLong();
+    private static final AtomicLong sMetadataMisses = new AtomicLong();
+
     /**
      * Checks if a file exists for the given document Uri.
      *
@@ -27,13 +51,112 @@ public class UriUtils implements IConstants {
      * @return Whether it exists.
      */
     public static boolean exists(Context context, Uri uri) {
-        // !!!!!!!!!!!!!!!!!!!!! A kludge. Needs to be tested.
-//        Log.d(TAG, "exists: uri=" + uri.getLastPathSegment());
+        return getMetadata(context, uri).exists;
+    }
+
+    /**
+     * Gets the last modified time for the given document Uri. Can be used
+     * instead of exists when the modified time is also needed.
+     *
+     * @param context The context.
+     * @param uri     The document Uri.
+     * @return The last modified time in ms, 0 if it is not known, or -1 if
+     * the document does not exist.
+     */
+    public static long getLastModified(Context context, Uri uri) {
+        Metadata metadata = getMetadata(context, uri);
+        return metadata.exists ? metadata.modifiedTime : -1;
+    }
+
+    /**
+     * Removes the given document Uri from the metadata cache. Call when
+     * the document is known to have changed.
+     *
+     * @param uri The document Uri.
+     */
+    public static void invalidate(Uri uri) {
+        if (uri != null) sMetadata.remove(uri.toString());
+    }
+
+    /**
+     * Removes all documents from the metadata cache.
+     */
+    public static void invalidateAll() {
+        sMetadata.evictAll();
+    }
+
+    /**
+     * @return The hits and misses of the metadata cache as a formatted
+     * string.
+     */
+    public static String getMetadataCacheStats() {
+        long hits = sMetadataHits.get(), misses = sMetadataMisses.get();
+        long total = hits + misses;
+        return String.format(Locale.US,
+                "Metadata Cache: %d hits, %d misses (%.0f%%), %d cached",
+                hits, misses, total == 0 ? 0. : 100. * hits / total,
+                sMetadata.size());
+    }
+
+    /**
+     * Gets the metadata for a document Uri from the cache, or by querying
+     * the ContentResolver if it is not cached or is older than
+     * METADATA_TTL. Thread safe. A query that fails is not cached, so a
+     * transient error does not hide the document.
+     *
+     * @param context The context.
+     * @param uri     The document Uri.
+     * @return The Metadata.
+     */
+    private static Metadata getMetadata(Context context, Uri uri) {
+        String key = uri.toString();
+        long now = SystemClock.elapsedRealtime();
+        Metadata metadata = sMetadata.get(key);
+        if (metadata != null && now - metadata.time < METADATA_TTL) {
+            sMetadataHits.incrementAndGet();
+            return metadata;
+        }
+        sMetadataMisses.incrementAndGet();
+        metadata = queryMetadata(context, uri, now);
+        if (metadata == null) {
+            return new Metadata(false, null, -1, null, now);
+        }
+        sMetadata.put(key, metadata);
+        return metadata;
+    }
+
+    /**
+     * Queries the ContentResolver for the metadata of a document Uri. All
+     * columns are requested, as not every provider has every column.
+     *
+     * @param context The context.
+     * @param uri     The document Uri.
+     * @param time    The time of the query.
+     * @return The Metadata or null if the query failed.
+     */
+    private static Metadata queryMetadata(Context context, Uri uri,
+                                          long time) {
         try (Cursor cursor = context.getContentResolver().query(uri,
                 null, null, null, null)) {
-            return (cursor != null && cursor.moveToFirst());
+            if (cursor == null || !cursor.moveToFirst()) {
+                return new Metadata(false, null, -1, null, time);
+            }
+            int nameIndex =
+                    cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+            int modifiedIndex = cursor.getColumnIndex(
+                    DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            int mimeIndex = cursor.getColumnIndex(
+                    DocumentsContract.Document.COLUMN_MIME_TYPE);
+            return new Metadata(true,
+                    nameIndex < 0 ? "NA" : cursor.getString(nameIndex),
+                    modifiedIndex < 0 || cursor.isNull(modifiedIndex) ? 0 :
+                            cursor.getLong(modifiedIndex),
+                    mimeIndex < 0 ? null : cursor.getString(mimeIndex),
+                    time);
         } catch (Exception ex) {
-            return false;
+            Log.d(TAG, "UriUtils.queryMetadata: Failed for " + uri + ": "
+                    + ex);
+            return null;
         }
     }
 
@@ -59,20 +182,13 @@ public class UriUtils implements IConstants {
      * @return The name.
      */
     public static String getDisplayName(Context context, Uri uri) {
-        String displayName = null;
-        try (Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null)) {
-            cursor.moveToFirst();
-            int colIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-            if (colIndex < 0) {
-                displayName = "NA";
-            } else {
-                displayName = cursor.getString(colIndex);
-            }
-        } catch (Exception ex) {
-            Utils.excMsg(context, "Error getting display name", ex);
+        Metadata metadata = getMetadata(context, uri);
+        if (!metadata.exists) {
+            Utils.errMsg(context, "Error getting display name for "
+                    + uri.getLastPathSegment());
+            return null;
         }
-        return displayName;
+        return metadata.displayName;
     }
 
     /**
@@ -85,65 +201,8 @@ public class UriUtils implements IConstants {
      */
     static public boolean isDirectory(Context context, Uri uri) {
         if (!DocumentsContract.isDocumentUri(context, uri)) return false;
-        ContentResolver contentResolver = context.getContentResolver();
-        String mimeType = "NA";
-        try (Cursor cursor = contentResolver.query(uri, new String[]{
-                        DocumentsContract.Document.COLUMN_MIME_TYPE},
-                null, null, null)) {
-            if (cursor != null && cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                mimeType = cursor.getString(0);
-            }
-        }
-        return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
-    }
-
-    /**
-     * Gets a List of the children of the given document Uri that match the
-     * given extension.
-     *
-     * @param uri A document Uri.
-     * @param ext The extension.
-     * @return The list.
-     */
-    public static List<UriData> getChildren(Context context, Uri uri,
-                                            String ext) {
-        ContentResolver contentResolver = context.getContentResolver();
-        Uri childrenUri =
-                DocumentsContract.buildChildDocumentsUriUsingTree(uri,
-                        DocumentsContract.getTreeDocumentId(uri));
-        List<UriData> children = new ArrayList<>();
-        try (Cursor cursor = contentResolver.query(childrenUri,
-                new String[]{
-                        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                        DocumentsContract.Document.COLUMN_LAST_MODIFIED,
-                        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
-                },
-                null,
-                null,
-                null)) {
-            String documentId;
-            Uri documentUri;
-            long modifiedTime;
-            String displayName;
-            while (cursor.moveToNext()) {
-                documentId = cursor.getString(0);
-                documentUri = DocumentsContract.buildDocumentUriUsingTree(uri,
-                        documentId);
-                if (documentUri == null) continue;
-                modifiedTime = cursor.getLong(1);
-                displayName = cursor.getString(2);
-                String name = documentUri.getLastPathSegment();
-                if (name != null) {
-                    if (name.toLowerCase().endsWith(ext)) {
-                        children.add(new UriData(documentUri, modifiedTime,
-                                displayName));
-                    }
-                }
-            }
-        }
-        // Do nothing
-        return children;
+        return DocumentsContract.Document.MIME_TYPE_DIR.equals(
+                getMetadata(context, uri).mimeType);
     }
 
     /**
@@ -296,17 +355,25 @@ public class UriUtils implements IConstants {
     }
 
     /**
-     * Convenience class for managing Uri information.
+     * Cached metadata for a document Uri.
      */
-    public static class UriData {
-        final public Uri uri;
-        final public long modifiedTime;
-        final public String displayName;
+    private static class Metadata {
+        final boolean exists;
+        final String displayName;
+        final long modifiedTime;
+        final String mimeType;
+        /**
+         * The SystemClock.elapsedRealtime of the query.
+         */
+        final long time;
 
-        UriData(Uri uri, long modifiedTime, String displayName) {
-            this.uri = uri;
-            this.modifiedTime = modifiedTime;
+        Metadata(boolean exists, String displayName, long modifiedTime,
+                 String mimeType, long time) {
+            this.exists = exists;
             this.displayName = displayName;
+            this.modifiedTime = modifiedTime;
+            this.mimeType = mimeType;
+            this.time = time;
         }
     }
 }
@@ -0,0 +1,144 @@
+package net.kenevans.android.mapimage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import Jama.Matrix;
+import Jama.SingularValueDecomposition;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for AffineSolver.
+ */
+public class AffineSolverTest {
+    /**
+     * Coefficients for a map near 122W 37N with about 2 m pixels.
+     */
+    private static final double[] COEFFS = {
+            2.2e-5, 1.5e-7, -1.2e-7, -1.8e-5, -122.45, 37.82,
+    };
+
+    @Test
+    public void recoversExactCoefficients() {
+        AffineSolver solver = new AffineSolver();
+        int[][] points = {{0, 0}, {9000, 0}, {0, 7000}, {9000, 7000},
+                {4500, 3500}};
+        for (int[] p : points) {
+            solver.add(p[0], p[1], lon(COEFFS, p[0], p[1]),
+                    lat(COEFFS, p[0], p[1]));
+        }
+        double[] coeffs = new double[6];
+        assertTrue(solver.solve(coeffs));
+        for (int i = 0; i < 6; i++) {
+            assertEquals(COEFFS[i], coeffs[i],
+                    1e-9 * Math.max(1e-4, Math.abs(COEFFS[i])));
+        }
+    }
+
+    @Test
+    public void agreesWithSvd() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 50; trial++) {
+            int n = 3 + random.nextInt(30);
+            double[] xs = new double[n], ys = new double[n];
+            double[] lons = new double[n], lats = new double[n];
+            AffineSolver solver = new AffineSolver();
+            for (int i = 0; i < n; i++) {
+                xs[i] = random.nextInt(20000);
+                ys[i] = random.nextInt(20000);
+                // Noise of about a pixel
+                lons[i] = lon(COEFFS, xs[i], ys[i])
+                        + 2e-5 * random.nextGaussian();
+                lats[i] = lat(COEFFS, xs[i], ys[i])
+                        + 2e-5 * random.nextGaussian();
+                solver.add(xs[i], ys[i], lons[i], lats[i]);
+            }
+            double[] coeffs = new double[6];
+            assertTrue(solver.solve(coeffs));
+            double[] lonCoeffs = svdSolve(xs, ys, lons);
+            double[] latCoeffs = svdSolve(xs, ys, lats);
+            // Compare the fitted positions, which is what matters
+            for (int i = 0; i < n; i++) {
+                assertEquals(lonCoeffs[0] * xs[i] + lonCoeffs[1] * ys[i]
+                        + lonCoeffs[2], lon(coeffs, xs[i], ys[i]), 1e-9);
+                assertEquals(latCoeffs[0] * xs[i] + latCoeffs[1] * ys[i]
+                        + latCoeffs[2], lat(coeffs, xs[i], ys[i]), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTooFewPoints() {
+        AffineSolver solver = new AffineSolver();
+        solver.add(0, 0, -122, 37);
+        solver.add(100, 0, -121.9, 37);
+        double[] coeffs = {1, 2, 3, 4, 5, 6};
+        assertFalse(solver.solve(coeffs));
+        assertArrayEquals(new double[]{1, 2, 3, 4, 5, 6}, coeffs, 0);
+    }
+
+    @Test
+    public void rejectsCollinearPoints() {
+        AffineSolver solver = new AffineSolver();
+        for (int i = 0; i < 10; i++) {
+            solver.add(100 * i, 50 * i, -122 + .001 * i, 37 - .0005 * i);
+        }
+        assertFalse(solver.solve(new double[6]));
+    }
+
+    @Test
+    public void resetClearsPoints() {
+        AffineSolver solver = new AffineSolver();
+        for (int i = 0; i < 5; i++) {
+            solver.add(i, 2 * i, i, i);
+        }
+        solver.reset();
+        assertEquals(0, solver.getCount());
+        solver.add(0, 0, lon(COEFFS, 0, 0), lat(COEFFS, 0, 0));
+        solver.add(1000, 0, lon(COEFFS, 1000, 0), lat(COEFFS, 1000, 0));
+        solver.add(0, 1000, lon(COEFFS, 0, 1000), lat(COEFFS, 0, 1000));
+        double[] coeffs = new double[6];
+        assertTrue(solver.solve(coeffs));
+        assertEquals(COEFFS[4], coeffs[4], 1e-9);
+        assertEquals(COEFFS[5], coeffs[5], 1e-9);
+    }
+
+    private static double lon(double[] c, double x, double y) {
+        return c[0] * x + c[1] * y + c[4];
+    }
+
+    private static double lat(double[] c, double x, double y) {
+        return c[2] * x + c[3] * y + c[5];
+    }
+
+    /**
+     * Solves val = c0 * x + c1 * y + c2 in the least squares sense using
+     * the pseudo-inverse from the SVD.
+     */
+    private static double[] svdSolve(double[] xs, double[] ys,
+                                     double[] vals) {
+        int n = xs.length;
+        Matrix a = new Matrix(n, 3);
+        Matrix b = new Matrix(n, 1);
+        for (int i = 0; i < n; i++) {
+            a.set(i, 0, xs[i]);
+            a.set(i, 1, ys[i]);
+            a.set(i, 2, 1);
+            b.set(i, 0, vals[i]);
+        }
+        SingularValueDecomposition svd = a.svd();
+        double[] s = svd.getSingularValues();
+        Matrix sInv = new Matrix(3, 3);
+        for (int i = 0; i < 3; i++) {
+            if (s[i] > 1e-12 * s[0]) sInv.set(i, i, 1 / s[i]);
+        }
+        Matrix c = svd.getV().times(sInv).times(svd.getU().transpose())
+                .times(b);
+        return new double[]{c.get(0, 0), c.get(1, 0), c.get(2, 0)};
+    }
+}
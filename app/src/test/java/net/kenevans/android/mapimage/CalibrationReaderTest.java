@@ -0,0 +1,178 @@
+package net.kenevans.android.mapimage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for CalibrationReader.
+ */
+public class CalibrationReaderTest {
+    @Test
+    public void readsDataLines() throws IOException {
+        CalibrationReader reader = new CalibrationReader(new StringReader(
+                "# A comment\n"
+                        + "\n"
+                        + "0 0 -122.5 37.75\r\n"
+                        + "  \t1024\t-768  -122.25e0 +37.5 extra\r"
+                        + "10 20 1.5E2 -4.25e-1"));
+        assertTrue(reader.next());
+        assertEquals(0, reader.getX());
+        assertEquals(0, reader.getY());
+        assertEquals(-122.5, reader.getLon(), 0);
+        assertEquals(37.75, reader.getLat(), 0);
+        assertTrue(reader.next());
+        assertEquals(1024, reader.getX());
+        assertEquals(-768, reader.getY());
+        assertEquals(-122.25, reader.getLon(), 0);
+        assertEquals(37.5, reader.getLat(), 0);
+        assertTrue(reader.next());
+        assertEquals(10, reader.getX());
+        assertEquals(20, reader.getY());
+        assertEquals(150, reader.getLon(), 0);
+        assertEquals(-.425, reader.getLat(), 0);
+        assertFalse(reader.next());
+        assertEquals(CalibrationModel.MODEL_AFFINE, reader.getModelType());
+        assertEquals(Projection.PROJECTION_NONE,
+                reader.getProjectionType());
+    }
+
+    @Test
+    public void readsHeaders() throws IOException {
+        CalibrationReader reader = read("#model: tps\n"
+                + "# Projection = UTM 10 s\n");
+        assertEquals(CalibrationModel.MODEL_TPS, reader.getModelType());
+        assertEquals(Projection.PROJECTION_UTM, reader.getProjectionType());
+        assertEquals(2, reader.getProjectionParamCount());
+        assertEquals(10, reader.getProjectionParams()[0], 0);
+        assertEquals(1, reader.getProjectionParams()[1], 0);
+
+        reader = read("#model=poly3\n#projection: utm 33n\n");
+        assertEquals(CalibrationModel.MODEL_POLY3, reader.getModelType());
+        assertEquals(2, reader.getProjectionParamCount());
+        assertEquals(33, reader.getProjectionParams()[0], 0);
+        assertEquals(0, reader.getProjectionParams()[1], 0);
+
+        reader = read("#projection: utm\n");
+        assertEquals(Projection.PROJECTION_UTM, reader.getProjectionType());
+        assertEquals(0, reader.getProjectionParamCount());
+
+        reader = read("#projection: lcc 33 45 39 -96\n");
+        assertEquals(Projection.PROJECTION_LCC, reader.getProjectionType());
+        assertEquals(4, reader.getProjectionParamCount());
+        assertEquals(-96, reader.getProjectionParams()[3], 0);
+
+        reader = read("#projection: webmercator\n#model: poly2\n");
+        assertEquals(Projection.PROJECTION_WEB_MERCATOR,
+                reader.getProjectionType());
+        assertEquals(CalibrationModel.MODEL_POLY2, reader.getModelType());
+
+        // Other comments are ignored
+        reader = read("# modelling notes: none\n");
+        assertEquals(CalibrationModel.MODEL_AFFINE, reader.getModelType());
+    }
+
+    @Test
+    public void parsesDoublesLikeDouble() throws IOException {
+        Random random = new Random(2);
+        StringBuilder sb = new StringBuilder();
+        int n = 2000;
+        double[] expected = new double[n];
+        for (int i = 0; i < n; i++) {
+            String str;
+            switch (i % 4) {
+                case 0:
+                    str = String.format(Locale.US, "%.6f",
+                            360 * random.nextDouble() - 180);
+                    break;
+                case 1:
+                    str = Double.toString(random.nextGaussian()
+                            * Math.pow(10, random.nextInt(40) - 20));
+                    break;
+                case 2:
+                    // More digits than a double holds
+                    str = "0." + Long.toString(Math.abs(random.nextLong()))
+                            + Long.toString(Math.abs(random.nextLong()));
+                    break;
+                default:
+                    str = random.nextInt(1000) + "e" + (random.nextInt(60)
+                            - 30);
+                    break;
+            }
+            expected[i] = Double.parseDouble(str);
+            sb.append(i).append(' ').append(i).append(' ').append(str)
+                    .append(" 0\n");
+        }
+        CalibrationReader reader = new CalibrationReader(
+                new OneCharReader(sb.toString()));
+        for (int i = 0; i < n; i++) {
+            assertTrue(reader.next());
+            assertEquals(i, reader.getX());
+            assertEquals(expected[i], reader.getLon(), 0);
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void reportsLineAndColumn() throws IOException {
+        assertError("0 0 -122 37\n1 1 -122.x 37\n", 2, 10);
+        assertError("0 0 -122\n", 1, 9);
+        assertError("\n\n0 0 -122 lat\n", 3, 10);
+        assertError("#model: cubic\n", 1, 9);
+        assertError("#projection: utm 61\n", 1, 18);
+        assertError("#projection: lcc 33 45\n", 1, 14);
+        assertError("3000000000 0 -122 37\n", 1, 10);
+    }
+
+    private static CalibrationReader read(String str) throws IOException {
+        CalibrationReader reader =
+                new CalibrationReader(new StringReader(str));
+        while (reader.next()) {
+            // Only the headers are checked
+        }
+        return reader;
+    }
+
+    private static void assertError(String str, int line, int column)
+            throws IOException {
+        try {
+            read(str);
+            fail("No error for " + str);
+        } catch (CalibrationReader.CalibrationFormatException ex) {
+            assertEquals(ex.getMessage(), line, ex.getLine());
+            assertEquals(ex.getMessage(), column, ex.getColumn());
+        }
+    }
+
+    /**
+     * Returns one char per read, so tokens cross buffer refills.
+     */
+    private static class OneCharReader extends Reader {
+        private final String str;
+        private int pos;
+
+        OneCharReader(String str) {
+            this.str = str;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (pos >= str.length()) return -1;
+            cbuf[off] = str.charAt(pos++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
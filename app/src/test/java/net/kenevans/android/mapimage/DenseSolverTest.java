@@ -0,0 +1,66 @@
+package net.kenevans.android.mapimage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import Jama.Matrix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for DenseSolver.
+ */
+public class DenseSolverTest {
+    @Test
+    public void agreesWithJama() {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 100; trial++) {
+            int n = 1 + random.nextInt(30);
+            int nRhs = 1 + random.nextInt(3);
+            double[] a = new double[n * n];
+            double[] b = new double[n * nRhs];
+            Matrix ma = new Matrix(n, n);
+            Matrix mb = new Matrix(n, nRhs);
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    double v = random.nextGaussian();
+                    a[i * n + j] = v;
+                    ma.set(i, j, v);
+                }
+                for (int j = 0; j < nRhs; j++) {
+                    double v = random.nextGaussian();
+                    b[i * nRhs + j] = v;
+                    mb.set(i, j, v);
+                }
+            }
+            Matrix expected = ma.solve(mb);
+            assertTrue(DenseSolver.solve(a, n, b, nRhs));
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < nRhs; j++) {
+                    assertEquals(expected.get(i, j), b[i * nRhs + j],
+                            1e-8 * Math.max(1, Math.abs(expected.get(i, j))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void needsPivoting() {
+        // Zero in the first pivot position
+        double[] a = {0, 1, 1, 1};
+        double[] b = {2, 3};
+        assertTrue(DenseSolver.solve(a, 2, b, 1));
+        assertEquals(1, b[0], 1e-15);
+        assertEquals(2, b[1], 1e-15);
+    }
+
+    @Test
+    public void rejectsSingularMatrices() {
+        double[] a = {1, 2, 3, 2, 4, 6, 1, 0, 1};
+        assertFalse(DenseSolver.solve(a, 3, new double[3], 1));
+        assertFalse(DenseSolver.solve(new double[4], 2, new double[2], 1));
+    }
+}
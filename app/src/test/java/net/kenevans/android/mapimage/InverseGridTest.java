@@ -0,0 +1,65 @@
+package net.kenevans.android.mapimage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for InverseGrid.
+ */
+public class InverseGridTest {
+    @Test
+    public void matchesExactInverse() {
+        PolynomialModelTest.Points points =
+                new PolynomialModelTest.Points(8, 3);
+        PolynomialModel model =
+                points.fit(CalibrationModel.MODEL_POLY3);
+        assertNotNull(model);
+        double minLon = -122.5, maxLon = -122.3;
+        double minLat = 37.65, maxLat = 37.8;
+        InverseGrid grid = InverseGrid.build(model, minLon, minLat, maxLon,
+                maxLat);
+        assertNotNull(grid);
+        double[] fromGrid = new double[2];
+        double[] exact = new double[2];
+        double maxError = 0;
+        int n = 50;
+        for (int j = 0; j <= n; j++) {
+            for (int i = 0; i <= n; i++) {
+                double lon = minLon + i * (maxLon - minLon) / n;
+                double lat = minLat + j * (maxLat - minLat) / n;
+                assertTrue(grid.lookup(lon, lat, fromGrid));
+                assertTrue(model.exactInverse(lon, lat, exact));
+                maxError = Math.max(maxError, Math.hypot(
+                        fromGrid[0] - exact[0], fromGrid[1] - exact[1]));
+            }
+        }
+        assertTrue("maxError=" + maxError, maxError < .5);
+        // The nodes are exact to float precision
+        assertTrue(grid.lookup(minLon, minLat, fromGrid));
+        assertTrue(model.exactInverse(minLon, minLat, exact));
+        assertEquals(exact[0], fromGrid[0], 1e-3);
+        assertEquals(exact[1], fromGrid[1], 1e-3);
+    }
+
+    @Test
+    public void failsOutside() {
+        PolynomialModelTest.Points points =
+                new PolynomialModelTest.Points(4, 2);
+        PolynomialModel model =
+                points.fit(CalibrationModel.MODEL_POLY2);
+        assertNotNull(model);
+        InverseGrid grid = InverseGrid.build(model, -122.5, 37.65, -122.3,
+                37.8);
+        assertNotNull(grid);
+        double[] xy = new double[2];
+        assertFalse(grid.lookup(-122.6, 37.7, xy));
+        assertFalse(grid.lookup(-122.4, 37.9, xy));
+        assertFalse(grid.lookup(Double.NaN, 37.7, xy));
+        assertNull(InverseGrid.build(model, -122.3, 37.65, -122.5, 37.8));
+    }
+}
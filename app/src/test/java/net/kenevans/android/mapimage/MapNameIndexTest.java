@@ -0,0 +1,103 @@
+package net.kenevans.android.mapimage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for MapNameIndex.
+ */
+public class MapNameIndexTest {
+    private static final List<String> PATHS = Arrays.asList(
+            "Maps/California/Yosemite Valley.jpg",
+            "Maps/California/Big_Sur-2019.png",
+            "Maps/Oregon/Crater Lake.jpg",
+            "Trails/Yosemite/Half Dome.jpg",
+            "Trails/CRATER-rim.gif");
+
+    @Test
+    public void tokenizes() {
+        assertEquals(Arrays.asList("maps", "california", "big", "sur",
+                "2019", "png"), MapNameIndex.tokenize(PATHS.get(1)));
+        assertEquals(Arrays.asList("a", "b"),
+                MapNameIndex.tokenize("--A  b."));
+        assertEquals(0, MapNameIndex.tokenize(" ./_ ").size());
+    }
+
+    @Test
+    public void findsPrefixes() {
+        MapNameIndex index = new MapNameIndex(PATHS);
+        assertArrayEquals(new int[]{0, 3}, index.find("yos"));
+        assertArrayEquals(new int[]{2, 4}, index.find("Crater"));
+        assertArrayEquals(new int[]{4}, index.find("rim cra"));
+        assertArrayEquals(new int[]{0, 1}, index.find("cal maps"));
+        assertArrayEquals(new int[]{1}, index.find("2019"));
+        // Must be a prefix, not a substring
+        assertArrayEquals(new int[0], index.find("alley"));
+        assertArrayEquals(new int[0], index.find("yosemite oregon"));
+        assertNull(index.find(""));
+        assertNull(index.find(" - "));
+        assertArrayEquals(new int[0],
+                new MapNameIndex(new ArrayList<>()).find("a"));
+    }
+
+    @Test
+    public void matchesBruteForce() {
+        Random random = new Random(17);
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 500; i++) paths.add(randomText(random, 5));
+        MapNameIndex index = new MapNameIndex(paths);
+        for (int i = 0; i < 1000; i++) {
+            String query = randomText(random, 1 + random.nextInt(2));
+            assertArrayEquals(bruteForce(paths, query), index.find(query));
+        }
+    }
+
+    private static int[] bruteForce(List<String> paths, String query) {
+        List<String> prefixes = MapNameIndex.tokenize(query);
+        int[] matches = new int[paths.size()];
+        int nMatches = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            List<String> words = MapNameIndex.tokenize(paths.get(i));
+            boolean all = true;
+            for (String prefix : prefixes) {
+                boolean any = false;
+                for (String word : words) {
+                    if (word.startsWith(prefix)) {
+                        any = true;
+                        break;
+                    }
+                }
+                if (!any) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) matches[nMatches++] = i;
+        }
+        return Arrays.copyOf(matches, nMatches);
+    }
+
+    /**
+     * Makes text of short words from a small alphabet so prefixes are
+     * shared.
+     */
+    private static String randomText(Random random, int nWords) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nWords; i++) {
+            if (i > 0) sb.append(random.nextBoolean() ? '/' : ' ');
+            int length = 1 + random.nextInt(4);
+            for (int j = 0; j < length; j++) {
+                sb.append("abcDE".charAt(random.nextInt(5)));
+            }
+        }
+        return sb.toString();
+    }
+}
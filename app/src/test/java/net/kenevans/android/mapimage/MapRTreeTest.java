@@ -0,0 +1,90 @@
+package net.kenevans.android.mapimage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for MapRTree.
+ */
+public class MapRTreeTest {
+    @Test
+    public void matchesBruteForce() {
+        Random random = new Random(10);
+        for (int n : new int[]{0, 1, 2, 15, 16, 17, 255, 256, 257, 5000}) {
+            double[] boxes = randomBoxes(random, n);
+            MapRTree tree = new MapRTree(boxes, n);
+            assertEquals(n, tree.size());
+            int[] result = new int[n];
+            for (int i = 0; i < 500; i++) {
+                double x = -190 + 380 * random.nextDouble();
+                double y = -100 + 200 * random.nextDouble();
+                check(tree, boxes, n, x, y, result);
+            }
+            // The corners are inside
+            for (int i = 0; i < n; i++) {
+                check(tree, boxes, n, boxes[4 * i], boxes[4 * i + 1],
+                        result);
+                check(tree, boxes, n, boxes[4 * i + 2], boxes[4 * i + 3],
+                        result);
+            }
+        }
+    }
+
+    @Test
+    public void handlesDuplicateBoxes() {
+        int n = 100;
+        double[] boxes = new double[4 * n];
+        for (int i = 0; i < n; i++) {
+            // Many items with the same center
+            boxes[4 * i] = -i;
+            boxes[4 * i + 1] = -i;
+            boxes[4 * i + 2] = i;
+            boxes[4 * i + 3] = i;
+        }
+        MapRTree tree = new MapRTree(boxes, n);
+        int[] result = new int[n];
+        check(tree, boxes, n, 0, 0, result);
+        check(tree, boxes, n, 50, -50, result);
+        check(tree, boxes, n, 99.5, 0, result);
+    }
+
+    private static void check(MapRTree tree, double[] boxes, int n,
+                              double x, double y, int[] result) {
+        int nFound = tree.search(x, y, result);
+        int[] found = Arrays.copyOf(result, nFound);
+        Arrays.sort(found);
+        int[] expected = new int[n];
+        int nExpected = 0;
+        for (int i = 0; i < n; i++) {
+            if (x >= boxes[4 * i] && y >= boxes[4 * i + 1]
+                    && x <= boxes[4 * i + 2] && y <= boxes[4 * i + 3]) {
+                expected[nExpected++] = i;
+            }
+        }
+        assertArrayEquals(Arrays.copyOf(expected, nExpected), found);
+    }
+
+    /**
+     * Makes boxes like maps, mostly small with a few large ones.
+     */
+    private static double[] randomBoxes(Random random, int n) {
+        double[] boxes = new double[4 * n];
+        for (int i = 0; i < n; i++) {
+            double width = random.nextInt(20) == 0
+                    ? 100 * random.nextDouble() : random.nextDouble();
+            double height = width * (.5 + random.nextDouble());
+            double x = -180 + (360 - width) * random.nextDouble();
+            double y = -90 + (180 - height) * random.nextDouble();
+            boxes[4 * i] = x;
+            boxes[4 * i + 1] = y;
+            boxes[4 * i + 2] = x + width;
+            boxes[4 * i + 3] = y + height;
+        }
+        return boxes;
+    }
+}
@@ -0,0 +1,184 @@
+package net.kenevans.android.mapimage;
+
+import net.kenevans.android.mapimage.MapCalibration.MapTransform;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for PolynomialModel and the inverse in NonLinearModel.
+ */
+public class PolynomialModelTest {
+    private static final int SIZE = 8000;
+
+    @Test
+    public void recoversQuadratic() {
+        Points points = new Points(8, 2);
+        PolynomialModel model = points.fit(CalibrationModel.MODEL_POLY2);
+        assertNotNull(model);
+        assertEquals(CalibrationModel.MODEL_POLY2, model.getType());
+        checkForward(model, points, 2);
+    }
+
+    @Test
+    public void recoversCubic() {
+        Points points = new Points(8, 3);
+        PolynomialModel model = points.fit(CalibrationModel.MODEL_POLY3);
+        assertNotNull(model);
+        checkForward(model, points, 3);
+    }
+
+    @Test
+    public void needsEnoughPoints() {
+        Points points = new Points(3, 3);
+        assertEquals(9, points.n);
+        assertNull(points.fit(CalibrationModel.MODEL_POLY3));
+        assertNotNull(points.fit(CalibrationModel.MODEL_POLY2));
+    }
+
+    @Test
+    public void inverseRoundTrips() {
+        Points points = new Points(8, 3);
+        PolynomialModel model = points.fit(CalibrationModel.MODEL_POLY3);
+        assertNotNull(model);
+        double[] lonLat = new double[2];
+        double[] xy = new double[2];
+        // The grid is good to a fraction of a pixel. Outside it the exact
+        // inverse is used.
+        for (int y = -SIZE; y <= 2 * SIZE; y += 500) {
+            for (int x = -SIZE; x <= 2 * SIZE; x += 500) {
+                assertTrue(model.forward(x, y, lonLat));
+                assertTrue(model.inverse(lonLat[0], lonLat[1], xy));
+                assertEquals(x, xy[0], .5);
+                assertEquals(y, xy[1], .5);
+                assertTrue(model.exactInverse(lonLat[0], lonLat[1], xy));
+                assertEquals(x, xy[0], 1e-3);
+                assertEquals(y, xy[1], 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void bulkInverseMatchesSingle() {
+        Points points = new Points(8, 2);
+        PolynomialModel model = points.fit(CalibrationModel.MODEL_POLY2);
+        assertNotNull(model);
+        int n = 300;
+        double[] lons = new double[n], lats = new double[n];
+        double[] lonLat = new double[2];
+        for (int i = 0; i < n; i++) {
+            model.forward(37 * i, 29 * i, lonLat);
+            lons[i] = lonLat[0];
+            lats[i] = lonLat[1];
+        }
+        float[] xy = new float[2 * n];
+        assertEquals(n, model.inverse(lons, lats, n, xy));
+        double[] single = new double[2];
+        for (int i = 0; i < n; i++) {
+            assertTrue(model.inverse(lons[i], lats[i], single));
+            assertEquals((float) single[0], xy[2 * i], 0);
+            assertEquals((float) single[1], xy[2 * i + 1], 0);
+        }
+    }
+
+    @Test
+    public void writesAndReads() throws IOException {
+        Points points = new Points(8, 3);
+        PolynomialModel model = points.fit(CalibrationModel.MODEL_POLY3);
+        assertNotNull(model);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        model.write(new DataOutputStream(bytes));
+        NonLinearModel read = NonLinearModel.read(
+                CalibrationModel.MODEL_POLY3, points.affine,
+                new DataInputStream(new ByteArrayInputStream(
+                        bytes.toByteArray())));
+        double[] expected = new double[2], actual = new double[2];
+        for (int x = 0; x <= SIZE; x += 1000) {
+            model.forward(x, SIZE - x, expected);
+            read.forward(x, SIZE - x, actual);
+            assertEquals(expected[0], actual[0], 0);
+            assertEquals(expected[1], actual[1], 0);
+            model.inverse(expected[0], expected[1], expected);
+            read.inverse(actual[0], actual[1], actual);
+            assertEquals(expected[0], actual[0], 0);
+            assertEquals(expected[1], actual[1], 0);
+        }
+    }
+
+    private static void checkForward(NonLinearModel model, Points points,
+                                     int order) {
+        double[] lonLat = new double[2];
+        for (int y = 0; y <= SIZE; y += 250) {
+            for (int x = 0; x <= SIZE; x += 250) {
+                assertTrue(model.forward(x, y, lonLat));
+                assertEquals(Points.lon(x, y, order), lonLat[0], 1e-10);
+                assertEquals(Points.lat(x, y, order), lonLat[1], 1e-10);
+            }
+        }
+    }
+
+    /**
+     * Calibration points on a grid for a distorted map near 122W 37N.
+     */
+    static class Points {
+        final int n;
+        final int[] xs, ys;
+        final double[] lons, lats;
+        final MapTransform affine;
+
+        /**
+         * @param nSide The number of points along each side.
+         * @param order The order of the distortion.
+         */
+        Points(int nSide, int order) {
+            n = nSide * nSide;
+            xs = new int[n];
+            ys = new int[n];
+            lons = new double[n];
+            lats = new double[n];
+            AffineSolver solver = new AffineSolver();
+            for (int j = 0, k = 0; j < nSide; j++) {
+                for (int i = 0; i < nSide; i++, k++) {
+                    xs[k] = i * SIZE / (nSide - 1);
+                    ys[k] = j * SIZE / (nSide - 1);
+                    lons[k] = lon(xs[k], ys[k], order);
+                    lats[k] = lat(xs[k], ys[k], order);
+                    solver.add(xs[k], ys[k], lons[k], lats[k]);
+                }
+            }
+            double[] c = new double[6];
+            assertTrue(solver.solve(c));
+            affine = new MapTransform(c[0], c[1], c[2], c[3], c[4], c[5]);
+        }
+
+        PolynomialModel fit(int type) {
+            return PolynomialModel.fit(type, affine, xs, ys, lons, lats, n);
+        }
+
+        static double lon(double x, double y, int order) {
+            double u = x / SIZE, v = y / SIZE;
+            double val = -122.5 + .16 * u + .002 * v;
+            if (order >= 2) val += .004 * u * u - .002 * u * v;
+            if (order >= 3) val += .001 * u * u * v;
+            return val;
+        }
+
+        static double lat(double x, double y, int order) {
+            double u = x / SIZE, v = y / SIZE;
+            double val = 37.8 - .001 * u - .13 * v;
+            if (order >= 2) val += .003 * v * v + .001 * u * v;
+            if (order >= 3) val -= .002 * v * v * v;
+            return val;
+        }
+    }
+}
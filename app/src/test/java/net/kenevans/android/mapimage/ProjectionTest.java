@@ -0,0 +1,239 @@
+package net.kenevans.android.mapimage;
+
+import net.kenevans.android.mapimage.MapCalibration.MapTransform;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for Projection and ProjectedModel.
+ */
+public class ProjectionTest {
+    @Test
+    public void utmMatchesReferenceValues() {
+        double[] en = new double[2];
+        // GeographicLib GeoConvert: 33.3 44.4 is 38n 444140.54 3684706.36
+        new Projection.TransverseMercator(38, false).project(44.4, 33.3, en,
+                0);
+        assertEquals(444140.54, en[0], .005);
+        assertEquals(3684706.36, en[1], .005);
+        // CN Tower, Toronto: 17T 630084 4833439
+        new Projection.TransverseMercator(17, false).project(-79.387139,
+                43.642567, en, 0);
+        assertEquals(630084, en[0], 1);
+        assertEquals(4833439, en[1], 1);
+        // On the central meridian the northing is k0 times the meridian
+        // arc, which is 4984944.378 m to 45N and 10001965.729 m to the pole
+        new Projection.TransverseMercator(31, false).project(3, 45, en, 0);
+        assertEquals(500000, en[0], 1e-6);
+        assertEquals(.9996 * 4984944.378, en[1], .001);
+        new Projection.TransverseMercator(31, false).project(3, 90, en, 0);
+        assertEquals(.9996 * 10001965.729, en[1], .001);
+        // The southern hemisphere has a false northing of 10000000 m
+        new Projection.TransverseMercator(31, true).project(3, -45, en, 0);
+        assertEquals(10000000 - .9996 * 4984944.378, en[1], .001);
+    }
+
+    @Test
+    public void webMercatorMatchesReferenceValues() {
+        double[] en = new double[2];
+        new Projection.WebMercator().project(180, 85.0511287798, en, 0);
+        assertEquals(20037508.342789244, en[0], 1e-6);
+        assertEquals(20037508.342789244, en[1], .01);
+        new Projection.WebMercator().project(-122.4194, 37.7749, en, 0);
+        assertEquals(Math.toRadians(-122.4194) * Projection.WGS84_A, en[0],
+                1e-6);
+        assertEquals(Projection.WGS84_A * Math.log(Math.tan(Math.PI / 4
+                + Math.toRadians(37.7749) / 2)), en[1], 1e-6);
+    }
+
+    @Test
+    public void lccIsTrueOnStandardParallels() {
+        Projection lcc = new Projection.LambertConformalConic(33, 45, 23,
+                -96);
+        // Scale along the parallel and the meridian against arc lengths
+        // on the ellipsoid
+        for (double lat : new double[]{33, 45}) {
+            assertEquals(1, parallelScale(lcc, -90, lat), 1e-9);
+            assertEquals(1, meridianScale(lcc, -90, lat), 1e-7);
+        }
+        double k = parallelScale(lcc, -80, 39);
+        assertTrue(k < 1);
+        assertEquals(k, meridianScale(lcc, -80, 39), 1e-7);
+        assertTrue(parallelScale(lcc, -80, 55) > 1);
+        // The origin
+        double[] en = new double[2];
+        lcc.project(-96, 23, en, 0);
+        assertEquals(0, en[0], 1e-6);
+        assertEquals(0, en[1], 1e-6);
+    }
+
+    @Test
+    public void roundTrips() {
+        Projection[] projections = {
+                new Projection.TransverseMercator(10, false),
+                new Projection.TransverseMercator(19, true),
+                new Projection.WebMercator(),
+                new Projection.LambertConformalConic(33, 45, 23, -96),
+                new Projection.LambertConformalConic(-20, -40, -30, 140),
+                new Projection.LambertConformalConic(40, 40, 40, 0),
+        };
+        double[] centers = {-123, 45, -69, -30, 10, 60, -96, 35, 140, -30,
+                0, 40};
+        Random random = new Random(6);
+        double[] en = new double[2];
+        double[] lonLat = new double[2];
+        for (int i = 0; i < projections.length; i++) {
+            for (int j = 0; j < 1000; j++) {
+                double lon = centers[2 * i] + 6 * (random.nextDouble() - .5);
+                double lat = centers[2 * i + 1]
+                        + 10 * (random.nextDouble() - .5);
+                projections[i].project(lon, lat, en, 0);
+                projections[i].unproject(en[0], en[1], lonLat, 0);
+                assertEquals(lon, lonLat[0], 1e-9);
+                assertEquals(lat, lonLat[1], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void bulkProjectMatchesSingle() {
+        Projection utm = new Projection.TransverseMercator(10, false);
+        int n = 100;
+        double[] lons = new double[n], lats = new double[n];
+        for (int i = 0; i < n; i++) {
+            lons[i] = -124 + .03 * i;
+            lats[i] = 37 + .02 * i;
+        }
+        double[] es = new double[n], ns = new double[n];
+        utm.project(lons, lats, n, es, ns);
+        double[] en = new double[2];
+        for (int i = 0; i < n; i++) {
+            utm.project(lons[i], lats[i], en, 0);
+            assertEquals(en[0], es[i], 0);
+            assertEquals(en[1], ns[i], 0);
+        }
+        // In place
+        utm.project(lons, lats, n, lons, lats);
+        for (int i = 0; i < n; i++) {
+            assertEquals(es[i], lons[i], 0);
+            assertEquals(ns[i], lats[i], 0);
+        }
+    }
+
+    @Test
+    public void createChoosesParameters() {
+        double[] lons = {-122.6, -122.2}, lats = {37.5, 37.9};
+        Projection.TransverseMercator utm = (Projection.TransverseMercator)
+                Projection.create(Projection.PROJECTION_UTM, new double[2],
+                        0, lons, lats, 2);
+        assertEquals(10, utm.getZone());
+        assertTrue(!utm.isSouth());
+        utm = (Projection.TransverseMercator) Projection.create(
+                Projection.PROJECTION_UTM, new double[]{11, 1}, 2, lons,
+                lats, 2);
+        assertEquals(11, utm.getZone());
+        assertTrue(utm.isSouth());
+        assertNull(Projection.create(Projection.PROJECTION_NONE, null, 0,
+                lons, lats, 2));
+    }
+
+    @Test
+    public void writesAndReads() throws IOException {
+        Projection[] projections = {
+                null,
+                new Projection.TransverseMercator(19, true),
+                new Projection.WebMercator(),
+                new Projection.LambertConformalConic(33, 45, 23, -96),
+        };
+        double[] expected = new double[2], actual = new double[2];
+        for (Projection projection : projections) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Projection.write(projection, new DataOutputStream(bytes));
+            Projection read = Projection.read(new DataInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())));
+            if (projection == null) {
+                assertNull(read);
+                continue;
+            }
+            assertEquals(projection.getType(), read.getType());
+            projection.project(-70, -30, expected, 0);
+            read.project(-70, -30, actual, 0);
+            assertEquals(expected[0], actual[0], 0);
+            assertEquals(expected[1], actual[1], 0);
+        }
+    }
+
+    @Test
+    public void projectedModelBulkMatchesSingle() {
+        // About 1 m per pixel in UTM zone 10 near San Francisco
+        MapTransform plane = new MapTransform(1, 0, 0, -1, 540000, 4190000);
+        ProjectedModel model = new ProjectedModel(
+                new Projection.TransverseMercator(10, false), plane);
+        // More than one chunk
+        int n = 1000;
+        double[] lons = new double[n], lats = new double[n];
+        double[] lonLat = new double[2];
+        for (int i = 0; i < n; i++) {
+            assertTrue(model.forward(7 * i, 5 * i, lonLat));
+            lons[i] = lonLat[0];
+            lats[i] = lonLat[1];
+        }
+        float[] xy = new float[2 * n];
+        assertEquals(n, model.inverse(lons, lats, n, xy));
+        double[] single = new double[2];
+        for (int i = 0; i < n; i++) {
+            assertTrue(model.inverse(lons[i], lats[i], single));
+            assertEquals(7 * i, single[0], 1e-4);
+            assertEquals(5 * i, single[1], 1e-4);
+            assertEquals((float) single[0], xy[2 * i], 0);
+            assertEquals((float) single[1], xy[2 * i + 1], 0);
+        }
+    }
+
+    /**
+     * Gets the scale factor along a parallel by comparing a short step in
+     * the projection with the arc length on the ellipsoid.
+     */
+    private static double parallelScale(Projection projection, double lon,
+                                        double lat) {
+        double dLon = 1e-4;
+        double[] en = new double[4];
+        projection.project(lon, lat, en, 0);
+        projection.project(lon + dLon, lat, en, 2);
+        double phi = Math.toRadians(lat);
+        double sinPhi = Math.sin(phi);
+        double e2 = Projection.WGS84_E * Projection.WGS84_E;
+        double arc = Projection.WGS84_A * Math.cos(phi)
+                / Math.sqrt(1 - e2 * sinPhi * sinPhi) * Math.toRadians(dLon);
+        return Math.hypot(en[2] - en[0], en[3] - en[1]) / arc;
+    }
+
+    /**
+     * Gets the scale factor along a meridian. The step is centered on the
+     * latitude.
+     */
+    private static double meridianScale(Projection projection, double lon,
+                                        double lat) {
+        double dLat = 1e-4;
+        double[] en = new double[4];
+        projection.project(lon, lat - dLat / 2, en, 0);
+        projection.project(lon, lat + dLat / 2, en, 2);
+        double sinPhi = Math.sin(Math.toRadians(lat));
+        double e2 = Projection.WGS84_E * Projection.WGS84_E;
+        double arc = Projection.WGS84_A * (1 - e2)
+                / Math.pow(1 - e2 * sinPhi * sinPhi, 1.5)
+                * Math.toRadians(dLat);
+        return Math.hypot(en[2] - en[0], en[3] - en[1]) / arc;
+    }
+}
@@ -0,0 +1,124 @@
+package net.kenevans.android.mapimage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for SegmentGrid.
+ */
+public class SegmentGridTest {
+    private static final float CELL_SIZE = 64;
+
+    @Test
+    public void findsIntersectingSegments() {
+        Random random = new Random(25);
+        int n = 3000;
+        float[] pts = new float[2 * n];
+        for (int i = 0; i < n; i++) {
+            // Mostly short steps with some long jumps
+            float step = random.nextInt(50) == 0 ? 5000 : 40;
+            float x = i == 0 ? 0 : pts[2 * i - 2];
+            float y = i == 0 ? 0 : pts[2 * i - 1];
+            pts[2 * i] = x + step * (2 * random.nextFloat() - 1);
+            pts[2 * i + 1] = y + step * (2 * random.nextFloat() - 1);
+        }
+        SegmentGrid grid = new SegmentGrid(CELL_SIZE);
+        for (int i = 0; i < n - 1; i++) grid.add(pts, i);
+        for (int q = 0; q < 2000; q++) {
+            float width = random.nextInt(10) == 0 ? 0
+                    : 500 * random.nextFloat();
+            float minX = -3000 + 6000 * random.nextFloat();
+            float minY = -3000 + 6000 * random.nextFloat();
+            check(grid, pts, n - 1, minX, minY, minX + width,
+                    minY + .7f * width);
+        }
+    }
+
+    @Test
+    public void findsSegmentsAcrossManyCells() {
+        // A diagonal that is too long for the cells and one that is not
+        float[] pts = {0, 0, 10000, 10000, 10000, 9000, 8000, 7000};
+        SegmentGrid grid = new SegmentGrid(CELL_SIZE);
+        for (int i = 0; i < 3; i++) grid.add(pts, i);
+        check(grid, pts, 3, 5000, 4990, 5010, 5010);
+        check(grid, pts, 3, 9000, 8000, 9000, 8000);
+        check(grid, pts, 3, 8500, 7600, 8600, 7700);
+        // Just touching the corner of a cell
+        float[] corner = {0, 128, 128, 0};
+        grid = new SegmentGrid(CELL_SIZE);
+        grid.add(corner, 0);
+        check(grid, corner, 1, 64, 64, 64, 64);
+    }
+
+    @Test
+    public void alwaysFindsUnusualSegments() {
+        float[] pts = {0, 0, Float.NaN, 5, 1, 1, 1e30f, 1e30f, 2, 2,
+                -Float.MAX_VALUE, 3};
+        SegmentGrid grid = new SegmentGrid(CELL_SIZE);
+        for (int i = 0; i < 5; i++) grid.add(pts, i);
+        boolean[] found = find(grid, 100000, 100000, 100100, 100100);
+        for (int i = 0; i < 5; i++) assertTrue(found[i]);
+        grid.clear();
+        assertEquals(0, grid.find(-1e6f, -1e6f, 1e6f, 1e6f));
+    }
+
+    /**
+     * Checks that every segment that intersects the rectangle is found
+     * exactly once.
+     */
+    private static void check(SegmentGrid grid, float[] pts, int nSegments,
+                              float minX, float minY, float maxX,
+                              float maxY) {
+        boolean[] found = find(grid, minX, minY, maxX, maxY);
+        for (int i = 0; i < nSegments; i++) {
+            if (intersects(pts, i, minX, minY, maxX, maxY)) {
+                assertTrue("segment " + i, found[i]);
+            }
+        }
+    }
+
+    private static boolean[] find(SegmentGrid grid, float minX, float minY,
+                                  float maxX, float maxY) {
+        int nFound = grid.find(minX, minY, maxX, maxY);
+        int[] segments = grid.getFound();
+        boolean[] found = new boolean[100000];
+        for (int i = 0; i < nFound; i++) {
+            assertFalse("duplicate " + segments[i], found[segments[i]]);
+            found[segments[i]] = true;
+        }
+        return found;
+    }
+
+    /**
+     * Tests whether a segment intersects a rectangle by clipping it with
+     * Liang-Barsky.
+     */
+    private static boolean intersects(float[] pts, int segment, double minX,
+                                      double minY, double maxX,
+                                      double maxY) {
+        double x0 = pts[2 * segment], y0 = pts[2 * segment + 1];
+        double dx = pts[2 * segment + 2] - x0;
+        double dy = pts[2 * segment + 3] - y0;
+        double[] p = {-dx, dx, -dy, dy};
+        double[] q = {x0 - minX, maxX - x0, y0 - minY, maxY - y0};
+        double t0 = 0, t1 = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) return false;
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+            }
+        }
+        return t0 <= t1;
+    }
+}
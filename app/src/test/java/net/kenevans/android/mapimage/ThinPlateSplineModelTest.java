@@ -0,0 +1,86 @@
+package net.kenevans.android.mapimage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for ThinPlateSplineModel.
+ */
+public class ThinPlateSplineModelTest {
+    @Test
+    public void interpolatesThePoints() {
+        PolynomialModelTest.Points points =
+                new PolynomialModelTest.Points(6, 3);
+        // Move some points off the smooth surface
+        Random random = new Random(4);
+        for (int i = 0; i < points.n; i += 3) {
+            points.lons[i] += 1e-4 * random.nextGaussian();
+            points.lats[i] += 1e-4 * random.nextGaussian();
+        }
+        ThinPlateSplineModel model = fit(points);
+        assertNotNull(model);
+        assertEquals(CalibrationModel.MODEL_TPS, model.getType());
+        double[] lonLat = new double[2];
+        for (int i = 0; i < points.n; i++) {
+            assertTrue(model.forward(points.xs[i], points.ys[i], lonLat));
+            assertEquals(points.lons[i], lonLat[0], 1e-9);
+            assertEquals(points.lats[i], lonLat[1], 1e-9);
+        }
+    }
+
+    @Test
+    public void reproducesAffine() {
+        PolynomialModelTest.Points points =
+                new PolynomialModelTest.Points(4, 1);
+        ThinPlateSplineModel model = fit(points);
+        assertNotNull(model);
+        double[] lonLat = new double[2];
+        for (int x = -1000; x <= 9000; x += 500) {
+            model.forward(x, 2 * x, lonLat);
+            assertEquals(PolynomialModelTest.Points.lon(x, 2 * x, 1),
+                    lonLat[0], 1e-9);
+            assertEquals(PolynomialModelTest.Points.lat(x, 2 * x, 1),
+                    lonLat[1], 1e-9);
+        }
+    }
+
+    @Test
+    public void inverseRoundTrips() {
+        PolynomialModelTest.Points points =
+                new PolynomialModelTest.Points(6, 3);
+        ThinPlateSplineModel model = fit(points);
+        assertNotNull(model);
+        double[] lonLat = new double[2];
+        double[] xy = new double[2];
+        for (int y = 0; y <= 8000; y += 400) {
+            for (int x = 0; x <= 8000; x += 400) {
+                model.forward(x, y, lonLat);
+                assertTrue(model.inverse(lonLat[0], lonLat[1], xy));
+                assertEquals(x, xy[0], .5);
+                assertEquals(y, xy[1], .5);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsDuplicatePoints() {
+        PolynomialModelTest.Points points =
+                new PolynomialModelTest.Points(3, 2);
+        points.xs[1] = points.xs[0];
+        points.ys[1] = points.ys[0];
+        points.lons[1] = points.lons[0] + .01;
+        assertNull(fit(points));
+    }
+
+    private static ThinPlateSplineModel fit(
+            PolynomialModelTest.Points points) {
+        return ThinPlateSplineModel.fit(points.affine, points.xs, points.ys,
+                points.lons, points.lats, points.n);
+    }
+}
@@ -0,0 +1,179 @@
+package net.kenevans.android.mapimage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for TrackLod.
+ */
+public class TrackLodTest {
+    private static final int N_POINTS = 20000;
+
+    @Test
+    public void levelsAreWithinTolerance() {
+        float[] xy = randomWalk(new Random(24), N_POINTS);
+        TrackLod lod = new TrackLod();
+        lod.set(xy, N_POINTS);
+        assertEquals(N_POINTS, lod.size());
+        int nLevels = 1;
+        // The position in level 0 of each point of the current level
+        int[] toFull = new int[N_POINTS];
+        for (int i = 0; i < N_POINTS; i++) toFull[i] = i;
+        for (int k = 1; lod.getLevel(k).size() > 0; k++) {
+            TrackBuffer level = lod.getLevel(k);
+            TrackBuffer lower = lod.getLevel(k - 1);
+            assertTrue(level.size() < lower.size());
+            int[] toLower = match(level, lower);
+            // Level k ends where the tail of level k - 1 starts
+            assertEquals(lod.getTailStart(k - 1), toLower[level.size() - 1]);
+            float tolerance = 1 << (k - 1);
+            assertTrue(maxDeviation(lower, toLower, level.size())
+                    <= tolerance * 1.0001f);
+            int[] newToFull = new int[level.size()];
+            for (int i = 0; i < level.size(); i++) {
+                newToFull[i] = toFull[toLower[i]];
+            }
+            toFull = newToFull;
+            // The errors add up to less than twice the tolerance
+            assertTrue(maxDeviation(lod.getLevel(0), toFull, level.size())
+                    < 2 * tolerance);
+            nLevels++;
+        }
+        assertTrue(nLevels > 5);
+    }
+
+    @Test
+    public void levelsJoinUp() {
+        float[] xy = randomWalk(new Random(25), N_POINTS);
+        TrackLod lod = new TrackLod();
+        lod.set(xy, N_POINTS);
+        for (int k = 1; lod.getLevel(k).size() > 0; k++) {
+            // Level k then the tails of each lower level
+            int end = lod.getLevel(k).size() - 1;
+            for (int j = k - 1; j >= 0; j--) {
+                TrackBuffer level = lod.getLevel(j);
+                int start = lod.getTailStart(j);
+                TrackBuffer upper = lod.getLevel(j + 1);
+                assertEquals(upper.getPoints()[2 * end],
+                        level.getPoints()[2 * start], 0);
+                assertEquals(upper.getPoints()[2 * end + 1],
+                        level.getPoints()[2 * start + 1], 0);
+                end = level.size() - 1;
+            }
+            // Tails are less than a chunk
+            assertTrue(lod.getLevel(k - 1).size()
+                    - lod.getTailStart(k - 1) <= 65);
+        }
+    }
+
+    @Test
+    public void addMatchesSet() {
+        float[] xy = randomWalk(new Random(26), 5000);
+        TrackLod bulk = new TrackLod();
+        bulk.set(xy, 5000);
+        TrackLod incremental = new TrackLod();
+        for (int i = 0; i < 5000; i++) {
+            incremental.add(xy[2 * i], xy[2 * i + 1]);
+        }
+        for (int k = 0; k < 12; k++) {
+            TrackBuffer expected = bulk.getLevel(k);
+            TrackBuffer actual = incremental.getLevel(k);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < 2 * expected.size(); i++) {
+                assertEquals(expected.getPoints()[i], actual.getPoints()[i],
+                        0);
+            }
+            if (k < 11) {
+                assertEquals(bulk.getTailStart(k),
+                        incremental.getTailStart(k));
+            }
+        }
+        incremental.clear();
+        assertEquals(0, incremental.size());
+        assertEquals(0, incremental.getLevel(1).size());
+    }
+
+    @Test
+    public void levelForScaleIsUnderAPixel() {
+        TrackLod lod = new TrackLod();
+        assertEquals(0, lod.getLevelForScale(1));
+        assertEquals(0, lod.getLevelForScale(0));
+        assertEquals(0, lod.getLevelForScale(Float.NaN));
+        for (float scale = 1; scale > 1e-4f; scale /= 1.5f) {
+            int level = lod.getLevelForScale(scale);
+            // The sum of the tolerances of levels 1 to level
+            float error = (1 << level) - 1;
+            assertTrue(error * scale < 1);
+            if (level < 11) {
+                assertTrue(((2 << level) - 1) * scale >= .5f);
+            }
+        }
+        assertEquals(11, lod.getLevelForScale(1e-5f));
+    }
+
+    /**
+     * Finds the position in lower of each point of level, which is a
+     * subsequence of it.
+     */
+    private static int[] match(TrackBuffer level, TrackBuffer lower) {
+        float[] pts = level.getPoints(), lowerPts = lower.getPoints();
+        int[] positions = new int[level.size()];
+        int j = 0;
+        for (int i = 0; i < level.size(); i++) {
+            while (lowerPts[2 * j] != pts[2 * i]
+                    || lowerPts[2 * j + 1] != pts[2 * i + 1]) {
+                j++;
+            }
+            positions[i] = j;
+        }
+        assertEquals(0, positions[0]);
+        return positions;
+    }
+
+    /**
+     * Gets the largest distance of a point of lower from the segment of
+     * the simplified level that replaces it.
+     */
+    private static double maxDeviation(TrackBuffer lower, int[] positions,
+                                       int n) {
+        float[] pts = lower.getPoints();
+        double max = 0;
+        for (int i = 0; i + 1 < n; i++) {
+            int a = positions[i], b = positions[i + 1];
+            for (int m = a + 1; m < b; m++) {
+                max = Math.max(max, distance(pts, m, a, b));
+            }
+        }
+        return max;
+    }
+
+    private static double distance(float[] pts, int m, int a, int b) {
+        double x0 = pts[2 * a], y0 = pts[2 * a + 1];
+        double dx = pts[2 * b] - x0, dy = pts[2 * b + 1] - y0;
+        double px = pts[2 * m] - x0, py = pts[2 * m + 1] - y0;
+        double len2 = dx * dx + dy * dy;
+        double t = len2 > 0
+                ? Math.max(0, Math.min(1, (px * dx + py * dy) / len2)) : 0;
+        return Math.hypot(px - t * dx, py - t * dy);
+    }
+
+    /**
+     * Makes a track that wanders with steps of a few pixels.
+     */
+    private static float[] randomWalk(Random random, int n) {
+        float[] xy = new float[2 * n];
+        double x = 1000, y = 1000, heading = 0;
+        for (int i = 0; i < n; i++) {
+            heading += .3 * random.nextGaussian();
+            x += 3 * Math.cos(heading);
+            y += 3 * Math.sin(heading);
+            xy[2 * i] = (float) x;
+            xy[2 * i + 1] = (float) y;
+        }
+        return xy;
+    }
+}